@@ -0,0 +1,402 @@
+package com.darkyen.dave.http2;
+
+import com.darkyen.dave.ExecutionStrategy;
+import com.darkyen.dave.Transport;
+import com.darkyen.dave.TransportRequest;
+
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link Transport} based on Java 11 {@link HttpClient}, which multiplexes concurrent requests to the same server
+ * over a few HTTP/2 connections (and falls back to HTTP/1.1 for servers which do not support HTTP/2).
+ * <br>
+ * Its exchanges are {@link Transport.AsyncExchange}s, so when used with
+ * {@link ExecutionStrategy#NON_BLOCKING_EXECUTION_STRATEGY}, no thread waits for the responses.
+ * In that mode, the translator is called when the response headers arrive, on a thread of the executor,
+ * and reads the body as it is received, so bodies are not held in memory unless the translator does so.
+ * The executor must therefore have enough threads for the responses which are being read at once
+ * (the default executor of {@link HttpClient} does).
+ * <br>
+ * Request bodies which are not in memory (streams and files) are written by a shared pool of threads
+ * and can be sent only once. When the body would have to be sent again, for example after a <code>307</code>
+ * or <code>308</code> redirect, the request fails.
+ * <br>
+ * Differences from the default transport:
+ * <ul>
+ *     <li>Read timeout limits how long it takes to receive the response headers, counted from sending the request</li>
+ *     <li>Custom SSLSocketFactory and HostnameVerifier are not supported, give {@link SSLContext} to the constructor instead</li>
+ *     <li>{@link com.darkyen.dave.Request#useCaches(boolean)} is ignored</li>
+ *     <li>Headers which are managed by {@link HttpClient} itself (like "Connection" or "Content-Length") are not sent</li>
+ * </ul>
+ */
+@SuppressWarnings("WeakerAccess")
+public class HttpClientTransport implements Transport {
+
+    /** Headers which {@link HttpClient} does not allow to be set, lower case */
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<String>(Arrays.asList(
+            "connection", "content-length", "date", "expect", "from", "host", "upgrade", "via", "warning"));
+
+    private static final DateTimeFormatter HTTP_DATE_FORMAT = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private final SSLContext sslContext;
+    private final Executor executor;
+
+    /** Clients for each combination of connect timeout and redirect policy, which are per-client settings */
+    private final ConcurrentHashMap<Long, HttpClient> clients = new ConcurrentHashMap<Long, HttpClient>();
+
+    /** Create transport with default SSL context and executor. */
+    public HttpClientTransport() {
+        this(null, null);
+    }
+
+    /**
+     * @param sslContext for HTTPS connections, null for default
+     * @param executor for the asynchronous work of {@link HttpClient} (including calling of listeners, translators and callbacks), null for default
+     */
+    public HttpClientTransport(SSLContext sslContext, Executor executor) {
+        this.sslContext = sslContext;
+        this.executor = executor;
+    }
+
+    private HttpClient client(final int connectTimeout, final boolean followRedirects) {
+        final Long key = ((long) Math.max(connectTimeout, 0) << 1) | (followRedirects ? 1 : 0);
+        HttpClient client = clients.get(key);
+        if (client == null) {
+            final HttpClient.Builder builder = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .followRedirects(followRedirects ? HttpClient.Redirect.NORMAL : HttpClient.Redirect.NEVER);
+            if (connectTimeout > 0) {
+                builder.connectTimeout(Duration.ofMillis(connectTimeout));
+            }
+            if (sslContext != null) {
+                builder.sslContext(sslContext);
+            }
+            if (executor != null) {
+                builder.executor(executor);
+            }
+            final HttpClient newClient = builder.build();
+            client = clients.putIfAbsent(key, newClient);
+            if (client == null) {
+                client = newClient;
+            }
+        }
+        return client;
+    }
+
+    public Exchange open(TransportRequest request) throws Exception {
+        if (request.getSSLSocketFactory() != null || request.getHostnameVerifier() != null) {
+            throw new UnsupportedOperationException("HttpClientTransport does not support custom SSLSocketFactory or HostnameVerifier, use SSLContext of the transport");
+        }
+
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(request.getUri()));
+        if (request.getReadTimeout() > 0) {
+            builder.timeout(Duration.ofMillis(request.getReadTimeout()));
+        }
+
+        boolean ifModifiedSinceSet = false;
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            final String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (RESTRICTED_HEADERS.contains(name)) {
+                continue;
+            }
+            if ("if-modified-since".equals(name)) {
+                ifModifiedSinceSet = true;
+            }
+            builder.header(header.getKey(), header.getValue());
+        }
+        if (request.getIfModifiedSince() != 0 && !ifModifiedSinceSet) {
+            builder.header("If-Modified-Since", HTTP_DATE_FORMAT.format(Instant.ofEpochMilli(request.getIfModifiedSince())));
+        }
+
+        builder.method(request.getMethod().name(), bodyPublisher(request.getBody()));
+
+        return new HttpClientExchange(client(request.getConnectTimeout(), request.isFollowRedirects()), builder.build());
+    }
+
+    private static HttpRequest.BodyPublisher bodyPublisher(final Body body) throws Exception {
+        if (body == null) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+
+        final long length = body.getLength();
+        if (body.isInMemory() || length == 0) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(Math.min(length, Integer.MAX_VALUE - 8), 32));
+            body.writeTo(out);
+            return HttpRequest.BodyPublishers.ofByteArray(out.toByteArray());
+        }
+
+        final HttpRequest.BodyPublisher streamed = HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return new BodyPipe(body);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return new OneShotBodyPublisher(streamed, length);
+    }
+
+    private static ExecutorService bodyWriters;
+
+    /** @return executor which writes the streamed request bodies into {@link BodyPipe}s */
+    private static synchronized ExecutorService bodyWriters() {
+        if (bodyWriters == null) {
+            bodyWriters = Executors.newCachedThreadPool(runnable -> {
+                final Thread thread = new Thread(runnable, "HttpClientTransport - body writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return bodyWriters;
+    }
+
+    private static final class HttpClientExchange implements Transport.AsyncExchange {
+
+        private final HttpClient client;
+        private final HttpRequest request;
+
+        private volatile boolean aborted = false;
+        private volatile CompletableFuture<?> pending;
+
+        private HttpResponse<?> response;
+        private InputStream body;
+
+        private HttpClientExchange(HttpClient client, HttpRequest request) {
+            this.client = client;
+            this.request = request;
+        }
+
+        private <T> CompletableFuture<HttpResponse<T>> send(HttpResponse.BodyHandler<T> bodyHandler) {
+            final CompletableFuture<HttpResponse<T>> future = client.sendAsync(request, bodyHandler);
+            pending = future;
+            if (aborted) {
+                future.cancel(true);
+            }
+            return future;
+        }
+
+        public void execute() throws Exception {
+            try {
+                final HttpResponse<InputStream> response = send(HttpResponse.BodyHandlers.ofInputStream()).get();
+                this.response = response;
+                this.body = response.body();
+            } catch (ExecutionException e) {
+                throw unwrap(e.getCause());
+            } catch (CancellationException e) {
+                throw new IOException("Exchange has been aborted");
+            }
+        }
+
+        public void executeAsync(final Listener listener) {
+            // Completes when the headers arrive, the translator then reads the body as it is received
+            send(HttpResponse.BodyHandlers.ofInputStream()).whenComplete((response, failure) -> {
+                if (failure != null) {
+                    listener.failed(unwrap(failure));
+                } else {
+                    this.response = response;
+                    this.body = response.body();
+                    listener.completed();
+                }
+            });
+        }
+
+        private static Exception unwrap(Throwable failure) {
+            if (failure instanceof CompletionException && failure.getCause() != null) {
+                failure = failure.getCause();
+            }
+            if (failure instanceof CancellationException) {
+                return new IOException("Exchange has been aborted");
+            }
+            if (failure instanceof Exception) {
+                return (Exception) failure;
+            }
+            return new IOException(failure);
+        }
+
+        public int getStatusCode() {
+            return response.statusCode();
+        }
+
+        public String getStatusMessage() {
+            return reasonPhrase(response.statusCode());
+        }
+
+        public String getStatusLine() {
+            return (response.version() == HttpClient.Version.HTTP_2 ? "HTTP/2 " : "HTTP/1.1 ")
+                    + response.statusCode() + " " + getStatusMessage();
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return response.headers().map();
+        }
+
+        public InputStream getBody() {
+            return body;
+        }
+
+        public void close() {
+            final CompletableFuture<?> pending = this.pending;
+            if (pending != null && !pending.isDone()) {
+                pending.cancel(true);
+            }
+            final InputStream body = this.body;
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        public void abort() {
+            aborted = true;
+            close();
+        }
+    }
+
+    /**
+     * Publisher of a streamed body, which can't be written twice. {@link HttpClient} subscribes again
+     * when it sends the request again, the second subscriber gets an error instead of a truncated body.
+     */
+    private static final class OneShotBodyPublisher implements HttpRequest.BodyPublisher {
+
+        private final HttpRequest.BodyPublisher publisher;
+        private final long length;
+        private final AtomicBoolean subscribed = new AtomicBoolean();
+
+        private OneShotBodyPublisher(HttpRequest.BodyPublisher publisher, long length) {
+            this.publisher = publisher;
+            this.length = length;
+        }
+
+        public long contentLength() {
+            return length > 0 ? length : -1;
+        }
+
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            if (subscribed.compareAndSet(false, true)) {
+                publisher.subscribe(subscriber);
+                return;
+            }
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {}
+
+                public void cancel() {}
+            });
+            subscriber.onError(new IOException("Streamed request body can't be sent again"));
+        }
+    }
+
+    /** Stream from which the {@link HttpClient} reads the body, while it is being written on another thread. */
+    private static final class BodyPipe extends PipedInputStream {
+
+        private volatile Exception failure;
+
+        private BodyPipe(final Body body) throws IOException {
+            super(64 * 1024);
+            final PipedOutputStream out = new PipedOutputStream(this);
+            bodyWriters().execute(() -> {
+                try {
+                    body.writeTo(out);
+                } catch (Exception e) {
+                    failure = e;
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException ignored) {}
+                }
+            });
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            final int result = super.read();
+            if (result == -1) {
+                checkFailure();
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            final int result = super.read(b, off, len);
+            if (result == -1) {
+                checkFailure();
+            }
+            return result;
+        }
+
+        private void checkFailure() throws IOException {
+            final Exception failure = this.failure;
+            if (failure != null) {
+                throw new IOException("Failed to write the request body", failure);
+            }
+        }
+    }
+
+    private static String reasonPhrase(int statusCode) {
+        switch (statusCode) {
+            case 100: return "Continue";
+            case 101: return "Switching Protocols";
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 303: return "See Other";
+            case 304: return "Not Modified";
+            case 307: return "Temporary Redirect";
+            case 308: return "Permanent Redirect";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 408: return "Request Timeout";
+            case 409: return "Conflict";
+            case 410: return "Gone";
+            case 412: return "Precondition Failed";
+            case 413: return "Payload Too Large";
+            case 415: return "Unsupported Media Type";
+            case 416: return "Range Not Satisfiable";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return "";
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.darkyen.dave.http2;
+
+import com.darkyen.dave.BodyStreamProvider;
+import com.darkyen.dave.ExecutionStrategy;
+import com.darkyen.dave.FileTranslator;
+import com.darkyen.dave.Response;
+import com.darkyen.dave.ResponseFuture;
+import com.darkyen.dave.Webb;
+import com.darkyen.dave.WebbConst;
+import com.darkyen.dave.WebbException;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expects the same test server as the tests of the main module, on localhost:3003.
+ */
+public class TestHttpClientTransport extends TestCase {
+
+    private Webb webb;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        webb = new Webb("http://localhost:3003");
+        webb.setTransport(new HttpClientTransport());
+    }
+
+    public void testSimpleGet() throws Exception {
+        final Response<String> response = webb.get("/ping").executeString();
+        assertEquals(200, response.getStatusCode());
+        assertTrue(response.isSuccess());
+        assertEquals("pong", response.getBody());
+        assertTrue(response.getContentType().startsWith("text/plain"));
+    }
+
+    public void testPostBody() throws Exception {
+        final String body = "München 1 Maß 10 €";
+        final Response<String> response = webb.post("/echoText").body(body).executeString();
+        assertEquals(body, response.getBody());
+    }
+
+    public void testPostStreamBody() throws Exception {
+        final byte[] payload = new byte[100 * 1024 + 13];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        final File file = File.createTempFile("webb-http2", ".bin");
+        file.deleteOnExit();
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(payload);
+        out.close();
+
+        final Response<byte[]> response = webb.post("/echoBin")
+                .body(file, "application/octet-stream")
+                .executeBytes();
+        assertEquals(payload.length, response.getBody().length);
+        for (int i = 0; i < payload.length; i++) {
+            assertEquals(payload[i], response.getBody()[i]);
+        }
+    }
+
+    public void testCompressedResponse() throws Exception {
+        final Response<String> response = webb.get("/compressed.json")
+                .header(WebbConst.HDR_ACCEPT_ENCODING, "gzip")
+                .ensureSuccess()
+                .executeString();
+        assertEquals("gzip", response.getHeaderField("Content-Encoding"));
+        assertTrue(response.getBody().startsWith("[\"Hello/World & Co.?\""));
+    }
+
+    public void testReadTimeout() throws Exception {
+        try {
+            webb.get("/read-timeout").readTimeout(100).executeString();
+            fail("Expected timeout");
+        } catch (WebbException e) {
+            assertTrue(e.getCause() instanceof HttpTimeoutException || e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+    public void testRedirects() throws Exception {
+        assertEquals("redirected to target", webb.get("/redirect/301").ensureSuccess().executeString().getBody());
+
+        final Response<String> response = webb.get("/redirect/301").followRedirects(false).executeString();
+        assertEquals(301, response.getStatusCode());
+        assertTrue(response.getHeaderField("Location").endsWith("/redirect/target"));
+    }
+
+    public void testNonBlockingExecution() throws Exception {
+        webb.setExecutionStrategy(ExecutionStrategy.NON_BLOCKING_EXECUTION_STRATEGY);
+        final ResponseFuture<String> future = webb.get("/ping").executeAsyncString();
+        assertEquals("pong", future.get().getBody());
+
+        final ResponseFuture<String> failing = webb.get("/error/500/no-content").ensureSuccess().executeAsyncString();
+        try {
+            failing.get();
+            fail("Expected failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof WebbException);
+            assertEquals(500, ((WebbException) e.getCause()).getResponse().getStatusCode());
+        }
+    }
+
+    public void testNonBlockingDownloadToFile() throws Exception {
+        webb.setExecutionStrategy(ExecutionStrategy.NON_BLOCKING_EXECUTION_STRATEGY);
+        final File file = File.createTempFile("webb-http2", ".bin");
+        try {
+            // Body is streamed into the file, not received into memory first
+            final Response<File> response = webb.get("/download").executeAsync(new FileTranslator(file)).get(10, TimeUnit.SECONDS);
+            assertEquals(200, response.getStatusCode());
+            assertEquals(3 * 1024 * 1024 + 17, file.length());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    public void testStreamBodyIsNotSentTwice() throws Exception {
+        final byte[] payload = new byte[100 * 1024];
+        try {
+            // 307 asks to send the body again, which can't be done with a stream
+            webb.post("/redirect/307")
+                    .body(new BodyStreamProvider<ByteArrayInputStream>() {
+                        public ByteArrayInputStream createStream() {
+                            return new ByteArrayInputStream(payload);
+                        }
+
+                        public long payloadSize(ByteArrayInputStream forStream) {
+                            return -1;
+                        }
+
+                        public void destroyStream(ByteArrayInputStream usedStream) {
+                        }
+                    }, "application/octet-stream")
+                    .ensureSuccess()
+                    .executeString();
+            fail("Expected failure");
+        } catch (WebbException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
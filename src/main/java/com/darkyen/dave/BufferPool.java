@@ -0,0 +1,125 @@
+package com.darkyen.dave;
+
+/**
+ * Pool of byte and char buffers used for I/O: copying of uploaded and downloaded data,
+ * (de)compression and in the built-in {@link ResponseTranslator}s.
+ * <br>
+ * Each thread has its own small free list, so taking and giving buffers needs no synchronization.
+ * Buffers given back by a different thread than the one which took them simply land in the free list of that thread.
+ * <br>
+ * This class is thread safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public class BufferPool {
+
+    /** Pool with 16 KiB byte buffers and 4 Ki char buffers, shared by all {@link Webb}s by default. */
+    public static final BufferPool DEFAULT = new BufferPool();
+
+    private final int byteBufferSize;
+    private final int charBufferSize;
+    private final int maxPooledPerThread;
+
+    private final ThreadLocal<FreeList> freeLists = new ThreadLocal<FreeList>() {
+        @Override
+        protected FreeList initialValue() {
+            return new FreeList(maxPooledPerThread);
+        }
+    };
+
+    /** Create pool with 16 KiB byte buffers, 4 Ki char buffers and at most 4 free buffers of each kind per thread. */
+    public BufferPool() {
+        this(16 * 1024, 4 * 1024, 4);
+    }
+
+    /**
+     * @param byteBufferSize size of byte buffers, at least 1
+     * @param charBufferSize size of char buffers, at least 1
+     * @param maxPooledPerThread how many free buffers of each kind are kept per thread, 0 to not pool at all
+     */
+    public BufferPool(int byteBufferSize, int charBufferSize, int maxPooledPerThread) {
+        if (byteBufferSize < 1) throw new IllegalArgumentException("byteBufferSize must be at least 1");
+        if (charBufferSize < 1) throw new IllegalArgumentException("charBufferSize must be at least 1");
+        if (maxPooledPerThread < 0) throw new IllegalArgumentException("maxPooledPerThread must not be negative");
+        this.byteBufferSize = byteBufferSize;
+        this.charBufferSize = charBufferSize;
+        this.maxPooledPerThread = maxPooledPerThread;
+    }
+
+    public int getByteBufferSize() {
+        return byteBufferSize;
+    }
+
+    public int getCharBufferSize() {
+        return charBufferSize;
+    }
+
+    public int getMaxPooledPerThread() {
+        return maxPooledPerThread;
+    }
+
+    /** @return byte buffer of {@link #getByteBufferSize()}, with undefined content. Give it back when no longer used. */
+    public byte[] takeBytes() {
+        if (maxPooledPerThread > 0) {
+            final FreeList freeList = freeLists.get();
+            if (freeList.byteCount > 0) {
+                final byte[] buffer = freeList.bytes[--freeList.byteCount];
+                freeList.bytes[freeList.byteCount] = null;
+                return buffer;
+            }
+        }
+        return new byte[byteBufferSize];
+    }
+
+    /**
+     * Return buffer obtained through {@link #takeBytes()}. It must not be used afterwards.
+     * @param buffer buffers of other sizes and null are ignored
+     */
+    public void giveBytes(byte[] buffer) {
+        if (buffer == null || buffer.length != byteBufferSize || maxPooledPerThread == 0) {
+            return;
+        }
+        final FreeList freeList = freeLists.get();
+        if (freeList.byteCount < maxPooledPerThread) {
+            freeList.bytes[freeList.byteCount++] = buffer;
+        }
+    }
+
+    /** @return char buffer of {@link #getCharBufferSize()}, with undefined content. Give it back when no longer used. */
+    public char[] takeChars() {
+        if (maxPooledPerThread > 0) {
+            final FreeList freeList = freeLists.get();
+            if (freeList.charCount > 0) {
+                final char[] buffer = freeList.chars[--freeList.charCount];
+                freeList.chars[freeList.charCount] = null;
+                return buffer;
+            }
+        }
+        return new char[charBufferSize];
+    }
+
+    /**
+     * Return buffer obtained through {@link #takeChars()}. It must not be used afterwards.
+     * @param buffer buffers of other sizes and null are ignored
+     */
+    public void giveChars(char[] buffer) {
+        if (buffer == null || buffer.length != charBufferSize || maxPooledPerThread == 0) {
+            return;
+        }
+        final FreeList freeList = freeLists.get();
+        if (freeList.charCount < maxPooledPerThread) {
+            freeList.chars[freeList.charCount++] = buffer;
+        }
+    }
+
+    private static final class FreeList {
+        final byte[][] bytes;
+        int byteCount = 0;
+        final char[][] chars;
+        int charCount = 0;
+
+        private FreeList(int size) {
+            bytes = new byte[size][];
+            chars = new char[size][];
+        }
+    }
+}
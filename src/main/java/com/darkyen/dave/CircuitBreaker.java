@@ -0,0 +1,225 @@
+package com.darkyen.dave;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops sending requests to a host which keeps failing, so that they fail right away, instead of each waiting
+ * for the timeouts, see {@link Webb#setCircuitBreaker(CircuitBreaker)}.
+ * <br>
+ * Outcomes of the last requests are tracked for each host (scheme and authority, like <code>https://example.com:8080</code>).
+ * Requests fail when the connection fails, when {@link RetryManager#isRecoverable(WebbException)} says so,
+ * or when the response is a temporary error of the server, see {@link RetryManager#isRetryUseful(Response)}.
+ * When at least <code>failureRateThreshold</code> of the last <code>windowSize</code> requests have failed,
+ * the circuit of the host opens and its requests fail with {@link CircuitOpenException} without being sent.
+ * After <code>openMillis</code> the circuit is half-open: <code>probes</code> requests are let through,
+ * if all of them succeed, the circuit closes, if any of them fails, it opens again.
+ * <br>
+ * Each attempt of a retried request counts. Responses from the cache and cancelled requests don't count.
+ * <br>
+ * This class is thread safe. If you need other behaviour, just extend this class.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CircuitBreaker {
+
+    private final int windowSize;
+    private final int minimumRequests;
+    private final double failureRateThreshold;
+    private final long openMillis;
+    private final int probes;
+
+    private final Map<String, Circuit> circuits = new HashMap<String, Circuit>();
+    /** Identifies the half-open periods of all circuits, so that probes of an earlier period don't count */
+    private int halfOpenings = 0;
+
+    /** Create breaker which opens for 30 seconds when half of the last 20 requests have failed, with one probe. */
+    public CircuitBreaker() {
+        this(20, 10, 0.5, 30000, 1);
+    }
+
+    /**
+     * @param windowSize of how many last requests is the failure rate computed
+     * @param minimumRequests how many requests must be in the window, before the circuit can open
+     * @param failureRateThreshold rate of failed requests in the window at which the circuit opens, between 0 (exclusive) and 1
+     * @param openMillis how long is the circuit open, before it lets probes through
+     * @param probes how many requests must succeed in a row, before the half-open circuit closes
+     */
+    public CircuitBreaker(int windowSize, int minimumRequests, double failureRateThreshold, long openMillis, int probes) {
+        if (windowSize < 1) throw new IllegalArgumentException("windowSize must be at least 1");
+        if (minimumRequests < 1 || minimumRequests > windowSize) throw new IllegalArgumentException("minimumRequests must be between 1 and windowSize");
+        if (!(failureRateThreshold > 0 && failureRateThreshold <= 1)) throw new IllegalArgumentException("failureRateThreshold must be in (0, 1]");
+        if (openMillis < 0) throw new IllegalArgumentException("openMillis must not be negative");
+        if (probes < 1) throw new IllegalArgumentException("probes must be at least 1");
+        this.windowSize = windowSize;
+        this.minimumRequests = minimumRequests;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openMillis = openMillis;
+        this.probes = probes;
+    }
+
+    /** @return state of the circuit of the host */
+    public synchronized State getState(String host) {
+        final Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            return State.CLOSED;
+        }
+        if (circuit.state == State.OPEN && System.currentTimeMillis() - circuit.openedAt >= openMillis) {
+            return State.HALF_OPEN;
+        }
+        return circuit.state;
+    }
+
+    /** @return rate of failed requests to the host among the last requests, 0 if there were none */
+    public synchronized double getFailureRate(String host) {
+        final Circuit circuit = circuits.get(host);
+        return circuit == null || circuit.count == 0 ? 0 : (double) circuit.failures / circuit.count;
+    }
+
+    /** Close all circuits and forget the outcomes of all requests */
+    public synchronized void reset() {
+        circuits.clear();
+    }
+
+    /**
+     * Called before each attempt of the request, after which {@link #record(String, int, boolean)}
+     * or {@link #cancel(String, int)} must be called.
+     * @param host key of the host of the request
+     * @return 0 for a regular attempt, or identifier of the half-open period, if the attempt is its probe
+     * @throws CircuitOpenException if the request must not be sent
+     */
+    synchronized int acquire(String host) {
+        final Circuit circuit = circuits.get(host);
+        if (circuit == null || circuit.state == State.CLOSED) {
+            return 0;
+        }
+        if (circuit.state == State.OPEN) {
+            final long remaining = openMillis - (System.currentTimeMillis() - circuit.openedAt);
+            if (remaining > 0) {
+                throw new CircuitOpenException(host, remaining);
+            }
+            circuit.state = State.HALF_OPEN;
+            circuit.halfOpening = ++halfOpenings;
+            circuit.probesInFlight = 0;
+            circuit.probeSuccesses = 0;
+        }
+        if (circuit.probesInFlight + circuit.probeSuccesses >= probes) {
+            throw new CircuitOpenException(host, 0);
+        }
+        circuit.probesInFlight++;
+        return circuit.halfOpening;
+    }
+
+    /**
+     * Record the outcome of an attempt which was allowed by {@link #acquire(String)}.
+     * @param probe returned by {@link #acquire(String)}
+     */
+    synchronized void record(String host, int probe, boolean failed) {
+        Circuit circuit = circuits.get(host);
+        if (probe != 0) {
+            if (isProbe(circuit, probe)) {
+                circuit.probesInFlight--;
+                if (failed) {
+                    open(circuit);
+                } else if (++circuit.probeSuccesses >= probes) {
+                    circuit.state = State.CLOSED;
+                }
+            }
+            return;
+        }
+
+        if (circuit == null) {
+            circuit = new Circuit(windowSize);
+            circuits.put(host, circuit);
+        }
+        // Otherwise the request was sent before the circuit opened
+        if (circuit.state == State.CLOSED) {
+            circuit.add(failed);
+            if (circuit.count >= minimumRequests && circuit.failures >= failureRateThreshold * circuit.count) {
+                open(circuit);
+            }
+        }
+    }
+
+    /**
+     * Called instead of {@link #record(String, int, boolean)}, when the attempt was cancelled, so it has no outcome.
+     * @param probe returned by {@link #acquire(String)}
+     */
+    synchronized void cancel(String host, int probe) {
+        final Circuit circuit = circuits.get(host);
+        if (probe != 0 && isProbe(circuit, probe)) {
+            circuit.probesInFlight--;
+        }
+    }
+
+    /** @return whether the probe belongs to the current half-open period of the circuit */
+    private static boolean isProbe(Circuit circuit, int probe) {
+        return circuit != null && circuit.state == State.HALF_OPEN && circuit.halfOpening == probe;
+    }
+
+    private void open(Circuit circuit) {
+        circuit.state = State.OPEN;
+        circuit.openedAt = System.currentTimeMillis();
+        circuit.clear();
+    }
+
+    /**
+     * Decide whether the attempt of a request has failed because of the host.
+     * @param response of the attempt, or null if there is none
+     * @param exception thrown by the attempt, or null if it has not failed
+     */
+    protected boolean isFailure(RetryManager retryManager, Response<?> response, WebbException exception) {
+        if (exception != null) {
+            return exception.getCause() instanceof IOException || retryManager.isRecoverable(exception);
+        }
+        return retryManager.isRetryUseful(response);
+    }
+
+    public enum State {
+        /** Requests are sent */
+        CLOSED,
+        /** Requests fail without being sent */
+        OPEN,
+        /** Only a few requests (probes) are sent, to find out whether the host has recovered */
+        HALF_OPEN
+    }
+
+    /** Outcomes of the last requests to a host, in a ring buffer */
+    private static final class Circuit {
+        private final boolean[] outcomes;
+        private int next = 0;
+        int count = 0;
+        int failures = 0;
+
+        State state = State.CLOSED;
+        long openedAt;
+        int halfOpening;
+        int probesInFlight;
+        int probeSuccesses;
+
+        private Circuit(int windowSize) {
+            this.outcomes = new boolean[windowSize];
+        }
+
+        void add(boolean failed) {
+            if (count == outcomes.length) {
+                if (outcomes[next]) {
+                    failures--;
+                }
+            } else {
+                count++;
+            }
+            outcomes[next] = failed;
+            if (failed) {
+                failures++;
+            }
+            next = (next + 1) % outcomes.length;
+        }
+
+        void clear() {
+            next = 0;
+            count = 0;
+            failures = 0;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.darkyen.dave;
+
+/**
+ * Thrown instead of sending the request, when the circuit of its host is open, see {@link CircuitBreaker}.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class CircuitOpenException extends WebbException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String host;
+    private final long remainingMillis;
+
+    CircuitOpenException(String host, long remainingMillis) {
+        super("Circuit of " + host + " is open, request was not sent");
+        this.host = host;
+        this.remainingMillis = remainingMillis;
+    }
+
+    /** @return key of the host, like <code>https://example.com:8080</code> */
+    public String getHost() {
+        return host;
+    }
+
+    /** @return how many milliseconds will the circuit stay open, 0 if it is half-open and waits for the probes */
+    public long getRemainingMillis() {
+        return remainingMillis;
+    }
+}
@@ -0,0 +1,170 @@
+package com.darkyen.dave;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive limit of requests to a single host executed at the same time by {@link ExecutionStrategy.Async},
+ * see {@link ExecutionStrategy.Async#Async(int, int, ExecutionStrategy.Async.OverflowPolicy, int, ConcurrencyLimiter)}.
+ * <br>
+ * The limit of each host (scheme and authority, like <code>https://example.com:8080</code>) follows AIMD
+ * (additive increase, multiplicative decrease): each request which succeeds, while at least half of the limit is used,
+ * increases the limit by <code>1/limit</code>, so about by one per round trip. Each request which fails
+ * (like in {@link CircuitBreaker}), or which takes more than <code>rttTolerance</code> times the usual
+ * round trip time of the host, multiplies the limit by <code>backoffRatio</code>. The usual round trip time
+ * is a slowly moving average of successful requests, so it follows the changes of the traffic.
+ * <br>
+ * Hosts without requests for {@link #IDLE_TIMEOUT_NANOS} (or up to twice that long) are forgotten,
+ * they start again from the initial limit and an unknown round trip time.
+ * <br>
+ * This class is thread safe. If you need other behaviour, just extend this class.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ConcurrencyLimiter {
+
+    /** Weight of a new sample in the usual round trip time */
+    private static final double RTT_SMOOTHING = 0.05;
+    /** Hosts without requests for this long are forgotten */
+    static final long IDLE_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int initialLimit;
+    private final double backoffRatio;
+    private final double rttTolerance;
+
+    private final Map<String, HostLimit> hosts = new HashMap<String, HostLimit>();
+    /** {@link System#nanoTime()} when idle hosts were last forgotten */
+    private long lastForgotten = System.nanoTime();
+
+    /** Create limiter between 1 and 100 requests per host, starting at 10, see {@link #ConcurrencyLimiter(int, int, int, double, double)}. */
+    public ConcurrencyLimiter() {
+        this(1, 100, 10, 0.9, 2);
+    }
+
+    /**
+     * @param minLimit the limit never drops below this, at least 1
+     * @param maxLimit the limit never grows above this
+     * @param initialLimit limit of hosts without any requests yet
+     * @param backoffRatio by how much is the limit multiplied after a failed or slow request, between 0 and 1 (exclusive)
+     * @param rttTolerance how many times longer than usual can a request take, before it is considered slow, more than 1
+     */
+    public ConcurrencyLimiter(int minLimit, int maxLimit, int initialLimit, double backoffRatio, double rttTolerance) {
+        if (minLimit < 1) throw new IllegalArgumentException("minLimit must be at least 1");
+        if (maxLimit < minLimit) throw new IllegalArgumentException("maxLimit must be at least minLimit");
+        if (initialLimit < minLimit || initialLimit > maxLimit) throw new IllegalArgumentException("initialLimit must be between minLimit and maxLimit");
+        if (!(backoffRatio > 0 && backoffRatio < 1)) throw new IllegalArgumentException("backoffRatio must be in (0, 1)");
+        if (!(rttTolerance > 1)) throw new IllegalArgumentException("rttTolerance must be more than 1");
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.initialLimit = initialLimit;
+        this.backoffRatio = backoffRatio;
+        this.rttTolerance = rttTolerance;
+    }
+
+    /** @return how many requests to the host may be executed at the same time */
+    public synchronized int getLimit(String host) {
+        final HostLimit limit = hosts.get(host);
+        return limit == null ? initialLimit : (int) limit.limit;
+    }
+
+    /** @return usual round trip time of requests to the host in milliseconds, 0 if not known (idle hosts are forgotten) */
+    public synchronized double getRttMillis(String host) {
+        final HostLimit limit = hosts.get(host);
+        return limit == null ? 0 : limit.rtt / 1e6;
+    }
+
+    /** Called when a request to the host starts executing. */
+    synchronized void started(String host) {
+        HostLimit limit = hosts.get(host);
+        if (limit == null) {
+            limit = new HostLimit(initialLimit);
+            hosts.put(host, limit);
+        }
+        limit.inFlight++;
+    }
+
+    /**
+     * Called when a request started by {@link #started(String)} is executed.
+     * @param rttNanos how long did the request take
+     * @param failed whether the request failed, see {@link #isFailure(RetryManager, Response, WebbException)}
+     */
+    synchronized void completed(String host, long rttNanos, boolean failed) {
+        final HostLimit limit = hosts.get(host);
+        final boolean utilized = limit.inFlight * 2 >= limit.limit;
+        limit.inFlight--;
+
+        if (failed || (limit.rtt > 0 && rttNanos > rttTolerance * limit.rtt)) {
+            limit.limit = Math.max(minLimit, limit.limit * backoffRatio);
+        } else if (utilized) {
+            limit.limit = Math.min(maxLimit, limit.limit + 1 / limit.limit);
+        }
+        if (!failed) {
+            limit.rtt = limit.rtt == 0 ? rttNanos : limit.rtt * (1 - RTT_SMOOTHING) + rttNanos * RTT_SMOOTHING;
+        }
+        idle(limit, System.nanoTime());
+    }
+
+    /** Called when a request started by {@link #started(String)} was not sent, for example because it was cached. */
+    synchronized void skipped(String host) {
+        final HostLimit limit = hosts.get(host);
+        limit.inFlight--;
+        idle(limit, System.nanoTime());
+    }
+
+    private void idle(HostLimit limit, long now) {
+        if (limit.inFlight == 0) {
+            limit.idleSince = now;
+        }
+        forgetIdle(now);
+    }
+
+    /**
+     * Forget hosts without requests for {@link #IDLE_TIMEOUT_NANOS}, what was learned about them is no longer current
+     * and would only take memory. Hosts are checked at most once per the timeout.
+     * @param now {@link System#nanoTime()}
+     */
+    synchronized void forgetIdle(long now) {
+        if (now - lastForgotten < IDLE_TIMEOUT_NANOS) {
+            return;
+        }
+        lastForgotten = now;
+        final Iterator<HostLimit> iterator = hosts.values().iterator();
+        while (iterator.hasNext()) {
+            final HostLimit limit = iterator.next();
+            if (limit.inFlight == 0 && now - limit.idleSince >= IDLE_TIMEOUT_NANOS) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Decide whether the request has failed because of the host.
+     * Requests which were not sent, because of {@link CircuitOpenException}, are not passed here.
+     * @param response of the request, or null if it is retried
+     * @param exception thrown by the request, or null if it has not failed
+     */
+    protected boolean isFailure(RetryManager retryManager, Response<?> response, WebbException exception) {
+        if (exception != null) {
+            return exception.getCause() instanceof IOException || retryManager.isRecoverable(exception);
+        }
+        // No response means that the request is retried
+        return response == null || retryManager.isRetryUseful(response);
+    }
+
+    private static final class HostLimit {
+        double limit;
+        /** Usual round trip time in nanoseconds */
+        double rtt = 0;
+        int inFlight = 0;
+        /** {@link System#nanoTime()} when the last request completed, valid only when there are none in flight */
+        long idleSince;
+
+        private HostLimit(double limit) {
+            this.limit = limit;
+        }
+    }
+}
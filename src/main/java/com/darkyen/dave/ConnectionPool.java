@@ -0,0 +1,512 @@
+package com.darkyen.dave;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of persistent (keep-alive) connections, owned by {@link Webb} and used by its {@link Transport}.
+ * Reusing connections saves the TCP and TLS handshake of each request.
+ * <br>
+ * Limits the amount of connections (both in use and idle) per route (scheme, host and port) and in total.
+ * When a limit is reached, requests wait for a connection to be returned.
+ * Idle connections are closed after the idle timeout by a background evictor.
+ * <br>
+ * Used by {@link NioTransport}. {@link HttpURLConnectionTransport} reuses connections through the platform's
+ * keep-alive cache instead, which is configured by system properties <code>http.keepAlive</code> and <code>http.maxConnections</code>.
+ * <br>
+ * This class is thread safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ConnectionPool {
+
+    private final int maxPerRoute;
+    private final int maxTotal;
+    private final long idleTimeoutMillis;
+
+    private final Map<String, Route> routes = new HashMap<String, Route>();
+    /** Idle connections of all routes, least recently used first */
+    private final LinkedList<Idle> idle = new LinkedList<Idle>();
+    /** Leases which wait because of {@link #maxTotal}, in order */
+    private final LinkedList<Waiter<?>> totalWaiters = new LinkedList<Waiter<?>>();
+    private int total = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private ScheduledFuture<?> evictor;
+    private boolean shutdown = false;
+
+    /** Connection which can be kept in the pool. */
+    public interface Connection {
+        /** Close the connection. May be called from any thread. */
+        void close();
+    }
+
+    /**
+     * Receives the result of {@link #lease(String, LeaseCallback)}.
+     * @param <C> type of connections of the transport
+     */
+    public interface LeaseCallback<C extends Connection> {
+        /**
+         * Called once, when a connection for the route is available.
+         * Connection must be then returned through {@link #release(String, Connection, boolean)}.
+         * @param connection idle connection which can be reused, or null if a new connection should be opened
+         */
+        void leased(C connection);
+
+        /** Called instead of {@link #leased(Connection)}, when no connection became available in time. */
+        void timedOut();
+    }
+
+    /** Create pool with at most 16 connections per route, 256 in total and 60 seconds idle timeout. */
+    public ConnectionPool() {
+        this(16, 256, 60000);
+    }
+
+    /**
+     * @param maxPerRoute max amount of connections to a single route, at least 1
+     * @param maxTotal max amount of connections, at least 1
+     * @param idleTimeoutMillis after how long are idle connections closed, <code>&lt;= 0</code> to never keep idle connections
+     */
+    public ConnectionPool(int maxPerRoute, int maxTotal, long idleTimeoutMillis) {
+        if (maxPerRoute < 1) throw new IllegalArgumentException("maxPerRoute must be at least 1");
+        if (maxTotal < 1) throw new IllegalArgumentException("maxTotal must be at least 1");
+        this.maxPerRoute = maxPerRoute;
+        this.maxTotal = maxTotal;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /** @return how many times was an idle connection reused */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return how many times had a new connection to be opened */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return how many idle connections were closed because of the idle timeout or to make room for other routes */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** @return amount of idle connections */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /** @return amount of connections, both in use and idle */
+    public synchronized int getTotalCount() {
+        return total;
+    }
+
+    /**
+     * Obtain a connection for given route, wait for it as long as needed.
+     * @see #lease(String, long, LeaseCallback)
+     */
+    public <C extends Connection> void lease(String route, LeaseCallback<C> callback) {
+        lease(route, 0, callback);
+    }
+
+    /**
+     * Obtain a connection for given route. The callback is called when it is available, which may be immediately
+     * on the calling thread, or later, on the thread which releases some connection.
+     * @param route identifies the destination, connections are reused only for the same route
+     * @param timeoutMillis how long to wait when a limit is reached, before {@link LeaseCallback#timedOut()} is called
+     *                      (on a background thread), <code>&lt;= 0</code> to wait as long as needed
+     */
+    public <C extends Connection> void lease(String route, long timeoutMillis, LeaseCallback<C> callback) {
+        if (route == null) throw new NullPointerException("route");
+        if (callback == null) throw new NullPointerException("callback");
+
+        final Connection connection;
+        synchronized (this) {
+            final Route r = route(route);
+            final Idle idleConnection = r.idle.isEmpty() ? null : r.idle.removeLast();
+            if (idleConnection != null) {
+                idle.remove(idleConnection);
+                connection = idleConnection.connection;
+                hits++;
+            } else if (r.count >= maxPerRoute) {
+                final Waiter<C> waiter = new Waiter<C>(route, callback);
+                r.waiters.add(waiter);
+                scheduleTimeout(waiter, timeoutMillis);
+                return;
+            } else if (total >= maxTotal && !evictLeastRecentlyUsed()) {
+                final Waiter<C> waiter = new Waiter<C>(route, callback);
+                r.waiters.add(waiter);
+                totalWaiters.add(waiter);
+                scheduleTimeout(waiter, timeoutMillis);
+                return;
+            } else {
+                connection = null;
+                r.count++;
+                total++;
+                misses++;
+            }
+        }
+        @SuppressWarnings("unchecked")
+        final C leased = (C) connection;
+        callback.leased(leased);
+    }
+
+    /**
+     * Return the leased connection.
+     * @param connection which was leased, or null if opening a new connection failed
+     * @param reusable true if the connection can be reused for another request, false if the caller has closed it
+     */
+    public void release(String route, Connection connection, boolean reusable) {
+        if (route == null) throw new NullPointerException("route");
+        final Waiter<?> waiter;
+        final List<Connection> toClose = new ArrayList<Connection>(2);
+        synchronized (this) {
+            final Route r = route(route);
+            if (connection != null && reusable && !shutdown && idleTimeoutMillis > 0) {
+                waiter = pollWaiter(r);
+                if (waiter == null) {
+                    final Idle idleConnection = new Idle(route, connection, System.currentTimeMillis());
+                    r.idle.add(idleConnection);
+                    idle.add(idleConnection);
+                    startEvictor();
+                } else {
+                    waiter.connection = connection;
+                    hits++;
+                }
+            } else {
+                if (connection != null && reusable) {
+                    toClose.add(connection);
+                }
+                r.count--;
+                total--;
+                waiter = pollWaiterForNewConnection(r, toClose);
+            }
+            if (r.count == 0 && r.waiters.isEmpty()) {
+                routes.remove(route);
+            }
+        }
+
+        for (Connection c : toClose) {
+            c.close();
+        }
+        if (waiter != null) {
+            waiter.leased();
+        }
+    }
+
+    /**
+     * Remove idle connection from the pool, because it is no longer usable (for example, it was closed by the server).
+     * Does nothing if the connection is not idle in this pool (it might have been leased in the meantime).
+     */
+    public void remove(String route, Connection connection) {
+        final Waiter<?> waiter;
+        final List<Connection> toClose = new ArrayList<Connection>(1);
+        synchronized (this) {
+            final Route r = routes.get(route);
+            if (r == null) {
+                return;
+            }
+            Idle found = null;
+            for (Idle i : r.idle) {
+                if (i.connection == connection) {
+                    found = i;
+                    break;
+                }
+            }
+            if (found == null) {
+                return;
+            }
+            r.idle.remove(found);
+            idle.remove(found);
+            r.count--;
+            total--;
+            waiter = pollWaiterForNewConnection(r, toClose);
+            if (r.count == 0 && r.waiters.isEmpty()) {
+                routes.remove(route);
+            }
+        }
+        for (Connection c : toClose) {
+            c.close();
+        }
+        if (waiter != null) {
+            waiter.leased();
+        }
+    }
+
+    /** Close all idle connections. */
+    public void evictIdle() {
+        evict(Long.MAX_VALUE);
+    }
+
+    /** Close all idle connections and stop keeping new ones. Connections in use are closed when they are returned. */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            if (evictor != null) {
+                evictor.cancel(false);
+                evictor = null;
+            }
+        }
+        evictIdle();
+    }
+
+    /** Close connections which are idle for longer than the idle timeout (or all, for Long.MAX_VALUE). */
+    void evict(long now) {
+        final List<Connection> toClose = new ArrayList<Connection>();
+        final List<Waiter<?>> waiters = new ArrayList<Waiter<?>>();
+        synchronized (this) {
+            final Iterator<Idle> iterator = idle.iterator();
+            while (iterator.hasNext()) {
+                final Idle i = iterator.next();
+                if (now != Long.MAX_VALUE && now - i.since < idleTimeoutMillis) {
+                    // Rest is newer
+                    break;
+                }
+                iterator.remove();
+                final Route r = routes.get(i.route);
+                r.idle.remove(i);
+                r.count--;
+                total--;
+                evictions++;
+                toClose.add(i.connection);
+                final Waiter<?> waiter = pollWaiterForNewConnection(r, toClose);
+                if (waiter != null) {
+                    waiters.add(waiter);
+                }
+                if (r.count == 0 && r.waiters.isEmpty()) {
+                    routes.remove(i.route);
+                }
+            }
+            if (idle.isEmpty() && evictor != null) {
+                evictor.cancel(false);
+                evictor = null;
+            }
+        }
+        for (Connection c : toClose) {
+            c.close();
+        }
+        for (Waiter<?> waiter : waiters) {
+            waiter.leased();
+        }
+    }
+
+    private Route route(String route) {
+        Route r = routes.get(route);
+        if (r == null) {
+            r = new Route();
+            routes.put(route, r);
+        }
+        return r;
+    }
+
+    /** Close the least recently used idle connection (of any route) to make room for a new one. */
+    private boolean evictLeastRecentlyUsed() {
+        if (idle.isEmpty()) {
+            return false;
+        }
+        final Idle i = idle.removeFirst();
+        final Route r = routes.get(i.route);
+        r.idle.remove(i);
+        r.count--;
+        total--;
+        evictions++;
+        if (r.count == 0 && r.waiters.isEmpty()) {
+            routes.remove(i.route);
+        }
+        // Closing may take a while, don't do it in the lock. Connection is no longer reachable anyway.
+        closeLater(i.connection);
+        return true;
+    }
+
+    private void scheduleTimeout(final Waiter<?> waiter, long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return;
+        }
+        waiter.timeout = scheduler().schedule(new Runnable() {
+            public void run() {
+                timeout(waiter);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Give up waiting, unless the waiter has been served in the meantime. */
+    private void timeout(Waiter<?> waiter) {
+        synchronized (this) {
+            final Route r = routes.get(waiter.route);
+            if (r == null || !r.waiters.remove(waiter)) {
+                return;
+            }
+            totalWaiters.remove(waiter);
+            if (r.count == 0 && r.waiters.isEmpty()) {
+                routes.remove(waiter.route);
+            }
+        }
+        waiter.callback.timedOut();
+    }
+
+    /** Next waiter for the route, which gets the connection that was just returned. */
+    private Waiter<?> pollWaiter(Route r) {
+        final Waiter<?> waiter = r.waiters.poll();
+        if (waiter != null) {
+            totalWaiters.remove(waiter);
+        }
+        return waiter;
+    }
+
+    /**
+     * A slot of route r has been freed, so a new connection can be opened: either for route r, or, if r has
+     * no waiters, for some other route that waits because of {@link #maxTotal}.
+     * @param toClose idle connections which must be closed to make room
+     * @return waiter which can open a new connection (waiter's slot is already accounted for)
+     */
+    private Waiter<?> pollWaiterForNewConnection(Route r, List<Connection> toClose) {
+        Waiter<?> waiter = pollWaiter(r);
+        if (waiter == null) {
+            waiter = totalWaiters.poll();
+            if (waiter == null) {
+                return null;
+            }
+            final Route waiterRoute = routes.get(waiter.route);
+            waiterRoute.waiters.remove(waiter);
+            if (waiterRoute.count >= maxPerRoute) {
+                // Can't happen, waiter would be waiting for its own route
+                waiterRoute.waiters.addFirst(waiter);
+                return null;
+            }
+            r = waiterRoute;
+        }
+        if (total >= maxTotal) {
+            if (idle.isEmpty()) {
+                // Still full, keep waiting
+                r.waiters.addFirst(waiter);
+                totalWaiters.addFirst(waiter);
+                return null;
+            }
+            final Idle i = idle.removeFirst();
+            final Route idleRoute = routes.get(i.route);
+            idleRoute.idle.remove(i);
+            idleRoute.count--;
+            total--;
+            evictions++;
+            toClose.add(i.connection);
+        }
+        r.count++;
+        total++;
+        misses++;
+        return waiter;
+    }
+
+    private static void closeLater(final Connection connection) {
+        scheduler().execute(new Runnable() {
+            public void run() {
+                connection.close();
+            }
+        });
+    }
+
+    private void startEvictor() {
+        if (evictor != null) {
+            return;
+        }
+        final long period = Math.max(idleTimeoutMillis / 2, 100);
+        evictor = scheduler().scheduleWithFixedDelay(new Evictor(this), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static ScheduledExecutorService scheduler;
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "Webb - connection evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    /** Does not keep the pool alive, so that idle connections of unreachable pools can't leak. */
+    private static final class Evictor implements Runnable {
+        private final WeakReference<ConnectionPool> pool;
+
+        private Evictor(ConnectionPool pool) {
+            this.pool = new WeakReference<ConnectionPool>(pool);
+        }
+
+        public void run() {
+            final ConnectionPool pool = this.pool.get();
+            if (pool == null) {
+                throw new IllegalStateException("Pool is gone"); // Cancels the periodic execution
+            }
+            pool.evict(System.currentTimeMillis());
+        }
+    }
+
+    private static final class Route {
+        /** Amount of connections, leased and idle */
+        int count = 0;
+        /** Most recently used last */
+        final LinkedList<Idle> idle = new LinkedList<Idle>();
+        final LinkedList<Waiter<?>> waiters = new LinkedList<Waiter<?>>();
+    }
+
+    private static final class Idle {
+        final String route;
+        final Connection connection;
+        final long since;
+
+        private Idle(String route, Connection connection, long since) {
+            this.route = route;
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+
+    private static final class Waiter<C extends Connection> {
+        final String route;
+        final LeaseCallback<C> callback;
+        /** Connection handed to the waiter, null for a new one, always of the type of the route */
+        Connection connection;
+        /** Calls {@link #timeout(Waiter)}, null if the waiter waits as long as needed */
+        ScheduledFuture<?> timeout;
+
+        private Waiter(String route, LeaseCallback<C> callback) {
+            this.route = route;
+            this.callback = callback;
+        }
+
+        void leased() {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            @SuppressWarnings("unchecked")
+            final C leased = (C) connection;
+            callback.leased(leased);
+        }
+    }
+}
@@ -0,0 +1,889 @@
+package com.darkyen.dave;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent HTTP cache of responses in a directory, which survives restarts of the application,
+ * see {@link Webb#setDiskCache(DiskCache)}.
+ * <br>
+ * What is stored and when it is served follows the same rules as {@link ResponseCache}, but bodies are stored
+ * as they were received (decompressed) and translated on each hit, so one entry serves all translators.
+ * Only the last variant of each URI is kept, the values of the headers listed in its <code>Vary</code> are stored with it.
+ * When both caches are used, fresh responses from the disk are also put into the {@link ResponseCache}.
+ * Stale responses are revalidated like in the {@link ResponseCache}, if the cache revalidates,
+ * and the entry is rewritten with the updated headers, while its body is translated.
+ * <br>
+ * The directory contains:
+ * <ul>
+ *     <li>entry files (<code>*.entry</code>) with the URI, status, headers and Vary values, followed by the body.
+ *     Bodies are written into a temporary file while the translator reads them, which is renamed when the body is complete.</li>
+ *     <li><code>journal</code>, append-only record of stored and removed entries. It decides which entries exist,
+ *     so entry files which are not in it, for example after a crash, are deleted when the cache is opened.
+ *     It is compacted when it grows too long.</li>
+ *     <li><code>index</code>, memory-mapped file of fixed-size records with the size and the time of the last use of each entry,
+ *     so that hits update the least recently used order without any I/O calls.</li>
+ * </ul>
+ * Total size of the entry files is bounded, least recently used entries are evicted first.
+ * Only one DiskCache may use the directory at a time.
+ * <br>
+ * This class is thread safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class DiskCache implements Closeable {
+
+    private static final int ENTRY_MAGIC = 0x57656231;
+    private static final int INDEX_MAGIC = 0x57656249;
+    private static final int INDEX_HEADER_SIZE = 8;
+    /** Hash of the URI, size, last access time, live flag and padding */
+    private static final int RECORD_SIZE = 32;
+    private static final int MIN_INDEX_CAPACITY = 64;
+    private static final int MIN_JOURNAL_COMPACTION = 1000;
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxSize;
+    private final boolean revalidate;
+
+    private final File journalFile;
+    private Writer journal;
+    private int journalLength = 0;
+
+    private final File indexFile;
+    private RandomAccessFile indexAccess;
+    private MappedByteBuffer index;
+    private int indexCapacity = 0;
+    private int recordCount = 0;
+    private final ArrayList<Integer> freeRecords = new ArrayList<Integer>();
+
+    /** By hash of the URI, in access order, the first is the least recently used */
+    private final LinkedHashMap<Long, Slot> slots = new LinkedHashMap<Long, Slot>(16, 0.75f, true);
+    private long size = 0;
+    private boolean closed = false;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long storeCount = 0;
+    private long evictionCount = 0;
+    private long revalidationCount = 0;
+
+    /** Open the cache which does not revalidate stale responses, see {@link #DiskCache(File, long, boolean)}. */
+    public DiskCache(File directory, long maxSize) throws IOException {
+        this(directory, maxSize, false);
+    }
+
+    /**
+     * Open the cache in the directory, create it if it does not exist.
+     * Damaged and incomplete entries are deleted, and least recently used entries are evicted, if there is too many of them.
+     * @param directory used only by this cache
+     * @param maxSize maximum total size of the entry files in bytes
+     * @param revalidate true to store responses with <code>ETag</code> or <code>Last-Modified</code>
+     *                   and to revalidate them when they are stale, see {@link ResponseCache}
+     */
+    public DiskCache(File directory, long maxSize, boolean revalidate) throws IOException {
+        if (directory == null) throw new NullPointerException("directory");
+        if (maxSize < 0) throw new IllegalArgumentException("maxSize must not be negative");
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.revalidate = revalidate;
+        this.journalFile = new File(directory, "journal");
+        this.indexFile = new File(directory, "index");
+
+        //noinspection ResultOfMethodCallIgnored
+        directory.mkdirs();
+        if (!directory.isDirectory()) {
+            throw new IOException("Can't create " + directory);
+        }
+        open();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public boolean isRevalidating() {
+        return revalidate;
+    }
+
+    /** @return current total size of the entry files */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return slots.size();
+    }
+
+    /** @return how many requests were served from the cache */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /** @return how many cacheable requests had to go to the network */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /** @return how many responses were stored */
+    public synchronized long getStoreCount() {
+        return storeCount;
+    }
+
+    /** @return how many entries were evicted to keep the size under the maximum */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /** @return how many stale responses were confirmed by the server to be still valid */
+    public synchronized long getRevalidationCount() {
+        return revalidationCount;
+    }
+
+    /** Remove the entry of the URI */
+    public synchronized void invalidate(String uri) {
+        final Slot slot = slots.get(hash(uri));
+        if (slot != null && !closed) {
+            remove(slot);
+            slots.remove(slot.hash);
+        }
+    }
+
+    /** Remove all entries, statistics are kept */
+    public synchronized void clear() {
+        if (closed) {
+            return;
+        }
+        for (Slot slot : slots.values()) {
+            remove(slot);
+        }
+        slots.clear();
+    }
+
+    /** Write everything to the disk and release the files. The cache does nothing afterwards. */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            journal.close();
+        } finally {
+            index.force();
+            index = null;
+            indexAccess.close();
+        }
+    }
+
+    /**
+     * @param uri resolved URI of the request
+     * @param headers resolved headers of the request
+     * @return response with fresh cached body, translated by the translator, or null if the request must go to the network
+     */
+    <T> Response<T> get(Request request, String uri, Map<String, String> headers, ResponseTranslator<T> translator) {
+        final long hash = hash(uri);
+        if (ResponseCache.bypasses(headers)) {
+            synchronized (this) {
+                missCount++;
+            }
+            return null;
+        }
+
+        final Stored stored = open(hash, uri, headers);
+        final long now = System.currentTimeMillis();
+        final long age = stored == null ? 0 : stored.initialAge + Math.max(0, now - stored.responseTime);
+        if (stored == null || !ResponseCache.isFresh(stored.freshnessLifetime, age, ResponseCache.headerValue(headers, "Cache-Control"))) {
+            synchronized (this) {
+                missCount++;
+            }
+            if (stored != null) {
+                WebbUtils.closeQuietly(stored.in);
+            }
+            return null;
+        }
+
+        try {
+            final Response<T> response = new Response<T>(request, stored.statusCode, stored.statusMessage, stored.statusLine,
+                    ResponseCache.withAge(stored.headers, age));
+            response.cached = true;
+            response.body = translate(response, translator, stored.hasBody ? stored.in : null);
+
+            synchronized (this) {
+                hitCount++;
+                final Slot slot = slots.get(hash);
+                if (slot != null && !closed) {
+                    index.putLong(recordOffset(slot.record) + 16, now);
+                }
+            }
+            return response;
+        } finally {
+            WebbUtils.closeQuietly(stored.in);
+        }
+    }
+
+    /**
+     * @param uri resolved URI of the request
+     * @param headers resolved headers of the request
+     * @return conditional copy of the request, which revalidates the stored response, or null if there is none to revalidate
+     */
+    Request revalidation(Request request, String uri, Map<String, String> headers) {
+        if (!revalidate || !ResponseCache.canRevalidate(headers)) {
+            return null;
+        }
+        final Stored stored = open(hash(uri), uri, headers);
+        if (stored == null) {
+            return null;
+        }
+        WebbUtils.closeQuietly(stored.in);
+        return ResponseCache.hasValidator(stored.headers) ? ResponseCache.conditional(request, stored.headers) : null;
+    }
+
+    /**
+     * Rewrite the stored response, which was revalidated by the conditional request, with updated headers.
+     * @param uri resolved URI of the request
+     * @param headers resolved headers of the request
+     * @param notModified 304 response to the conditional request from {@link #revalidation(Request, String, Map)}
+     * @return the stored response with updated headers and the body translated by the translator, or null if it is not stored anymore
+     */
+    <T> Response<T> revalidated(String uri, Map<String, String> headers, ResponseTranslator<T> translator, Response<?> notModified) {
+        final Stored stored = open(hash(uri), uri, headers);
+        if (stored == null) {
+            return null;
+        }
+        try {
+            final Response<T> response = new Response<T>(notModified.getRequest().revalidates, stored.statusCode, stored.statusMessage,
+                    stored.statusLine, ResponseCache.updateHeaders(stored.headers, notModified.getHeaders()));
+            response.cached = true;
+            response.receivedNanos = notModified.receivedNanos;
+            final InputStream body = stored.hasBody ? stored.in : null;
+            final Store store = store(uri, headers, response, body);
+            if (store == null) {
+                response.body = translate(response, translator, body);
+            } else {
+                boolean decoded = false;
+                try {
+                    response.body = translate(response, translator, body == null ? null : store);
+                    decoded = true;
+                } finally {
+                    store.finish(decoded);
+                }
+            }
+
+            synchronized (this) {
+                revalidationCount++;
+            }
+            return response;
+        } finally {
+            WebbUtils.closeQuietly(stored.in);
+        }
+    }
+
+    private static <T> T translate(Response<T> response, ResponseTranslator<T> translator, InputStream body) {
+        try {
+            return body != null ? translator.decode(response, body) : translator.decodeEmptyBody(response);
+        } catch (Exception e) {
+            final WebbException exception = e instanceof WebbException ? (WebbException) e : new WebbException(e);
+            exception.response = response;
+            throw exception;
+        }
+    }
+
+    /**
+     * Open the entry file and read its metadata.
+     * @return metadata with the stream of the entry positioned at the body, which must be closed,
+     * or null if there is no valid entry for the URI and the request headers
+     */
+    private Stored open(long hash, String uri, Map<String, String> headers) {
+        synchronized (this) {
+            if (closed || !slots.containsKey(hash)) {
+                return null;
+            }
+        }
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(entryFile(hash)));
+            final Stored stored = Stored.read(in);
+            if (!uri.equals(stored.uri) || !ResponseCache.varyMatches(stored.vary, headers) || !ResponseCache.isShared(headers, stored.headers)) {
+                in.close();
+                return null;
+            }
+            stored.in = in;
+            return stored;
+        } catch (FileNotFoundException e) {
+            // Evicted in the meantime
+            return null;
+        } catch (IOException e) {
+            WebbUtils.closeQuietly(in);
+            // Damaged
+            synchronized (this) {
+                if (!closed && slots.containsKey(hash)) {
+                    remove(slots.remove(hash));
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Start storing the response, if it is cacheable.
+     * @param uri resolved URI of the request
+     * @param headers resolved headers of the request
+     * @param body of the response, may be null if there is no body
+     * @return stream which passes the body through and stores it, {@link Store#finish(boolean)} must be called after
+     * the body is read, or null if the response is not stored
+     */
+    Store store(String uri, Map<String, String> headers, Response<?> response, InputStream body) {
+        final long now = System.currentTimeMillis();
+        final long freshnessLifetime = ResponseCache.freshnessLifetime(response, now);
+        synchronized (this) {
+            if (closed) {
+                return null;
+            }
+        }
+        if (!ResponseCache.isStorable(headers, response)
+                || (freshnessLifetime <= 0 && !(revalidate && ResponseCache.hasValidator(response.getHeaders())))) {
+            return null;
+        }
+
+        File temp = null;
+        try {
+            final long hash = hash(uri);
+            temp = File.createTempFile(Long.toHexString(hash), TEMP_SUFFIX, directory);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            final Stored stored = new Stored(uri, response, ResponseCache.varyValues(headers, response),
+                    now, ResponseCache.initialAge(response, now), freshnessLifetime, body != null);
+            try {
+                stored.write(out);
+            } catch (IOException e) {
+                WebbUtils.closeQuietly(out);
+                throw e;
+            }
+            return new Store(body, hash, temp, out, out.size(), response.getContentLength());
+        } catch (IOException e) {
+            // Cache is only an optimization, the response is served anyway
+            if (temp != null) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+            return null;
+        }
+    }
+
+    private synchronized void commit(long hash, File temp) throws IOException {
+        if (closed) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        final long length = temp.length();
+        if (length > maxSize) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        FileTranslator.replace(entryFile(hash), temp);
+
+        Slot slot = slots.get(hash);
+        if (slot == null) {
+            slot = new Slot(hash, allocateRecord());
+            slots.put(hash, slot);
+        } else {
+            size -= slot.size;
+        }
+        slot.size = length;
+        size += length;
+        writeRecord(slot, System.currentTimeMillis());
+        appendJournal("PUT " + Long.toHexString(hash) + " " + length);
+        storeCount++;
+
+        trim();
+        if (journalLength > Math.max(MIN_JOURNAL_COMPACTION, slots.size() * 4)) {
+            compactJournal();
+        }
+    }
+
+    /** Evict the least recently used entries, until the size is under the maximum */
+    private void trim() {
+        final Iterator<Slot> iterator = slots.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            remove(iterator.next());
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    /** Remove the entry of the slot, except from {@link #slots} */
+    private void remove(Slot slot) {
+        try {
+            appendJournal("DEL " + Long.toHexString(slot.hash));
+        } catch (IOException ignored) {
+            // Entry file is deleted anyway, missing file is the same as no entry
+        }
+        //noinspection ResultOfMethodCallIgnored
+        entryFile(slot.hash).delete();
+        index.putInt(recordOffset(slot.record) + 24, 0);
+        freeRecords.add(slot.record);
+        size -= slot.size;
+    }
+
+    private void open() throws IOException {
+        // Incomplete entries of the last run
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+
+        final Map<Long, Long> sizes = readJournal();
+        final Map<Long, Long> accessTimes = readIndex();
+
+        // Entry files which are not complete or not in the journal are not valid
+        final List<Slot> valid = new ArrayList<Slot>();
+        final HashMap<Slot, Long> lastAccess = new HashMap<Slot, Long>();
+        for (Map.Entry<Long, Long> entry : sizes.entrySet()) {
+            final File file = entryFile(entry.getKey());
+            if (file.length() == entry.getValue()) {
+                final Slot slot = new Slot(entry.getKey(), valid.size());
+                slot.size = entry.getValue();
+                valid.add(slot);
+                final Long accessTime = accessTimes.get(entry.getKey());
+                lastAccess.put(slot, accessTime != null ? accessTime : file.lastModified());
+            }
+        }
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (name.endsWith(ENTRY_SUFFIX)) {
+                    final long hash;
+                    try {
+                        hash = parseHex(name.substring(0, name.length() - ENTRY_SUFFIX.length()));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    final Long entrySize = sizes.get(hash);
+                    if (entrySize == null || file.length() != entrySize) {
+                        //noinspection ResultOfMethodCallIgnored
+                        file.delete();
+                    }
+                }
+            }
+        }
+
+        Collections.sort(valid, new Comparator<Slot>() {
+            public int compare(Slot a, Slot b) {
+                final long accessA = lastAccess.get(a);
+                final long accessB = lastAccess.get(b);
+                return accessA < accessB ? -1 : (accessA == accessB ? 0 : 1);
+            }
+        });
+
+        // New compact index, the old one is not needed anymore
+        //noinspection ResultOfMethodCallIgnored
+        indexFile.delete();
+        indexAccess = new RandomAccessFile(indexFile, "rw");
+        mapIndex(Math.max(MIN_INDEX_CAPACITY, valid.size() * 2));
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(4, RECORD_SIZE);
+        for (Slot slot : valid) {
+            slot.record = recordCount++;
+            writeRecord(slot, lastAccess.get(slot));
+            slots.put(slot.hash, slot);
+            size += slot.size;
+        }
+
+        compactJournal();
+        trim();
+    }
+
+    /** @return size of each entry in the journal, by hash */
+    private Map<Long, Long> readJournal() {
+        final Map<Long, Long> sizes = new HashMap<Long, Long>();
+        if (!journalFile.isFile()) {
+            return sizes;
+        }
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] parts = line.split(" ");
+                    try {
+                        if (parts.length == 3 && "PUT".equals(parts[0])) {
+                            sizes.put(parseHex(parts[1]), Long.parseLong(parts[2]));
+                        } else if (parts.length == 2 && "DEL".equals(parts[0])) {
+                            sizes.remove(parseHex(parts[1]));
+                        }
+                    } catch (NumberFormatException ignored) {
+                        // Line which was not completely written
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ignored) {
+            // Entries up to the damage are kept
+        }
+        return sizes;
+    }
+
+    /** @return time of the last access of each entry in the index, by hash */
+    private Map<Long, Long> readIndex() {
+        final Map<Long, Long> accessTimes = new HashMap<Long, Long>();
+        if (!indexFile.isFile()) {
+            return accessTimes;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != RECORD_SIZE) {
+                    return accessTimes;
+                }
+                final long records = (indexFile.length() - INDEX_HEADER_SIZE) / RECORD_SIZE;
+                for (long i = 0; i < records; i++) {
+                    final long hash = in.readLong();
+                    in.readLong();
+                    final long accessTime = in.readLong();
+                    final int live = in.readInt();
+                    in.readInt();
+                    if (live == 1) {
+                        accessTimes.put(hash, accessTime);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ignored) {
+            // Order of the entries is only a hint
+        }
+        return accessTimes;
+    }
+
+    /** Rewrite the journal with only the current entries */
+    private void compactJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        final File temp = new File(directory, "journal" + TEMP_SUFFIX);
+        final Writer writer = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(temp)), "UTF-8");
+        try {
+            for (Slot slot : slots.values()) {
+                writer.write("PUT " + Long.toHexString(slot.hash) + " " + slot.size + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        FileTranslator.replace(journalFile, temp);
+        journal = new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8");
+        journalLength = slots.size();
+    }
+
+    private void appendJournal(String line) throws IOException {
+        journal.write(line);
+        journal.write('\n');
+        journal.flush();
+        journalLength++;
+    }
+
+    private int allocateRecord() throws IOException {
+        if (!freeRecords.isEmpty()) {
+            return freeRecords.remove(freeRecords.size() - 1);
+        }
+        if (recordCount == indexCapacity) {
+            mapIndex(indexCapacity * 2);
+        }
+        return recordCount++;
+    }
+
+    private void mapIndex(int capacity) throws IOException {
+        index = indexAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        indexCapacity = capacity;
+    }
+
+    private void writeRecord(Slot slot, long lastAccess) {
+        final int offset = recordOffset(slot.record);
+        index.putLong(offset, slot.hash);
+        index.putLong(offset + 8, slot.size);
+        index.putLong(offset + 16, lastAccess);
+        index.putInt(offset + 24, 1);
+    }
+
+    private static int recordOffset(int record) {
+        return INDEX_HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private File entryFile(long hash) {
+        return new File(directory, Long.toHexString(hash) + ENTRY_SUFFIX);
+    }
+
+    /** @return 64-bit FNV-1a hash of the URI */
+    static long hash(String uri) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < uri.length(); i++) {
+            hash ^= uri.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** @return unsigned hexadecimal number, as written by {@link Long#toHexString(long)} */
+    static long parseHex(String hex) {
+        if (hex.length() == 0 || hex.length() > 16) {
+            throw new NumberFormatException(hex);
+        }
+        long value = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            final int digit = Character.digit(hex.charAt(i), 16);
+            if (digit == -1) {
+                throw new NumberFormatException(hex);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static final class Slot {
+        final long hash;
+        int record;
+        long size;
+
+        private Slot(long hash, int record) {
+            this.hash = hash;
+            this.record = record;
+        }
+    }
+
+    /** Metadata of an entry, at the beginning of its file */
+    private static final class Stored {
+        final String uri;
+        final int statusCode;
+        final String statusMessage;
+        final String statusLine;
+        final Map<String, List<String>> headers;
+        /** See {@link ResponseCache#varyValues(Map, Response)} */
+        final Map<String, String> vary;
+        final long responseTime;
+        final long initialAge;
+        final long freshnessLifetime;
+        final boolean hasBody;
+        /** Stream of the entry file, at the beginning of the body, when the entry is being read */
+        InputStream in;
+
+        private Stored(String uri, int statusCode, String statusMessage, String statusLine, Map<String, List<String>> headers,
+                       Map<String, String> vary, long responseTime, long initialAge, long freshnessLifetime, boolean hasBody) {
+            this.uri = uri;
+            this.statusCode = statusCode;
+            this.statusMessage = statusMessage;
+            this.statusLine = statusLine;
+            this.headers = headers;
+            this.vary = vary;
+            this.responseTime = responseTime;
+            this.initialAge = initialAge;
+            this.freshnessLifetime = freshnessLifetime;
+            this.hasBody = hasBody;
+        }
+
+        private Stored(String uri, Response<?> response, Map<String, String> vary,
+                       long responseTime, long initialAge, long freshnessLifetime, boolean hasBody) {
+            this(uri, response.getStatusCode(), response.getStatusMessage(), response.getStatusLine(), response.getHeaders(),
+                    vary, responseTime, initialAge, freshnessLifetime, hasBody);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(ENTRY_MAGIC);
+            out.writeUTF(uri);
+            out.writeInt(statusCode);
+            writeString(out, statusMessage);
+            writeString(out, statusLine);
+            out.writeInt(headers.size());
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                writeString(out, header.getKey());
+                out.writeInt(header.getValue().size());
+                for (String value : header.getValue()) {
+                    writeString(out, value);
+                }
+            }
+            if (vary == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(vary.size());
+                for (Map.Entry<String, String> entry : vary.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    writeString(out, entry.getValue());
+                }
+            }
+            out.writeLong(responseTime);
+            out.writeLong(initialAge);
+            out.writeLong(freshnessLifetime);
+            out.writeBoolean(hasBody);
+        }
+
+        /** Read the metadata, the stream is then at the beginning of the body */
+        static Stored read(InputStream stream) throws IOException {
+            final DataInputStream in = new DataInputStream(stream);
+            if (in.readInt() != ENTRY_MAGIC) {
+                throw new IOException("Not a cache entry");
+            }
+            final String uri = in.readUTF();
+            final int statusCode = in.readInt();
+            final String statusMessage = readString(in);
+            final String statusLine = readString(in);
+            final int headerCount = in.readInt();
+            final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+            for (int i = 0; i < headerCount; i++) {
+                final String name = readString(in);
+                final String[] values = new String[in.readInt()];
+                for (int v = 0; v < values.length; v++) {
+                    values[v] = readString(in);
+                }
+                headers.put(name, Collections.unmodifiableList(Arrays.asList(values)));
+            }
+            final int varyCount = in.readInt();
+            Map<String, String> vary = null;
+            if (varyCount >= 0) {
+                vary = new LinkedHashMap<String, String>();
+                for (int i = 0; i < varyCount; i++) {
+                    vary.put(in.readUTF(), readString(in));
+                }
+            }
+            return new Stored(uri, statusCode, statusMessage, statusLine, Collections.unmodifiableMap(headers), vary,
+                    in.readLong(), in.readLong(), in.readLong(), in.readBoolean());
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+
+    /** Body stream, which writes everything that is read from it into a new entry */
+    final class Store extends FilterInputStream {
+        private final long hash;
+        private final File temp;
+        private final DataOutputStream out;
+        private final long metadataLength;
+        private final long contentLength;
+        private long bodyLength = 0;
+        private boolean complete;
+        private boolean failed = false;
+
+        private Store(InputStream in, long hash, File temp, DataOutputStream out, long metadataLength, long contentLength) {
+            super(in);
+            this.hash = hash;
+            this.temp = temp;
+            this.out = out;
+            this.metadataLength = metadataLength;
+            this.contentLength = contentLength;
+            this.complete = in == null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int result = in.read();
+            if (result == -1) {
+                complete = true;
+            } else if (!failed) {
+                try {
+                    out.write(result);
+                    stored(1);
+                } catch (IOException e) {
+                    failed = true;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int result = in.read(b, off, len);
+            if (result == -1) {
+                complete = true;
+            } else if (!failed && result > 0) {
+                try {
+                    out.write(b, off, result);
+                    stored(result);
+                } catch (IOException e) {
+                    failed = true;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes would be missing in the entry
+            failed = true;
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void stored(int count) {
+            bodyLength += count;
+            if (metadataLength + bodyLength > maxSize) {
+                // Would be evicted right away
+                failed = true;
+            }
+        }
+
+        /**
+         * Add the entry to the cache, if the whole body was read, or discard it.
+         * @param success true if the body was translated without a failure
+         */
+        void finish(boolean success) {
+            WebbUtils.closeQuietly(out);
+            if (success && !failed && (complete || bodyLength == contentLength)) {
+                try {
+                    commit(hash, temp);
+                    return;
+                } catch (IOException ignored) {
+                    // Cache is only an optimization
+                }
+            }
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package com.darkyen.dave;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Interface for (potentially) offloading the work to off-thread.
@@ -16,7 +21,7 @@ public interface ExecutionStrategy {
         public <T> void execute(Request request, ResponseTranslator<T> translator, ResponseCallback<T> callback) {
             final Response<T> response;
             try {
-                response = request.execute(translator);
+                response = request.executeFor(translator, callback);
             } catch (WebbException e) {
                 callback.failure(e);
                 return;
@@ -27,7 +32,30 @@ public interface ExecutionStrategy {
     };
 
     /**
-     * Primitive thread pool implementation of asynchronous execution strategy
+     * Strategy which does not block any thread while the request is in progress, if the {@link Transport}
+     * supports it (its exchanges are {@link Transport.AsyncExchange}), otherwise the request is executed synchronously.
+     * <br>
+     * Callbacks are called on threads of the transport, so they should not block.
+     * Retries with exponential backoff are scheduled, no thread waits for them.
+     */
+    ExecutionStrategy NON_BLOCKING_EXECUTION_STRATEGY = new ExecutionStrategy() {
+
+        public <T> void execute(Request request, ResponseTranslator<T> translator, ResponseCallback<T> callback) {
+            request.executeNonBlocking(translator, callback);
+        }
+
+    };
+
+    /**
+     * Primitive thread pool implementation of asynchronous execution strategy.
+     * <br>
+     * Waiting requests are grouped by their host (scheme and authority) and hosts take turns in getting
+     * a free thread, so that requests to one slow host can't starve requests to other hosts.
+     * Amount of requests executed concurrently for a single host can be limited as well,
+     * either by a fixed number, or adaptively, by a {@link ConcurrencyLimiter}.
+     * <br>
+     * Threads don't wait for retries: when a request should be retried, it is queued again after the backoff delay,
+     * so that requests which wait for their retry don't hold threads needed by other requests.
      */
     @SuppressWarnings("WeakerAccess")
     class Async implements ExecutionStrategy {
@@ -35,10 +63,51 @@ public interface ExecutionStrategy {
         private final AsyncThread[] threads;
         private volatile boolean shutdown = false;
 
-        private final BlockingQueue<AsyncTask> taskQueue = new LinkedBlockingQueue<AsyncTask>();
+        private final TaskQueue taskQueue;
+        private final OverflowPolicy overflowPolicy;
+        private final ConcurrencyLimiter limiter;
 
+        /** Create strategy with unbounded task queue. */
         public Async(int threadCount) {
+            this(threadCount, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+        }
+
+        /**
+         * Create strategy without limit on concurrent requests per host.
+         * @see #Async(int, int, OverflowPolicy, int)
+         */
+        public Async(int threadCount, int queueCapacity, OverflowPolicy overflowPolicy) {
+            this(threadCount, queueCapacity, overflowPolicy, threadCount);
+        }
+
+        /**
+         * @param threadCount amount of threads which execute the requests
+         * @param queueCapacity how many requests can wait for execution, before overflowPolicy is applied
+         * @param overflowPolicy what to do with requests over the queueCapacity
+         * @param maxConcurrencyPerHost how many requests to the same host can be executed at the same time,
+         *                              other requests to that host wait in the queue
+         */
+        public Async(int threadCount, int queueCapacity, OverflowPolicy overflowPolicy, int maxConcurrencyPerHost) {
+            this(threadCount, queueCapacity, overflowPolicy, maxConcurrencyPerHost, null);
+        }
+
+        /**
+         * @param threadCount amount of threads which execute the requests
+         * @param queueCapacity how many requests can wait for execution, before overflowPolicy is applied
+         * @param overflowPolicy what to do with requests over the queueCapacity
+         * @param maxConcurrencyPerHost how many requests to the same host can be executed at the same time at most,
+         *                              other requests to that host wait in the queue
+         * @param limiter which adapts the amount of requests to the same host executed at the same time
+         *                (up to maxConcurrencyPerHost) to their round trip times and failures, or null for no adaptive limit
+         */
+        public Async(int threadCount, int queueCapacity, OverflowPolicy overflowPolicy, int maxConcurrencyPerHost, ConcurrencyLimiter limiter) {
             if (threadCount < 1) throw new IllegalArgumentException("threadCount must be >= 1");
+            if (queueCapacity < 1) throw new IllegalArgumentException("queueCapacity must be >= 1");
+            if (overflowPolicy == null) throw new NullPointerException("overflowPolicy");
+            if (maxConcurrencyPerHost < 1) throw new IllegalArgumentException("maxConcurrencyPerHost must be >= 1");
+            this.taskQueue = new TaskQueue(queueCapacity, maxConcurrencyPerHost, limiter);
+            this.overflowPolicy = overflowPolicy;
+            this.limiter = limiter;
             this.threads = new AsyncThread[threadCount];
             for (int i = 0; i < threadCount; i++) {
                 this.threads[i] = new AsyncThread(i + 1);
@@ -51,7 +120,50 @@ public interface ExecutionStrategy {
                 return;
             }
 
-            taskQueue.add(new AsyncTask<T>(request, translator, callback));
+            final AsyncTask<T> task = new AsyncTask<T>(request, translator, callback);
+            if (taskQueue.offer(task)) {
+                return;
+            }
+
+            switch (overflowPolicy) {
+                case BLOCK:
+                    try {
+                        taskQueue.put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        callFailure(callback, new WebbException(e));
+                    }
+                    break;
+                case REJECT:
+                    callFailure(callback, new WebbException("ExecutionStrategy.Async queue is full, request rejected"));
+                    break;
+                case DROP_OLDEST:
+                    while (!taskQueue.offer(task)) {
+                        final AsyncTask<?> oldest = taskQueue.pollOldest();
+                        if (oldest != null) {
+                            callFailure(oldest.callback, new WebbException("ExecutionStrategy.Async queue is full, request dropped"));
+                        }
+                    }
+                    break;
+                case CALLER_RUNS:
+                    runTask(task);
+                    break;
+            }
+        }
+
+        /**
+         * @return amount of requests which wait for execution
+         */
+        public int getQueueDepth() {
+            return taskQueue.size();
+        }
+
+        /**
+         * @param host scheme and authority, like <code>https://example.com:8080</code>
+         * @return how many requests to the host can be executed at the same time now
+         */
+        public int getConcurrencyLimit(String host) {
+            return taskQueue.limit(host);
         }
 
         public void shutdown(boolean waitForFinish) {
@@ -90,15 +202,295 @@ public interface ExecutionStrategy {
             throwable.printStackTrace(System.err);
         }
 
+        private <T> void runTask(final AsyncTask<T> task) {
+            final Response<T> response;
+            final long start = System.nanoTime();
+            if (limiter != null) {
+                limiter.started(task.host);
+            }
+            try {
+                response = task.request.executeAttempt(task.translator, task.callback, task.tries, new Runnable() {
+                    public void run() {
+                        retry(task);
+                    }
+                });
+            } catch (WebbException e) {
+                if (limiter != null) {
+                    if (e instanceof CircuitOpenException) {
+                        // Not sent at all
+                        limiter.skipped(task.host);
+                    } else {
+                        limiter.completed(task.host, System.nanoTime() - start, limiter.isFailure(task.request.getRetryManager(), null, e));
+                    }
+                }
+                callFailure(task.callback, e);
+                return;
+            }
+            if (limiter != null) {
+                if (response == null) {
+                    // Retried
+                    limiter.completed(task.host, System.nanoTime() - start, limiter.isFailure(task.request.getRetryManager(), null, null));
+                } else if (response.receivedNanos == 0) {
+                    // From the cache
+                    limiter.skipped(task.host);
+                } else {
+                    // Only until the headers, reading the body is not a round trip
+                    limiter.completed(task.host, response.receivedNanos - start, limiter.isFailure(task.request.getRetryManager(), response, null));
+                }
+            }
+            if (response != null) {
+                callSuccess(task.callback, response);// Do not catch exceptions in callback
+            }
+        }
+
+        /** Called by the retry scheduler after the backoff delay */
+        private void retry(AsyncTask<?> task) {
+            if (shutdown) {
+                callFailure(task.callback, new WebbException("ExecutionStrategy.Async is in shutdown, request was not retried"));
+                return;
+            }
+            task.tries++;
+            // The task was already accepted, so it does not count against the queue capacity
+            taskQueue.requeue(task);
+        }
+
+        /** What to do with requests that do not fit into the task queue */
+        public enum OverflowPolicy {
+            /** Block the thread which submits the request, until there is free space in the queue */
+            BLOCK,
+            /** Fail the request with {@link WebbException}, through the {@link ResponseCallback#failure(WebbException)} */
+            REJECT,
+            /** Fail the oldest request in the queue (as in {@link #REJECT}) to make space for the new one */
+            DROP_OLDEST,
+            /** Execute the request synchronously, on the thread which submits it */
+            CALLER_RUNS
+        }
+
         private static final class AsyncTask <T> {
             public final Request request;
             public final ResponseTranslator<T> translator;
             public final ResponseCallback<T> callback;
+            public final String host;
+            /** Order in which the tasks were queued */
+            long sequence;
+            /** How many times was the request already tried */
+            int tries = 0;
 
             private AsyncTask(Request request, ResponseTranslator<T> translator, ResponseCallback<T> callback) {
                 this.request = request;
                 this.translator = translator;
                 this.callback = callback;
+                this.host = request.getHostKey();
+            }
+        }
+
+        /** Waiting tasks of a single host */
+        private static final class HostQueue {
+            public final String host;
+            public final LinkedList<AsyncTask<?>> tasks = new LinkedList<AsyncTask<?>>();
+            /** Amount of tasks of this host which are being executed */
+            public int running = 0;
+            /** Whether this host is in {@link TaskQueue#ready} */
+            public boolean ready = false;
+
+            private HostQueue(String host) {
+                this.host = host;
+            }
+        }
+
+        /**
+         * Blocking queue of tasks, which hands out tasks of different hosts in round-robin fashion,
+         * and does not hand out tasks of hosts which are at their concurrency limit.
+         */
+        private static final class TaskQueue {
+            private final int capacity;
+            private final int maxConcurrencyPerHost;
+            private final ConcurrencyLimiter limiter;
+
+            private final ReentrantLock lock = new ReentrantLock();
+            private final Condition notEmpty = lock.newCondition();
+            private final Condition notFull = lock.newCondition();
+
+            private final Map<String, HostQueue> hosts = new HashMap<String, HostQueue>();
+            /** Hosts which have waiting tasks and can run more of them, in the order in which they get a turn */
+            private final LinkedList<HostQueue> ready = new LinkedList<HostQueue>();
+            private int size = 0;
+            private long sequence = 0;
+
+            private TaskQueue(int capacity, int maxConcurrencyPerHost, ConcurrencyLimiter limiter) {
+                this.capacity = capacity;
+                this.maxConcurrencyPerHost = maxConcurrencyPerHost;
+                this.limiter = limiter;
+            }
+
+            /** @return how many tasks of the host can be executed at the same time */
+            public int limit(String host) {
+                return limiter == null ? maxConcurrencyPerHost : Math.min(maxConcurrencyPerHost, limiter.getLimit(host));
+            }
+
+            /** Add the task, if there is space for it. */
+            public boolean offer(AsyncTask<?> task) {
+                lock.lock();
+                try {
+                    if (size >= capacity) {
+                        return false;
+                    }
+                    enqueue(task);
+                    return true;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /** Add the task, wait for space if needed. */
+            public void put(AsyncTask<?> task) throws InterruptedException {
+                lock.lockInterruptibly();
+                try {
+                    while (size >= capacity) {
+                        notFull.await();
+                    }
+                    enqueue(task);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /** Add the task, even if the queue is full. */
+            public void requeue(AsyncTask<?> task) {
+                lock.lock();
+                try {
+                    enqueue(task);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /** Remove the task which waits for the longest time, or return null if there is none. */
+            public AsyncTask<?> pollOldest() {
+                lock.lock();
+                try {
+                    HostQueue oldest = null;
+                    for (HostQueue host : hosts.values()) {
+                        if (!host.tasks.isEmpty() && (oldest == null || host.tasks.getFirst().sequence < oldest.tasks.getFirst().sequence)) {
+                            oldest = host;
+                        }
+                    }
+                    if (oldest == null) {
+                        return null;
+                    }
+
+                    final AsyncTask<?> task = oldest.tasks.removeFirst();
+                    size--;
+                    notFull.signal();
+                    if (oldest.tasks.isEmpty()) {
+                        if (oldest.ready) {
+                            oldest.ready = false;
+                            ready.remove(oldest);
+                        }
+                        if (oldest.running == 0) {
+                            hosts.remove(oldest.host);
+                        }
+                    }
+                    return task;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /** Wait for a task which can be executed and return it. Call {@link #finished(AsyncTask)} after it is executed. */
+            public AsyncTask<?> take() throws InterruptedException {
+                lock.lockInterruptibly();
+                try {
+                    AsyncTask<?> task;
+                    while ((task = dispatch()) == null) {
+                        notEmpty.await();
+                    }
+                    return task;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /** Like {@link #take()}, but return null instead of waiting. */
+            public AsyncTask<?> poll() {
+                lock.lock();
+                try {
+                    return dispatch();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /** Must be called for each task returned by {@link #take()} or {@link #poll()}, after it is executed. */
+            public void finished(AsyncTask<?> task) {
+                lock.lock();
+                try {
+                    final HostQueue host = hosts.get(task.host);
+                    host.running--;
+                    if (!host.tasks.isEmpty()) {
+                        // Adaptive limit may have dropped in the meantime
+                        if (!host.ready && host.running < limit(host.host)) {
+                            host.ready = true;
+                            ready.addLast(host);
+                            notEmpty.signal();
+                        }
+                    } else if (host.running == 0) {
+                        hosts.remove(host.host);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            public int size() {
+                lock.lock();
+                try {
+                    return size;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            private void enqueue(AsyncTask<?> task) {
+                HostQueue host = hosts.get(task.host);
+                if (host == null) {
+                    host = new HostQueue(task.host);
+                    hosts.put(task.host, host);
+                }
+                task.sequence = sequence++;
+                host.tasks.addLast(task);
+                size++;
+
+                if (host.running < limit(host.host)) {
+                    if (!host.ready) {
+                        host.ready = true;
+                        ready.addLast(host);
+                    }
+                    notEmpty.signal();
+                }
+            }
+
+            private AsyncTask<?> dispatch() {
+                final HostQueue host = ready.poll();
+                if (host == null) {
+                    return null;
+                }
+                final AsyncTask<?> task = host.tasks.removeFirst();
+                size--;
+                host.running++;
+                notFull.signal();
+
+                if (!host.tasks.isEmpty() && host.running < limit(host.host)) {
+                    // Back of the line
+                    ready.addLast(host);
+                } else {
+                    host.ready = false;
+                }
+                if (!ready.isEmpty()) {
+                    // There is more work, wake up another thread
+                    notEmpty.signal();
+                }
+                return task;
             }
         }
 
@@ -116,7 +508,7 @@ public interface ExecutionStrategy {
             public void run() {
                 while (keepRunning) {
                     try {
-                        final AsyncTask task;
+                        final AsyncTask<?> task;
 
                         if (shutdown) {
                             task = taskQueue.poll();
@@ -131,14 +523,11 @@ public interface ExecutionStrategy {
                             }
                         }
 
-                        final Response response;
                         try {
-                            response = task.request.execute(task.translator);
-                        } catch (WebbException e) {
-                            callFailure(task.callback, e);
-                            continue;
+                            runTask(task);
+                        } finally {
+                            taskQueue.finished(task);
                         }
-                        callSuccess(task.callback, response);// Do not catch exceptions in callback
                     } catch (Throwable ex) {
                         System.err.println("ExecutionStrategy.Async - failure inside "+getName());
                         ex.printStackTrace(System.err);
@@ -152,4 +541,129 @@ public interface ExecutionStrategy {
             }
         }
     }
+
+    /**
+     * Execution strategy which runs each request on its own virtual thread.
+     * <br>
+     * Virtual threads are cheap to create and to block, so (unlike with {@link Async}) having thousands of
+     * slow requests in flight does not require thousands of platform threads.
+     * Virtual threads are available since Java 21, use {@link #isSupported()} to check whether this strategy
+     * can be used on the current platform.
+     */
+    @SuppressWarnings("WeakerAccess")
+    class VirtualThreads implements ExecutionStrategy {
+
+        private final ThreadFactory threadFactory;
+        private final Semaphore permits;
+        private volatile boolean shutdown = false;
+
+        /** Create strategy without any concurrency limit. */
+        public VirtualThreads() {
+            this(0);
+        }
+
+        /**
+         * @param maxConcurrency how many requests can be executed at the same time, 0 for no limit.
+         *                       Requests over the limit wait (in their own virtual thread) until some of the
+         *                       running requests complete.
+         * @throws UnsupportedOperationException if virtual threads are not supported, see {@link #isSupported()}
+         */
+        public VirtualThreads(int maxConcurrency) {
+            if (maxConcurrency < 0) throw new IllegalArgumentException("maxConcurrency must be >= 0");
+            this.threadFactory = createVirtualThreadFactory();
+            this.permits = maxConcurrency == 0 ? null : new Semaphore(maxConcurrency, true);
+        }
+
+        /** @return true if the platform supports virtual threads and this strategy can be created */
+        public static boolean isSupported() {
+            try {
+                createVirtualThreadFactory();
+                return true;
+            } catch (UnsupportedOperationException e) {
+                return false;
+            }
+        }
+
+        private static ThreadFactory createVirtualThreadFactory() {
+            // Through reflection, because this is Java 21 API
+            try {
+                final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "VirtualThreads - ", 1L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (Exception e) {
+                throw new UnsupportedOperationException("Virtual threads are not supported", e);
+            }
+        }
+
+        public <T> void execute(final Request request, final ResponseTranslator<T> translator, final ResponseCallback<T> callback) {
+            if (shutdown) {
+                callFailure(callback, new WebbException("ExecutionStrategy.VirtualThreads is in shutdown and does not accept more work"));
+                return;
+            }
+
+            threadFactory.newThread(new Runnable() {
+                public void run() {
+                    try {
+                        final Response<T> response;
+                        try {
+                            response = executeWithPermit(request, translator, callback);
+                        } catch (WebbException e) {
+                            callFailure(callback, e);
+                            return;
+                        }
+                        callSuccess(callback, response);// Do not catch exceptions in callback
+                    } catch (Throwable ex) {
+                        System.err.println("ExecutionStrategy.VirtualThreads - failure inside "+Thread.currentThread().getName());
+                        ex.printStackTrace(System.err);
+                    }
+                }
+            }).start();
+        }
+
+        private <T> Response<T> executeWithPermit(Request request, ResponseTranslator<T> translator, ResponseCallback<T> callback) {
+            if (permits == null) {
+                return request.executeFor(translator, callback);
+            }
+
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                throw new WebbException(e);
+            }
+            try {
+                return request.executeFor(translator, callback);
+            } finally {
+                permits.release();
+            }
+        }
+
+        /** Stop accepting new requests. Requests which were already submitted will still complete. */
+        public void shutdown() {
+            this.shutdown = true;
+        }
+
+        /** For overriding */
+        protected <T> void callSuccess(ResponseCallback<T> callback, Response<T> response) {
+            try {
+                callback.success(response);
+            } catch (Throwable e) {
+                callbackFailure(e);
+            }
+        }
+
+        /** For overriding */
+        protected <T> void callFailure(ResponseCallback<T> callback, WebbException response) {
+            try {
+                callback.failure(response);
+            } catch (Throwable e) {
+                callbackFailure(e);
+            }
+        }
+
+        protected void callbackFailure(Throwable throwable) {
+            System.err.println("ExecutionStrategy.VirtualThreads - callbackFailure");
+            throwable.printStackTrace(System.err);
+        }
+    }
 }
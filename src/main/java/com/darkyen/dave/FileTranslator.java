@@ -0,0 +1,163 @@
+package com.darkyen.dave;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Translator which saves the body into a file, see {@link Request#executeFile(File)}.
+ * <br>
+ * The body is written into a temporary file in the same directory first, through a {@link FileChannel}
+ * and a large direct buffer, and renamed to the target only when it is complete,
+ * so that the target never contains a partial download. Existing target is replaced.
+ * When the length of the body is known, the temporary file is preallocated to that length
+ * and a body of different length fails the request.
+ * <br>
+ * Unsuccessful (non-2xx) responses are not saved, the target is not touched and the translated body is null.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class FileTranslator implements ResponseTranslator<File> {
+
+    private static final int DIRECT_BUFFER_SIZE = 1024 * 1024;
+    /** Direct buffers are expensive to allocate, so each thread keeps one */
+    private static final ThreadLocal<ByteBuffer> DIRECT_BUFFERS = new ThreadLocal<ByteBuffer>();
+
+    private final File target;
+    private final boolean sync;
+
+    /** Create translator which saves the body to the target, without waiting for it to reach the storage device. */
+    public FileTranslator(File target) {
+        this(target, false);
+    }
+
+    /**
+     * @param target file to which the body is saved
+     * @param sync true to force the content to the storage device before the file is renamed to the target,
+     *             so that it is not lost when the system crashes, at the cost of waiting for it
+     */
+    public FileTranslator(File target, boolean sync) {
+        if (target == null) throw new NullPointerException("target");
+        this.target = target;
+        this.sync = sync;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    public boolean isSync() {
+        return sync;
+    }
+
+    public File decode(Response response, InputStream in) throws Exception {
+        if (!response.isSuccess()) {
+            return null;
+        }
+        return save(in, response.getContentLength(), response.getBufferPool());
+    }
+
+    public File decodeEmptyBody(Response response) throws Exception {
+        if (!response.isSuccess()) {
+            return null;
+        }
+        return save(null, 0, BufferPool.DEFAULT);
+    }
+
+    private File save(InputStream in, long length, BufferPool bufferPool) throws IOException {
+        final File temp = createTemp(target);
+        boolean saved = false;
+        try {
+            final RandomAccessFile file = new RandomAccessFile(temp, "rw");
+            try {
+                final FileChannel channel = file.getChannel();
+                if (length > 0) {
+                    file.setLength(length);
+                }
+                if (in != null) {
+                    final long written = write(in, channel, 0, bufferPool);
+                    if (length >= 0 && written != length) {
+                        throw new IOException("Body ended after " + written + " bytes instead of " + length);
+                    }
+                }
+                if (sync) {
+                    channel.force(true);
+                }
+            } finally {
+                file.close();
+            }
+
+            replace(target, temp);
+            saved = true;
+            return target;
+        } finally {
+            if (!saved) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        }
+    }
+
+    /** @return new empty file in the directory of the target, into which the target can be downloaded */
+    static File createTemp(File target) throws IOException {
+        return File.createTempFile(target.getName() + ".webb", ".part", target.getAbsoluteFile().getParentFile());
+    }
+
+    /** Replace the target with the temporary file, atomically where the platform allows it. */
+    static void replace(File target, File temp) throws IOException {
+        if (!temp.renameTo(target)) {
+            // Some platforms don't rename over existing files
+            if (!target.delete() || !temp.renameTo(target)) {
+                throw new IOException("Can't rename " + temp + " to " + target);
+            }
+        }
+    }
+
+    /**
+     * Write the whole stream into the channel, from the position on. The position of the channel is not used,
+     * so multiple threads can write different parts of the same file at once.
+     * @return number of written bytes
+     */
+    static long write(InputStream in, FileChannel channel, long position, BufferPool bufferPool) throws IOException {
+        ByteBuffer buffer = DIRECT_BUFFERS.get();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+        } else {
+            DIRECT_BUFFERS.set(null);
+        }
+        final byte[] bytes = bufferPool.takeBytes();
+        try {
+            long written = 0;
+            int read;
+            while ((read = in.read(bytes)) != -1) {
+                int offset = 0;
+                while (read > 0) {
+                    if (!buffer.hasRemaining()) {
+                        flush(buffer, channel, position + written - buffer.position());
+                    }
+                    final int count = Math.min(read, buffer.remaining());
+                    buffer.put(bytes, offset, count);
+                    offset += count;
+                    read -= count;
+                    written += count;
+                }
+            }
+            flush(buffer, channel, position + written - buffer.position());
+            return written;
+        } finally {
+            bufferPool.giveBytes(bytes);
+            buffer.clear();
+            DIRECT_BUFFERS.set(buffer);
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+    }
+}
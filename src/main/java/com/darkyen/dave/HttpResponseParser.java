@@ -0,0 +1,336 @@
+package com.darkyen.dave;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Incremental parser of HTTP/1.1 responses, used by {@link NioTransport}.
+ * Data is fed as it arrives through {@link #parse(ByteBuffer, BodySink)}, in pieces of any size.
+ */
+final class HttpResponseParser {
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_HEADER_COUNT = 1024;
+
+    private static final int STATUS_LINE = 0;
+    private static final int HEADERS = 1;
+    private static final int BODY_FIXED = 2;
+    private static final int BODY_UNTIL_CLOSE = 3;
+    private static final int CHUNK_SIZE = 4;
+    private static final int CHUNK_DATA = 5;
+    private static final int CHUNK_DATA_END = 6;
+    private static final int TRAILERS = 7;
+    private static final int DONE = 8;
+
+    private final boolean headRequest;
+
+    private int state = STATUS_LINE;
+    private final StringBuilder line = new StringBuilder(128);
+    private boolean lineCR = false;
+    private long remaining;
+
+    private String statusLine;
+    private int statusCode;
+    private String statusMessage;
+    private boolean http10;
+    private Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+    private int headerCount;
+    private boolean headersComplete = false;
+
+    /** Receives the decoded (de-chunked) body of the response. */
+    interface BodySink {
+        /** Consume all remaining bytes of the buffer. */
+        void body(ByteBuffer data) throws IOException;
+    }
+
+    /** @param headRequest true if the response is to a HEAD request, which means that it has no body */
+    HttpResponseParser(boolean headRequest) {
+        this.headRequest = headRequest;
+    }
+
+    /**
+     * Parse the available data.
+     * Stops after the end of the response, remaining data (if any) stay in the buffer.
+     * @return true if the whole response has been parsed
+     */
+    boolean parse(ByteBuffer in, BodySink sink) throws IOException {
+        while (state != DONE && in.hasRemaining()) {
+            switch (state) {
+                case BODY_FIXED:
+                case CHUNK_DATA: {
+                    final int length = (int) Math.min(remaining, in.remaining());
+                    body(in, length, sink);
+                    remaining -= length;
+                    if (remaining == 0) {
+                        state = state == BODY_FIXED ? DONE : CHUNK_DATA_END;
+                    }
+                    break;
+                }
+                case BODY_UNTIL_CLOSE:
+                    body(in, in.remaining(), sink);
+                    break;
+                default:
+                    if (readLine(in)) {
+                        final String line = this.line.toString();
+                        this.line.setLength(0);
+                        parseLine(line);
+                    }
+            }
+        }
+        return state == DONE;
+    }
+
+    private static void body(ByteBuffer in, int length, BodySink sink) throws IOException {
+        final int limit = in.limit();
+        in.limit(in.position() + length);
+        sink.body(in);
+        in.position(in.limit());
+        in.limit(limit);
+    }
+
+    /** @return true if whole line has been read into {@link #line} */
+    private boolean readLine(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            final char c = (char) (in.get() & 0xFF);
+            if (c == '\n') {
+                lineCR = false;
+                return true;
+            }
+            if (lineCR) {
+                line.append('\r');
+            }
+            lineCR = c == '\r';
+            if (!lineCR) {
+                if (line.length() >= MAX_LINE_LENGTH) {
+                    throw new ProtocolException("Response line too long");
+                }
+                line.append(c);
+            }
+        }
+        return false;
+    }
+
+    private void parseLine(String line) throws IOException {
+        switch (state) {
+            case STATUS_LINE:
+                if (line.length() == 0) {
+                    // Tolerate empty lines before the status line
+                    return;
+                }
+                parseStatusLine(line);
+                state = HEADERS;
+                break;
+            case HEADERS:
+                if (line.length() == 0) {
+                    headersDone();
+                } else {
+                    parseHeader(line);
+                }
+                break;
+            case CHUNK_SIZE: {
+                int end = line.indexOf(';');
+                if (end == -1) {
+                    end = line.length();
+                }
+                final long size;
+                try {
+                    size = Long.parseLong(line.substring(0, end).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid chunk size: " + line);
+                }
+                if (size < 0) {
+                    throw new ProtocolException("Invalid chunk size: " + line);
+                }
+                if (size == 0) {
+                    state = TRAILERS;
+                } else {
+                    remaining = size;
+                    state = CHUNK_DATA;
+                }
+                break;
+            }
+            case CHUNK_DATA_END:
+                if (line.length() != 0) {
+                    throw new ProtocolException("Chunk not terminated by CRLF");
+                }
+                state = CHUNK_SIZE;
+                break;
+            case TRAILERS:
+                if (line.length() == 0) {
+                    state = DONE;
+                }
+                // Trailer fields are ignored
+                break;
+            default:
+                throw new IllegalStateException("Unexpected state " + state);
+        }
+    }
+
+    private void parseStatusLine(String line) throws IOException {
+        // HTTP/1.1 200 OK
+        if (!line.startsWith("HTTP/")) {
+            throw new ProtocolException("Invalid status line: " + line);
+        }
+        final int codeStart = line.indexOf(' ');
+        if (codeStart == -1) {
+            throw new ProtocolException("Invalid status line: " + line);
+        }
+        int codeEnd = line.indexOf(' ', codeStart + 1);
+        if (codeEnd == -1) {
+            codeEnd = line.length();
+        }
+        try {
+            statusCode = Integer.parseInt(line.substring(codeStart + 1, codeEnd));
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid status line: " + line);
+        }
+        statusMessage = codeEnd < line.length() ? line.substring(codeEnd + 1) : "";
+        statusLine = line;
+        http10 = line.startsWith("HTTP/1.0");
+    }
+
+    private void parseHeader(String line) throws IOException {
+        if (++headerCount > MAX_HEADER_COUNT) {
+            throw new ProtocolException("Too many headers");
+        }
+        final int colon = line.indexOf(':');
+        if (colon <= 0) {
+            throw new ProtocolException("Invalid header: " + line);
+        }
+        final String name = line.substring(0, colon).trim();
+        final String value = line.substring(colon + 1).trim();
+        List<String> values = headers.get(name);
+        if (values == null) {
+            values = new ArrayList<String>(1);
+            headers.put(name, values);
+        }
+        values.add(value);
+    }
+
+    private void headersDone() throws IOException {
+        if (statusCode >= 100 && statusCode < 200 && statusCode != 101) {
+            // Interim response, the real one follows
+            headers = new LinkedHashMap<String, List<String>>();
+            headerCount = 0;
+            state = STATUS_LINE;
+            return;
+        }
+        headersComplete = true;
+
+        if (headRequest || statusCode == 204 || statusCode == 304 || statusCode == 101) {
+            state = DONE;
+            return;
+        }
+
+        final String transferEncoding = getHeader("Transfer-Encoding");
+        if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ENGLISH).endsWith("chunked")) {
+            state = CHUNK_SIZE;
+            return;
+        }
+
+        final String contentLength = getHeader("Content-Length");
+        if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+            if (remaining < 0) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+            state = remaining == 0 ? DONE : BODY_FIXED;
+            return;
+        }
+
+        state = BODY_UNTIL_CLOSE;
+    }
+
+    /**
+     * Called when the server closed the connection.
+     * @throws IOException if the response is not complete
+     */
+    void endOfStream() throws IOException {
+        if (state == BODY_UNTIL_CLOSE) {
+            state = DONE;
+        } else if (state != DONE) {
+            throw new IOException(headersComplete ? "Unexpected end of response body" : "Unexpected end of stream");
+        }
+    }
+
+    /** @return true when status line and headers of the final response have been parsed */
+    boolean isHeadersComplete() {
+        return headersComplete;
+    }
+
+    boolean isDone() {
+        return state == DONE;
+    }
+
+    /** @return true if the connection can be used for another request after this response is done */
+    boolean isKeepAlive() {
+        if (state != DONE || statusCode == 101) {
+            return false;
+        }
+        final String connection = getHeader("Connection");
+        if (connection != null) {
+            final String lowerCase = connection.toLowerCase(Locale.ENGLISH);
+            if (lowerCase.contains("close")) {
+                return false;
+            }
+            if (lowerCase.contains("keep-alive")) {
+                return true;
+            }
+        }
+        return !http10;
+    }
+
+    /** @return length of the body as declared by the server or -1 if not known */
+    long getContentLength() {
+        if (getHeader("Transfer-Encoding") != null) {
+            return -1;
+        }
+        final String contentLength = getHeader("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    String getStatusLine() {
+        return statusLine;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    String getStatusMessage() {
+        return statusMessage;
+    }
+
+    Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+
+    /** @return last value of header with given name (case insensitive) or null */
+    String getHeader(String name) {
+        String result = null;
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey())) {
+                final List<String> values = entry.getValue();
+                result = values.get(values.size() - 1);
+            }
+        }
+        return result;
+    }
+}
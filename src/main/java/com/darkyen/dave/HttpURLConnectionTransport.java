@@ -0,0 +1,180 @@
+package com.darkyen.dave;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Default {@link Transport}, which uses the platform's {@link HttpURLConnection}.
+ * <br>
+ * Connections are kept alive and reused by the platform's own cache, {@link Webb#getConnectionPool()} is not used.
+ * The cache can be configured through system properties <code>http.keepAlive</code> and <code>http.maxConnections</code>.
+ */
+@SuppressWarnings("WeakerAccess")
+public class HttpURLConnectionTransport implements Transport {
+
+    public Exchange open(TransportRequest request) throws Exception {
+        final URLConnection connection = new URL(request.getUri()).openConnection();
+        return new URLConnectionExchange(request, connection);
+    }
+
+    private static final class URLConnectionExchange implements Exchange {
+
+        private final TransportRequest request;
+        private final URLConnection connection;
+        private final HttpURLConnection httpConnection;
+
+        private int statusCode;
+        private String statusMessage;
+        private InputStream body;
+
+        private URLConnectionExchange(TransportRequest request, URLConnection connection) {
+            this.request = request;
+            this.connection = connection;
+            this.httpConnection = connection instanceof HttpURLConnection ? (HttpURLConnection) connection : null;
+        }
+
+        public void execute() throws Exception {
+            prepareSslConnection();
+            if (httpConnection != null) {
+                httpConnection.setRequestMethod(request.getMethod().name());
+                httpConnection.setInstanceFollowRedirects(request.isFollowRedirects());
+            }
+            connection.setUseCaches(request.isUseCaches());
+            connection.setConnectTimeout(Math.max(request.getConnectTimeout(), 0));
+            connection.setReadTimeout(Math.max(request.getReadTimeout(), 0));
+            if (request.getIfModifiedSince() != 0) {
+                connection.setIfModifiedSince(request.getIfModifiedSince());
+            }
+
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                WebbUtils.addRequestProperty(connection, header.getKey(), header.getValue());
+            }
+
+            final Body body = request.getBody();
+            if (body != null) {
+                if (httpConnection != null && !body.isInMemory()) {
+                    setStreamingMode(body.getLength());
+                }
+                // We don't need to setFixedLengthStreamingMode for in-memory bodies,
+                // because we already know that given data will fit into internal buffers - we already have it in memory!
+                connection.setDoOutput(true);
+                writeBody(body);
+            }
+            connection.connect();
+
+            if (httpConnection != null) {
+                statusCode = httpConnection.getResponseCode();
+                statusMessage = httpConnection.getResponseMessage();
+            } else {
+                statusCode = 200;
+                statusMessage = "Non-http connection";
+            }
+        }
+
+        private void setStreamingMode(long length) {
+            boolean lengthSet = false;
+
+            // - 8 just in case, values too close to close to MAX_VALUE may be buggy
+            if (length > 0 && length <= Integer.MAX_VALUE - 8) {
+                // This is fine, we can set this always
+                httpConnection.setFixedLengthStreamingMode((int)length);
+                lengthSet = true;
+            } else if (length > 0) {
+                // This should be fine on newer implementations...
+                try {
+                    //noinspection Since15
+                    httpConnection.setFixedLengthStreamingMode(length);
+                    lengthSet = true;
+                } catch (NoSuchMethodError ignored) {
+                    // ... and this is not a new implementation
+                }
+            }
+
+            if (!lengthSet) {
+                // Length can't be set normally, send it in parts
+                httpConnection.setChunkedStreamingMode(-1); // use default chunk size
+            }
+        }
+
+        private void writeBody(Body body) throws Exception {
+            // Android StrictMode might complain about not closing the connection:
+            // "E/StrictMode﹕ A resource was acquired at attached stack trace but never released"
+            // It seems like some kind of bug in special devices (e.g. 4.0.4/Sony) but does not
+            // happen e.g. on 4.4.2/Moto G.
+            // Closing the stream in the try block might help sometimes (it's intermittently),
+            // but I don't want to deal with the IOException which can be thrown in close().
+            OutputStream os = null;
+            try {
+                os = connection.getOutputStream();
+                body.writeTo(os);
+                os.flush();
+            } finally {
+                if (os != null) {
+                    try { os.close(); } catch (Exception ignored) {}
+                }
+            }
+        }
+
+        private void prepareSslConnection() {
+            if (connection instanceof HttpsURLConnection) {
+                HttpsURLConnection sslConnection = (HttpsURLConnection) connection;
+                if (request.getHostnameVerifier() != null) {
+                    sslConnection.setHostnameVerifier(request.getHostnameVerifier());
+                }
+                if (request.getSSLSocketFactory() != null) {
+                    sslConnection.setSSLSocketFactory(request.getSSLSocketFactory());
+                }
+            }
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getStatusMessage() {
+            return statusMessage;
+        }
+
+        public String getStatusLine() {
+            return connection.getHeaderField(null);
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return connection.getHeaderFields();
+        }
+
+        public InputStream getBody() throws Exception {
+            if (statusCode >= 200 && statusCode < 300) {
+                body = connection.getInputStream();
+            } else if (httpConnection != null) {
+                body = httpConnection.getErrorStream();
+                if (body == null) {
+                    body = connection.getInputStream();
+                }
+            }
+            return body;
+        }
+
+        public void close() {
+            if (body != null) {
+                // Closing the stream (instead of disconnecting) lets the platform keep the connection alive,
+                // if the response has been read completely
+                WebbUtils.closeQuietly(body);
+            } else {
+                abort();
+            }
+        }
+
+        public void abort() {
+            if (httpConnection != null) {
+                try { httpConnection.disconnect(); } catch (Exception ignored) {}
+            }
+        }
+    }
+}
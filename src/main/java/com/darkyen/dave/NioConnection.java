@@ -0,0 +1,490 @@
+package com.darkyen.dave;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking connection to a server, plain or through TLS, used by {@link NioTransport}.
+ * <br>
+ * All methods (except {@link #close()}) must be called from the thread of its {@link NioLoop},
+ * the same thread is used to notify the {@link Listener}.
+ */
+final class NioConnection implements NioLoop.Handler, ConnectionPool.Connection {
+
+    private static final int PLAIN_BUFFER_SIZE = 16 * 1024;
+    /** TLS only: size of file regions, which are mapped into memory at once */
+    private static final int MAPPED_REGION_SIZE = 4 * 1024 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /** Notified about events of the connection. */
+    interface Listener {
+        /** Connection has been established (including TLS handshake) and data can be written. */
+        void connected() throws Exception;
+
+        /** All data given to {@link #write(ByteBuffer)} or {@link #transfer(FileChannel, long, long)} have been written. */
+        void written() throws Exception;
+
+        /** Data has been received, must be consumed completely. */
+        void received(ByteBuffer data) throws Exception;
+
+        /** Server closed the connection. Connection is closed after this. */
+        void closed() throws Exception;
+
+        /** Connection failed and has been closed. */
+        void failed(Exception exception);
+    }
+
+    final NioLoop loop;
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final String host;
+    private final HostnameVerifier hostnameVerifier;
+
+    private SelectionKey key;
+    private Listener listener;
+
+    /** Data read from the channel, in write mode */
+    private ByteBuffer netIn;
+    /** TLS only: data to be written to the channel, in read mode */
+    private ByteBuffer netOut;
+    /** TLS only: decrypted data, in write mode */
+    private ByteBuffer appIn;
+    /** Data given to {@link #write(ByteBuffer)}, which has not been written yet, or null */
+    private ByteBuffer appOut;
+    /** File given to {@link #transfer(FileChannel, long, long)}, which has not been written whole yet, or null */
+    private FileChannel fileOut;
+    private long filePosition, fileEnd;
+
+    private boolean connecting = true;
+    private boolean handshaking;
+    private boolean readPaused;
+    private boolean closed;
+    private boolean processing;
+    private boolean processAgain;
+
+    /**
+     * @param engine for TLS connections, null for plain connections
+     * @param hostnameVerifier to verify the host of TLS connections after the handshake, null if the engine verifies it
+     */
+    NioConnection(NioLoop loop, SSLEngine engine, String host, HostnameVerifier hostnameVerifier) throws IOException {
+        this.loop = loop;
+        this.engine = engine;
+        this.host = host;
+        this.hostnameVerifier = hostnameVerifier;
+        this.channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        if (engine == null) {
+            netIn = ByteBuffer.allocate(PLAIN_BUFFER_SIZE);
+        } else {
+            engine.setUseClientMode(true);
+            netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            netOut.flip();
+            appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        }
+    }
+
+    /** Start connecting, listener is notified when done. */
+    void connect(InetSocketAddress address, Listener listener) throws Exception {
+        this.listener = listener;
+        key = channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+        if (channel.connect(address)) {
+            connected();
+        }
+    }
+
+    /** Change the listener, to which the events are delivered. */
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** @return true if the connection was closed, locally or by the server */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Write the data to the server, {@link Listener#written()} is called when done.
+     * The buffer must not be modified until then. Only one write may be pending.
+     */
+    void write(ByteBuffer data) throws Exception {
+        if (appOut != null || fileOut != null) {
+            throw new IllegalStateException("Write already pending");
+        }
+        appOut = data;
+        process();
+    }
+
+    /**
+     * Write a region of the file to the server, {@link Listener#written()} is called when done.
+     * Plain connections send it through {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+     * so that it does not pass through the heap at all, TLS connections encrypt it from regions mapped into memory.
+     * Only one write may be pending.
+     */
+    void transfer(FileChannel file, long position, long count) throws Exception {
+        if (appOut != null || fileOut != null) {
+            throw new IllegalStateException("Write already pending");
+        }
+        fileOut = file;
+        filePosition = position;
+        fileEnd = position + count;
+        if (engine != null) {
+            appOut = nextFileRegion();
+        }
+        process();
+    }
+
+    /** TLS only: map next region of the {@link #fileOut} */
+    private ByteBuffer nextFileRegion() throws IOException {
+        final long size = Math.min(MAPPED_REGION_SIZE, fileEnd - filePosition);
+        if (filePosition + size > fileOut.size()) {
+            throw new EOFException("File is shorter than expected");
+        }
+        final ByteBuffer region = fileOut.map(FileChannel.MapMode.READ_ONLY, filePosition, size);
+        filePosition += size;
+        return region;
+    }
+
+    /** Stop or resume reading from the server, for example when the received data can't be consumed fast enough. */
+    void setReadPaused(boolean paused) throws Exception {
+        if (readPaused == paused) {
+            return;
+        }
+        readPaused = paused;
+        if (!paused) {
+            process();
+        } else {
+            updateInterest();
+        }
+    }
+
+    /** Close the connection. The listener is not notified. May be called from any thread. */
+    public void close() {
+        if (!loop.inLoop()) {
+            try {
+                loop.execute(new Runnable() {
+                    public void run() {
+                        close();
+                    }
+                });
+            } catch (IllegalStateException ignored) {
+                // Loop has been shut down, which closes all connections
+            }
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        if (engine != null && !connecting && !handshaking) {
+            try {
+                // Attempt to be nice, but don't wait for anything
+                engine.closeOutbound();
+                final ByteBuffer closeNotify = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                engine.wrap(EMPTY, closeNotify);
+                closeNotify.flip();
+                channel.write(closeNotify);
+            } catch (Exception ignored) {
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public void ready(SelectionKey key) throws Exception {
+        if (closed) {
+            return;
+        }
+        if (connecting) {
+            if (key.isConnectable() && channel.finishConnect()) {
+                connected();
+            }
+            return;
+        }
+        process();
+    }
+
+    public void failed(Exception exception) {
+        if (closed) {
+            return;
+        }
+        close();
+        final Listener listener = this.listener;
+        if (listener != null) {
+            listener.failed(exception);
+        }
+    }
+
+    private void connected() throws Exception {
+        connecting = false;
+        if (engine != null) {
+            handshaking = true;
+            engine.beginHandshake();
+            process();
+        } else {
+            updateInterest();
+            listener.connected();
+        }
+    }
+
+    /** Do all I/O which can be done now. */
+    private void process() throws Exception {
+        if (closed || connecting) {
+            return;
+        }
+        if (processing) {
+            // Called from the listener, buffers are in use
+            processAgain = true;
+            return;
+        }
+        processing = true;
+        try {
+            do {
+                processAgain = false;
+                if (engine == null) {
+                    processPlain();
+                } else {
+                    processTls();
+                }
+            } while (processAgain && !closed);
+        } finally {
+            processing = false;
+        }
+        if (!closed) {
+            updateInterest();
+        }
+    }
+
+    private void processPlain() throws Exception {
+        while (appOut != null || fileOut != null) {
+            if (appOut != null) {
+                channel.write(appOut);
+                if (appOut.hasRemaining()) {
+                    break;
+                }
+                appOut = null;
+            } else {
+                final long transferred = fileOut.transferTo(filePosition, fileEnd - filePosition, channel);
+                filePosition += transferred;
+                if (filePosition < fileEnd) {
+                    if (transferred == 0 && filePosition >= fileOut.size()) {
+                        throw new EOFException("File is shorter than expected");
+                    }
+                    // Socket is full, wait until it is writable
+                    break;
+                }
+                fileOut = null;
+            }
+            listener.written();
+            if (closed) {
+                return;
+            }
+        }
+
+        while (!readPaused && !closed) {
+            final int read = channel.read(netIn);
+            if (read < 0) {
+                endOfStream();
+                return;
+            }
+            if (read == 0) {
+                break;
+            }
+            netIn.flip();
+            listener.received(netIn);
+            netIn.clear();
+        }
+    }
+
+    private void processTls() throws Exception {
+        boolean progress = true;
+        while (progress && !closed) {
+            progress = false;
+
+            if (netOut.hasRemaining()) {
+                channel.write(netOut);
+                if (netOut.hasRemaining()) {
+                    // Wait until writable, but still read, the other side might be blocked on us
+                    readTls();
+                    return;
+                }
+            }
+
+            final SSLEngineResult.HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+            if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                progress = true;
+                continue;
+            }
+            if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                wrap(EMPTY);
+                progress = true;
+                continue;
+            }
+            if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                progress = readTls();
+                continue;
+            }
+
+            if (handshaking) {
+                handshaking = false;
+                if (hostnameVerifier != null && !hostnameVerifier.verify(host, engine.getSession())) {
+                    throw new SSLPeerUnverifiedException("Hostname " + host + " not verified");
+                }
+                listener.connected();
+                progress = true;
+                continue;
+            }
+
+            if (appOut != null) {
+                wrap(appOut);
+                if (!appOut.hasRemaining()) {
+                    appOut = null;
+                    if (fileOut != null && filePosition < fileEnd) {
+                        appOut = nextFileRegion();
+                    } else {
+                        fileOut = null;
+                        listener.written();
+                    }
+                }
+                progress = true;
+                continue;
+            }
+
+            if (!readPaused) {
+                progress = readTls();
+            }
+        }
+    }
+
+    private void wrap(ByteBuffer data) throws Exception {
+        netOut.compact();
+        try {
+            while (true) {
+                final SSLEngineResult result = engine.wrap(data, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("Connection closed");
+                }
+                break;
+            }
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    /** @return true if any data was read or decrypted */
+    private boolean readTls() throws Exception {
+        final int read = channel.read(netIn);
+        boolean progress = read > 0;
+
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining() && !closed) {
+                final SSLEngineResult result = engine.unwrap(netIn, appIn);
+                final SSLEngineResult.Status status = result.getStatus();
+                if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    if (appIn.position() == 0) {
+                        appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    } else {
+                        deliver();
+                    }
+                    continue;
+                }
+                if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    if (netIn.limit() == netIn.capacity() && netIn.position() == 0) {
+                        // Record does not fit
+                        netIn.position(netIn.limit());
+                        netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                        netIn.flip();
+                    }
+                    break;
+                }
+                if (result.bytesConsumed() > 0 || result.bytesProduced() > 0) {
+                    progress = true;
+                }
+                deliver();
+                if (status == SSLEngineResult.Status.CLOSED) {
+                    endOfStream();
+                    return true;
+                }
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK
+                        || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                        || readPaused) {
+                    break;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+
+        if (read < 0 && !closed) {
+            endOfStream();
+            return true;
+        }
+        return progress;
+    }
+
+    private void deliver() throws Exception {
+        if (appIn.position() > 0) {
+            appIn.flip();
+            listener.received(appIn);
+            appIn.clear();
+        }
+    }
+
+    private void endOfStream() throws Exception {
+        if (handshaking) {
+            throw new SSLException("Connection closed during handshake");
+        }
+        close();
+        try {
+            listener.closed();
+        } catch (Exception e) {
+            listener.failed(e);
+        }
+    }
+
+    private void updateInterest() {
+        int ops = 0;
+        if (connecting) {
+            ops = SelectionKey.OP_CONNECT;
+        } else {
+            if (engine == null ? appOut != null || fileOut != null : netOut.hasRemaining()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (!readPaused || handshaking) {
+                ops |= SelectionKey.OP_READ;
+            }
+        }
+        key.interestOps(ops);
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minimumSize) {
+        final ByteBuffer result = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minimumSize));
+        buffer.flip();
+        result.put(buffer);
+        return result;
+    }
+}
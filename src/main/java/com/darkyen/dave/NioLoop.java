@@ -0,0 +1,206 @@
+package com.darkyen.dave;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread with a {@link Selector}, which drives the I/O of {@link NioConnection}s registered to it.
+ * All operations on the connections happen on this thread, other threads submit work through {@link #execute(Runnable)}.
+ */
+final class NioLoop implements Runnable {
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    /** Accessed only from the loop thread */
+    private final PriorityQueue<Timeout> timeouts = new PriorityQueue<Timeout>();
+    private volatile boolean running = true;
+
+    /** Object registered with {@link Selector}, as attachment of the {@link SelectionKey}. */
+    interface Handler {
+        /** Selected key is ready for some of its interest operations. */
+        void ready(SelectionKey key) throws Exception;
+
+        /** Handler failed, or the loop is shutting down. */
+        void failed(Exception exception);
+    }
+
+    NioLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Run the task on the loop thread, as soon as possible. */
+    void execute(Runnable task) {
+        if (!running) {
+            throw new IllegalStateException("NioTransport has been shut down");
+        }
+        tasks.add(task);
+        if (!running && tasks.remove(task)) {
+            // Shut down in the meantime and the task was not picked up
+            throw new IllegalStateException("NioTransport has been shut down");
+        }
+        if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Call {@link Timeout#expired()} when given deadline passes, replacing previous deadline of the timeout.
+     * Must be called from the loop thread.
+     * @param deadline in {@link System#currentTimeMillis()}, 0 to disable the timeout
+     */
+    void setDeadline(Timeout timeout, long deadline) {
+        timeout.deadline = deadline;
+        if (deadline == 0) {
+            // Removed lazily
+            return;
+        }
+        if (timeout.queued) {
+            if (deadline >= timeout.scheduledDeadline) {
+                // Moved lazily
+                return;
+            }
+            timeouts.remove(timeout);
+        }
+        schedule(timeout);
+    }
+
+    private void schedule(Timeout timeout) {
+        timeout.scheduledDeadline = timeout.deadline;
+        timeout.queued = true;
+        timeouts.add(timeout);
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    runTask(task);
+                }
+
+                final long waitMillis = processTimeouts();
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else {
+                    selector.select(waitMillis);
+                }
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final Handler handler = (Handler) key.attachment();
+                    try {
+                        handler.ready(key);
+                    } catch (CancelledKeyException ignored) {
+                        // Handler has been closed in the meantime
+                    } catch (Exception e) {
+                        handler.failed(e);
+                    }
+                }
+            }
+        } catch (ClosedSelectorException ignored) {
+        } catch (Throwable e) {
+            System.err.println("Webb - NIO loop failure");
+            e.printStackTrace(System.err);
+        } finally {
+            running = false;
+            closeAll();
+        }
+    }
+
+    private static void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable e) {
+            System.err.println("Webb - NIO task failure");
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /** @return how long to wait for the next timeout, 0 for no timeout */
+    private long processTimeouts() {
+        final long now = System.currentTimeMillis();
+        Timeout timeout;
+        while ((timeout = timeouts.peek()) != null) {
+            if (timeout.deadline == 0) {
+                timeouts.poll();
+                timeout.queued = false;
+            } else if (timeout.deadline != timeout.scheduledDeadline) {
+                // Deadline moved, reinsert at the correct place
+                timeouts.poll();
+                schedule(timeout);
+            } else if (timeout.deadline <= now) {
+                timeouts.poll();
+                timeout.queued = false;
+                timeout.deadline = 0;
+                try {
+                    timeout.expired();
+                } catch (Throwable e) {
+                    System.err.println("Webb - NIO timeout failure");
+                    e.printStackTrace(System.err);
+                }
+            } else {
+                return timeout.deadline - now;
+            }
+        }
+        return 0;
+    }
+
+    private void closeAll() {
+        final IllegalStateException shutdown = new IllegalStateException("NioTransport has been shut down");
+        try {
+            for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                ((Handler) key.attachment()).failed(shutdown);
+            }
+        } catch (ClosedSelectorException ignored) {
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runTask(task);
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Stop the loop, fail all registered handlers. */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /** Deadline tracked by the {@link NioLoop}. */
+    static abstract class Timeout implements Comparable<Timeout> {
+        private long deadline;
+        private long scheduledDeadline;
+        private boolean queued;
+
+        /** Called on the loop thread when the deadline passes */
+        abstract void expired();
+
+        public int compareTo(Timeout o) {
+            return scheduledDeadline < o.scheduledDeadline ? -1 : (scheduledDeadline == o.scheduledDeadline ? 0 : 1);
+        }
+    }
+}
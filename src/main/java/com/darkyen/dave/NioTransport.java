@@ -0,0 +1,1244 @@
+package com.darkyen.dave;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link Transport} which does all network I/O without blocking, on a few threads with {@link java.nio.channels.Selector}s,
+ * so that requests in flight don't need a thread each. Speaks HTTP/1.1, over plain and TLS connections.
+ * <br>
+ * Exchanges are {@link Transport.AsyncExchange}s, use {@link ExecutionStrategy#NON_BLOCKING_EXECUTION_STRATEGY}
+ * to take advantage of that. Responses are then received into memory and translators and callbacks are called
+ * on the I/O thread, so they should be fast and must not execute requests synchronously.
+ * Requests executed synchronously stream the response body.
+ * <br>
+ * Differences from the default transport:
+ * <ul>
+ *     <li>Proxies are not supported</li>
+ *     <li>Custom SSLSocketFactory is not supported, give {@link SSLContext} to the constructor instead</li>
+ *     <li>Request bodies which are not in memory (streams and files) are written by the thread which executes the request,
+ *     or by a worker thread of the transport, when the request is executed on the I/O thread (for example from a callback)</li>
+ *     <li>Host names are resolved by the thread which executes the request, or by a worker thread of the transport,
+ *     when the request is executed or redirected on the I/O thread</li>
+ *     <li>{@link Request#useCaches(boolean)} is ignored</li>
+ *     <li>URLs which are not HTTP or HTTPS are handled by {@link HttpURLConnectionTransport}</li>
+ * </ul>
+ * Connections are kept alive and reused through {@link TransportRequest#getConnectionPool()}.
+ * When an idle connection turns out to be closed by the server before it could respond,
+ * the request is sent again through a new connection, unless its body is streamed.
+ */
+@SuppressWarnings("WeakerAccess")
+public class NioTransport implements Transport {
+
+    private static final int MAX_REDIRECTS = 20;
+    /** Synchronous exchanges stop reading when this many bytes are received, but not read by the translator */
+    private static final int MAX_BUFFERED_BODY = 256 * 1024;
+    private static final int REQUEST_BODY_CHUNK = 64 * 1024;
+    /** Placeholder in the outgoing data for the whole {@link Transport.FileBody}, which is sent straight from the file */
+    private static final ByteBuffer FILE_BODY = ByteBuffer.allocate(0);
+
+    private final NioLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final SSLContext sslContext;
+    private SSLContext defaultSslContext;
+    /** Does the blocking work of exchanges which are started on the loop thread, created when needed */
+    private ExecutorService worker;
+    private boolean shutdown = false;
+    private final HttpURLConnectionTransport fallbackTransport = new HttpURLConnectionTransport();
+
+    /** Create transport with single I/O thread and default SSL context. */
+    public NioTransport() {
+        this(1, null);
+    }
+
+    /**
+     * @param threads amount of I/O threads, at least 1
+     * @param sslContext for HTTPS connections, null for default
+     */
+    public NioTransport(int threads, SSLContext sslContext) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        this.sslContext = sslContext;
+        this.loops = new NioLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            try {
+                loops[i] = new NioLoop("Webb - NIO " + i);
+            } catch (IOException e) {
+                shutdown();
+                throw new WebbException(e);
+            }
+        }
+    }
+
+    public Exchange open(TransportRequest request) throws Exception {
+        if (request.getSSLSocketFactory() != null) {
+            throw new UnsupportedOperationException("NioTransport does not support custom SSLSocketFactory, use SSLContext of the transport");
+        }
+        final URL url = new URL(request.getUri());
+        if (!"http".equalsIgnoreCase(url.getProtocol()) && !"https".equalsIgnoreCase(url.getProtocol())) {
+            // For example file: URLs
+            return fallbackTransport.open(request);
+        }
+        return new NioExchange(request, url);
+    }
+
+    /** Stop the I/O threads. All pending exchanges fail and no new exchanges can be executed. */
+    public void shutdown() {
+        for (NioLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+        synchronized (this) {
+            shutdown = true;
+            if (worker != null) {
+                worker.shutdown();
+            }
+        }
+    }
+
+    /** @return executor for blocking work, like resolving names, which must not be done by the loop thread */
+    private synchronized ExecutorService worker() {
+        if (shutdown) {
+            throw new IllegalStateException("Transport has been shut down");
+        }
+        if (worker == null) {
+            worker = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger threads = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "Webb - NIO worker " + threads.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return worker;
+    }
+
+    /** @return true if called from a loop thread of this transport, which must not block */
+    private boolean inLoop() {
+        for (NioLoop loop : loops) {
+            if (loop != null && loop.inLoop()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private NioLoop nextLoop() {
+        return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    private boolean ownsLoop(NioLoop loop) {
+        for (NioLoop l : loops) {
+            if (l == loop) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized SSLContext sslContext() throws Exception {
+        if (sslContext != null) {
+            return sslContext;
+        }
+        if (defaultSslContext == null) {
+            final SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            defaultSslContext = context;
+        }
+        return defaultSslContext;
+    }
+
+    /** Create a connection to the host of given URL, which must be then connected from the loop thread. */
+    private NioConnection createConnection(NioLoop loop, URL url, HostnameVerifier hostnameVerifier) throws Exception {
+        final String host = host(url);
+        if (!"https".equalsIgnoreCase(url.getProtocol())) {
+            return new NioConnection(loop, null, host, null);
+        }
+        final SSLEngine engine = sslContext().createSSLEngine(host, port(url));
+        if (hostnameVerifier == null && !enableHostnameVerification(engine)) {
+            // Old platforms without endpoint identification in SSLEngine
+            hostnameVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
+        }
+        return new NioConnection(loop, engine, host, hostnameVerifier);
+    }
+
+    /** Let the engine verify the host name, like HttpsURLConnection does. Available since Java 7. */
+    private static boolean enableHostnameVerification(SSLEngine engine) {
+        try {
+            final Class<?> parametersClass = Class.forName("javax.net.ssl.SSLParameters");
+            final Object parameters = SSLEngine.class.getMethod("getSSLParameters").invoke(engine);
+            parametersClass.getMethod("setEndpointIdentificationAlgorithm", String.class).invoke(parameters, "HTTPS");
+            SSLEngine.class.getMethod("setSSLParameters", parametersClass).invoke(engine, parameters);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static String host(URL url) {
+        final String host = url.getHost();
+        if (host.startsWith("[") && host.endsWith("]")) {
+            return host.substring(1, host.length() - 1);
+        }
+        return host;
+    }
+
+    private static int port(URL url) {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    /** @return key of the {@link ConnectionPool}, connections are reusable only for requests with the same route */
+    private static String route(URL url, HostnameVerifier hostnameVerifier) {
+        final StringBuilder route = new StringBuilder();
+        route.append(url.getProtocol().toLowerCase(Locale.ENGLISH)).append("://")
+                .append(host(url).toLowerCase(Locale.ENGLISH)).append(':').append(port(url));
+        if (hostnameVerifier != null && "https".equalsIgnoreCase(url.getProtocol())) {
+            // Connection verified by one verifier is not necessarily acceptable to another
+            route.append(" verified by ").append(hostnameVerifier.getClass().getName())
+                    .append('@').append(Integer.toHexString(System.identityHashCode(hostnameVerifier)));
+        }
+        return route.toString();
+    }
+
+    private static InetSocketAddress resolve(URL url) throws IOException {
+        final InetSocketAddress address = new InetSocketAddress(host(url), port(url));
+        if (address.isUnresolved()) {
+            throw new java.net.UnknownHostException(url.getHost());
+        }
+        return address;
+    }
+
+    /**
+     * {@link Object#wait()}, but not interrupted by {@link Thread#interrupt()}, just like blocking socket I/O.
+     * Caller must hold the monitor.
+     * @return true if the thread was interrupted, so that the caller can restore the interrupt status
+     */
+    private static boolean waitUninterruptibly(Object monitor) {
+        try {
+            monitor.wait();
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    private static IOException ioException(Exception e) {
+        if (e instanceof IOException) {
+            return (IOException) e;
+        }
+        final IOException result = new IOException(e.toString());
+        result.initCause(e);
+        return result;
+    }
+
+    /** Listener of connections which are idle in the pool. Any activity means that the connection is no longer usable. */
+    private static final class IdleConnection implements NioConnection.Listener {
+        private final ConnectionPool pool;
+        private final String route;
+        private final NioConnection connection;
+
+        private IdleConnection(ConnectionPool pool, String route, NioConnection connection) {
+            this.pool = pool;
+            this.route = route;
+            this.connection = connection;
+        }
+
+        public void connected() {
+        }
+
+        public void written() {
+        }
+
+        public void received(ByteBuffer data) {
+            data.position(data.limit());
+            discard();
+        }
+
+        public void closed() {
+            discard();
+        }
+
+        public void failed(Exception exception) {
+            discard();
+        }
+
+        private void discard() {
+            connection.close();
+            pool.remove(route, connection);
+        }
+    }
+
+    private final class NioExchange implements AsyncExchange, NioConnection.Listener, HttpResponseParser.BodySink {
+
+        private final TransportRequest request;
+        private final ConnectionPool pool;
+        private final boolean bodyInMemory;
+
+        // Guarded by this, set when the exchange gets its connection, after that accessed from the loop thread
+        private NioLoop loop;
+        /** Tasks posted before the loop was known */
+        private List<Runnable> pendingTasks;
+
+        // Accessed only from the loop thread
+        private URL url;
+        private String method;
+        private boolean sendBody;
+        private int redirects = 0;
+        /** Route of the connection leased from the pool, null if the connection is not leased */
+        private String route;
+        private InetSocketAddress address;
+        private NioConnection connection;
+        /** Connection was idle in the pool, so the server might have closed it in the meantime */
+        private boolean reused = false;
+        private boolean responseStarted = false;
+        private boolean requestSent = false;
+        private HttpResponseParser parser;
+        private boolean connected = false;
+        private ByteBuffer head;
+        private final LinkedList<ByteBuffer> outgoing = new LinkedList<ByteBuffer>();
+        private boolean writing = false;
+        private boolean finished = false;
+        private final NioLoop.Timeout timeout = new NioLoop.Timeout() {
+            @Override
+            void expired() {
+                fail(new SocketTimeoutException(connected ? "Read timed out" : "connect timed out"));
+            }
+        };
+
+        // Guarded by this
+        private Listener listener;
+        private boolean started = false;
+        private boolean ready = false;
+        private Exception failure;
+        private int writesQueued = 0;
+        private int writesDone = 0;
+        private BodyStream body;
+
+        private NioExchange(TransportRequest request, URL url) {
+            this.request = request;
+            this.pool = request.getConnectionPool();
+            this.url = url;
+            this.method = request.getMethod().name();
+            this.sendBody = request.getBody() != null;
+            this.bodyInMemory = request.getBody() == null || request.getBody().isInMemory();
+        }
+
+        public void execute() throws Exception {
+            if (inLoop()) {
+                throw new IllegalStateException("Can't execute synchronously on the NIO thread");
+            }
+            start(null);
+            synchronized (this) {
+                boolean interrupted = false;
+                while (!ready && failure == null) {
+                    interrupted |= waitUninterruptibly(this);
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        }
+
+        public void executeAsync(final Listener listener) {
+            if (inLoop()) {
+                // Resolving the name and writing a streamed body would block the loop, or wait for it forever
+                try {
+                    worker().execute(new Runnable() {
+                        public void run() {
+                            executeAsync(listener);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    // Shut down
+                    synchronized (this) {
+                        this.listener = listener;
+                    }
+                    fail(e);
+                }
+                return;
+            }
+            try {
+                start(listener);
+            } catch (final Exception e) {
+                final boolean started;
+                synchronized (this) {
+                    started = this.started;
+                }
+                if (!started) {
+                    fail(e);
+                    return;
+                }
+                // Exchange is already running on the loop thread, or will be when it gets its connection
+                try {
+                    post(new Runnable() {
+                        public void run() {
+                            fail(e);
+                        }
+                    });
+                } catch (IllegalStateException shutdown) {
+                    fail(e);
+                }
+            }
+        }
+
+        private void start(Listener listener) throws Exception {
+            synchronized (this) {
+                this.listener = listener;
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+            final InetSocketAddress address = resolve(url);
+            final ByteBuffer head = requestHead();
+            synchronized (this) {
+                started = true;
+            }
+            lease(address, head);
+
+            if (request.getBody() instanceof FileBody) {
+                post(new Runnable() {
+                    public void run() {
+                        if (sendBody) {
+                            outgoing.add(FILE_BODY);
+                            pump();
+                        } else {
+                            requestSent = true;
+                        }
+                    }
+                });
+            } else if (!bodyInMemory) {
+                final RequestBodyStream out = new RequestBodyStream(request.getBody().getLength() < 0);
+                request.getBody().writeTo(out);
+                out.close();
+                post(new Runnable() {
+                    public void run() {
+                        requestSent = true;
+                    }
+                });
+            }
+        }
+
+        /** Obtain a connection to {@link #url} from the pool, then send the request through it. */
+        private void lease(final InetSocketAddress address, final ByteBuffer head) {
+            final String route = route(url, request.getHostnameVerifier());
+            if (pool == null) {
+                leased(null, route, address, head);
+                return;
+            }
+            pool.lease(route, request.getConnectTimeout(), new ConnectionPool.LeaseCallback<NioConnection>() {
+                public void leased(NioConnection connection) {
+                    NioExchange.this.leased(connection, route, address, head);
+                }
+
+                public void timedOut() {
+                    final Exception e = new SocketTimeoutException("Timed out waiting for a connection to " + route + " from the pool");
+                    final NioLoop loop;
+                    synchronized (NioExchange.this) {
+                        loop = NioExchange.this.loop;
+                    }
+                    if (loop == null) {
+                        fail(e);
+                        return;
+                    }
+                    // Waits for a connection after a redirect, so it belongs to the loop
+                    try {
+                        loop.execute(new Runnable() {
+                            public void run() {
+                                fail(e);
+                            }
+                        });
+                    } catch (IllegalStateException shutdown) {
+                        fail(e);
+                    }
+                }
+            });
+        }
+
+        /** Called on any thread, when a connection to reuse, or a permission to open a new one, is available. */
+        private void leased(final NioConnection idleConnection, final String route, final InetSocketAddress address, final ByteBuffer head) {
+            try {
+                synchronized (this) {
+                    if (loop == null) {
+                        loop = idleConnection != null && ownsLoop(idleConnection.loop) ? idleConnection.loop : nextLoop();
+                    }
+                    // In the lock, so that no other task can overtake these
+                    loop.execute(new Runnable() {
+                        public void run() {
+                            begin(idleConnection, route, address, head);
+                        }
+                    });
+                    if (pendingTasks != null) {
+                        for (Runnable task : pendingTasks) {
+                            loop.execute(task);
+                        }
+                        pendingTasks = null;
+                    }
+                }
+            } catch (IllegalStateException e) {
+                // Shut down
+                if (idleConnection != null) {
+                    idleConnection.close();
+                }
+                if (pool != null) {
+                    pool.release(route, idleConnection, false);
+                }
+                fail(e);
+            }
+        }
+
+        /** Run the task on the loop thread of this exchange, which is not known until the exchange gets a connection. */
+        private void post(Runnable task) {
+            synchronized (this) {
+                if (loop == null) {
+                    if (pendingTasks == null) {
+                        pendingTasks = new ArrayList<Runnable>();
+                    }
+                    pendingTasks.add(task);
+                    return;
+                }
+                loop.execute(task);
+            }
+        }
+
+        /**
+         * Reject headers which would change the meaning of the request head, like HttpURLConnection does,
+         * so that values with line breaks can't inject headers or whole requests.
+         */
+        private void checkHeader(String name, String value) {
+            if (name == null || name.length() == 0) {
+                throw new IllegalArgumentException("Header name must not be empty");
+            }
+            for (int i = 0; i < name.length(); i++) {
+                final char c = name.charAt(i);
+                if (c <= ' ' || c >= 127 || "()<>@,;:\\\"/[]?={}".indexOf(c) != -1) {
+                    throw new IllegalArgumentException("Illegal character in header name: " + name);
+                }
+            }
+            if (value != null) {
+                for (int i = 0; i < value.length(); i++) {
+                    final char c = value.charAt(i);
+                    if (c == '\r' || c == '\n' || c == 0) {
+                        throw new IllegalArgumentException("Illegal character in value of header " + name);
+                    }
+                }
+            }
+        }
+
+        /** @return serialized request line and headers, followed by the body, if it is in memory */
+        private ByteBuffer requestHead() throws Exception {
+            final StringBuilder head = new StringBuilder(256);
+            final String file = url.getFile();
+            head.append(method).append(' ').append(file.length() == 0 ? "/" : file).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(url.getHost());
+            if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+                head.append(':').append(url.getPort());
+            }
+            head.append("\r\n");
+
+            boolean ifModifiedSinceSet = false;
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                final String name = header.getKey();
+                if ("Host".equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name) || "Transfer-Encoding".equalsIgnoreCase(name)) {
+                    continue;
+                }
+                if (!sendBody && ("Content-Type".equalsIgnoreCase(name) || "Content-Encoding".equalsIgnoreCase(name))) {
+                    // Body has been dropped by a redirect
+                    continue;
+                }
+                if ("If-Modified-Since".equalsIgnoreCase(name)) {
+                    ifModifiedSinceSet = true;
+                }
+                checkHeader(name, header.getValue());
+                head.append(name).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (request.getIfModifiedSince() != 0 && !ifModifiedSinceSet) {
+                head.append("If-Modified-Since: ").append(WebbUtils.headerValue(new Date(request.getIfModifiedSince()))).append("\r\n");
+            }
+
+            byte[] body = null;
+            if (sendBody) {
+                final long length = request.getBody().getLength();
+                if (bodyInMemory) {
+                    final java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream((int) Math.max(length, 32));
+                    request.getBody().writeTo(out);
+                    body = out.toByteArray();
+                    head.append("Content-Length: ").append(body.length).append("\r\n");
+                } else if (length >= 0) {
+                    head.append("Content-Length: ").append(length).append("\r\n");
+                } else {
+                    head.append("Transfer-Encoding: chunked\r\n");
+                }
+            } else if ("POST".equals(method) || "PUT".equals(method)) {
+                head.append("Content-Length: 0\r\n");
+            }
+            head.append("\r\n");
+
+            final byte[] headBytes = head.toString().getBytes(WebbConst.UTF8);
+            final ByteBuffer result = ByteBuffer.allocate(headBytes.length + (body == null ? 0 : body.length));
+            result.put(headBytes);
+            if (body != null) {
+                result.put(body);
+            }
+            result.flip();
+            return result;
+        }
+
+        //region Loop thread
+
+        /**
+         * Send the request through the leased connection.
+         * @param idleConnection to reuse or null to open a new one
+         */
+        private void begin(NioConnection idleConnection, String route, InetSocketAddress address, ByteBuffer head) {
+            this.route = pool == null ? null : route;
+            this.address = address;
+            if (idleConnection != null && (idleConnection.loop != loop || idleConnection.isClosed())) {
+                // Can't be used by this exchange, but its place in the pool can
+                idleConnection.close();
+                idleConnection = null;
+            }
+            this.connection = idleConnection;
+
+            final boolean aborted;
+            synchronized (this) {
+                aborted = failure != null;
+            }
+            if (finished || aborted) {
+                releaseConnection(idleConnection != null);
+                return;
+            }
+
+            this.parser = new HttpResponseParser("HEAD".equals(method));
+            this.connected = false;
+            this.reused = idleConnection != null;
+            this.responseStarted = false;
+            this.requestSent = false;
+            this.head = head;
+            outgoing.clear();
+            writing = false;
+            outgoing.add(head);
+
+            if (idleConnection != null) {
+                idleConnection.setListener(this);
+                connected();
+                return;
+            }
+
+            if (request.getConnectTimeout() > 0) {
+                loop.setDeadline(timeout, System.currentTimeMillis() + request.getConnectTimeout());
+            }
+            try {
+                connection = createConnection(loop, url, request.getHostnameVerifier());
+            } catch (Exception e) {
+                fail(e);
+                return;
+            }
+            try {
+                connection.connect(address, this);
+            } catch (Exception e) {
+                connection.failed(e);
+            }
+        }
+
+        /**
+         * Return the connection to the pool and forget it.
+         * @param reusable true to keep the connection open for another request, false to close it
+         */
+        private void releaseConnection(boolean reusable) {
+            final NioConnection connection = this.connection;
+            this.connection = null;
+            this.connected = false;
+            if (reusable) {
+                connection.setListener(new IdleConnection(pool, route, connection));
+            } else if (connection != null) {
+                connection.close();
+            }
+            final String route = this.route;
+            if (route != null) {
+                this.route = null;
+                pool.release(route, connection, reusable);
+            }
+        }
+
+        /**
+         * Idle connection may have been closed by the server just before the request was sent.
+         * If that happened, send the request again through a new connection, if possible.
+         * @return true if the request is being sent again
+         */
+        private boolean retryIfStale() {
+            if (!reused || responseStarted || !bodyInMemory || finished) {
+                return false;
+            }
+            connection.close();
+            connection = null;
+            head.rewind();
+            begin(null, route, address, head);
+            return true;
+        }
+
+        private void refreshTimeout() {
+            loop.setDeadline(timeout, request.getReadTimeout() > 0 ? System.currentTimeMillis() + request.getReadTimeout() : 0);
+        }
+
+        /** Send part of the request body, which is not in memory. */
+        private void send(ByteBuffer data) {
+            if (!sendBody) {
+                // Body has been dropped by a redirect
+                bodyWritten();
+                return;
+            }
+            outgoing.add(data);
+            pump();
+        }
+
+        private void bodyWritten() {
+            synchronized (this) {
+                writesDone++;
+                notifyAll();
+            }
+        }
+
+        private void pump() {
+            if (!connected || writing || outgoing.isEmpty() || finished) {
+                return;
+            }
+            writing = true;
+            try {
+                final ByteBuffer data = outgoing.getFirst();
+                if (data == FILE_BODY) {
+                    final FileBody file = (FileBody) request.getBody();
+                    connection.transfer(file.getChannel(), file.getPosition(), file.getLength());
+                } else {
+                    connection.write(data);
+                }
+            } catch (Exception e) {
+                connection.failed(e);
+            }
+        }
+
+        public void connected() {
+            connected = true;
+            refreshTimeout();
+            pump();
+        }
+
+        public void written() {
+            writing = false;
+            final ByteBuffer written = outgoing.removeFirst();
+            refreshTimeout();
+            if (written == FILE_BODY) {
+                requestSent = true;
+            } else if (written != head) {
+                bodyWritten();
+            } else if (bodyInMemory || !sendBody) {
+                requestSent = true;
+            }
+            pump();
+        }
+
+        public void received(ByteBuffer data) throws Exception {
+            refreshTimeout();
+            responseStarted = true;
+            final NioConnection current = connection;
+            final boolean done = parser.parse(data, this);
+            if (finished || connection != current) {
+                // Failed or redirected in the meantime
+                return;
+            }
+            if (parser.isHeadersComplete() && body == null) {
+                headersComplete();
+                if (finished || body == null) {
+                    // Failed or redirected
+                    return;
+                }
+            }
+            if (done) {
+                // Anything after the response is unexpected, so the connection can't be trusted
+                responseComplete(!data.hasRemaining());
+            }
+        }
+
+        public void body(ByteBuffer data) throws IOException {
+            if (body == null && parser.isHeadersComplete()) {
+                headersComplete();
+            }
+            if (finished || body == null) {
+                // Failed or redirected
+                data.position(data.limit());
+                return;
+            }
+            body.append(data);
+        }
+
+        public void closed() throws Exception {
+            if (retryIfStale()) {
+                return;
+            }
+            parser.endOfStream();
+            if (parser.isHeadersComplete() && body == null) {
+                headersComplete();
+            }
+            if (!finished && body != null) {
+                responseComplete(false);
+            }
+        }
+
+        public void failed(Exception exception) {
+            if (!retryIfStale()) {
+                fail(exception);
+            }
+        }
+
+        private void fail(Exception exception) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (loop != null) {
+                loop.setDeadline(timeout, 0);
+            }
+            releaseConnection(false);
+
+            final Listener listener;
+            final BodyStream body;
+            synchronized (this) {
+                if (failure == null) {
+                    failure = exception;
+                }
+                listener = ready ? null : this.listener;
+                body = this.body;
+                notifyAll();
+            }
+            if (body != null) {
+                body.fail(ioException(exception));
+            }
+            if (listener != null) {
+                listener.failed(exception);
+            }
+        }
+
+        private void headersComplete() {
+            try {
+                if (redirect()) {
+                    return;
+                }
+            } catch (Exception e) {
+                fail(e);
+                return;
+            }
+
+            final BodyStream body = new BodyStream();
+            final boolean notifyReady;
+            synchronized (this) {
+                this.body = body;
+                notifyReady = listener == null;
+                if (notifyReady) {
+                    // Synchronous execution can continue, asynchronous waits for the whole body
+                    ready = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /** @param keepAlive false if the connection must not be reused */
+        private void responseComplete(boolean keepAlive) {
+            finished = true;
+            loop.setDeadline(timeout, 0);
+
+            boolean reusable = keepAlive && route != null && requestSent && parser.isKeepAlive() && !connection.isClosed();
+            if (reusable) {
+                try {
+                    // Reading might have been paused by the BodyStream, idle connection must notice when it is closed
+                    connection.setReadPaused(false);
+                } catch (Exception e) {
+                    reusable = false;
+                }
+            }
+            releaseConnection(reusable);
+
+            final Listener listener;
+            synchronized (this) {
+                body.finish();
+                listener = this.listener;
+                ready = true;
+                notifyAll();
+            }
+            if (listener != null) {
+                listener.completed();
+            }
+        }
+
+        /** @return true if the response is a redirect, which is being followed */
+        private boolean redirect() throws Exception {
+            final int code = parser.getStatusCode();
+            if (!request.isFollowRedirects() || redirects >= MAX_REDIRECTS
+                    || (code != 301 && code != 302 && code != 303 && code != 307 && code != 308)) {
+                return false;
+            }
+            final String location = parser.getHeader("Location");
+            if (location == null) {
+                return false;
+            }
+            final URL target = new URL(url, location);
+            if (!target.getProtocol().equalsIgnoreCase(url.getProtocol())) {
+                // HttpURLConnection does not follow these either
+                return false;
+            }
+
+            final boolean safeMethod = "GET".equals(method) || "HEAD".equals(method);
+            if (code == 303 || ((code == 301 || code == 302) && !safeMethod)) {
+                if (!"HEAD".equals(method)) {
+                    method = "GET";
+                }
+                if (sendBody) {
+                    sendBody = false;
+                    synchronized (this) {
+                        // Release the writer of streamed body
+                        writesDone = writesQueued;
+                        notifyAll();
+                    }
+                }
+            } else if (!safeMethod && !bodyInMemory) {
+                // Body can't be sent again
+                return false;
+            }
+
+            // Body of the redirect is not read, so the connection can't be reused
+            loop.setDeadline(timeout, 0);
+            releaseConnection(false);
+            redirects++;
+            url = target;
+            final ByteBuffer head = requestHead();
+            // Resolving the name blocks, so it is not done by the loop thread
+            worker().execute(new Runnable() {
+                public void run() {
+                    final InetSocketAddress address;
+                    try {
+                        address = resolve(target);
+                    } catch (final Exception e) {
+                        try {
+                            post(new Runnable() {
+                                public void run() {
+                                    fail(e);
+                                }
+                            });
+                        } catch (IllegalStateException shutdown) {
+                            fail(e);
+                        }
+                        return;
+                    }
+                    lease(address, head);
+                }
+            });
+            return true;
+        }
+
+        //endregion
+
+        public int getStatusCode() {
+            return parser.getStatusCode();
+        }
+
+        public String getStatusMessage() {
+            return parser.getStatusMessage();
+        }
+
+        public String getStatusLine() {
+            return parser.getStatusLine();
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return parser.getHeaders();
+        }
+
+        public synchronized InputStream getBody() {
+            return body;
+        }
+
+        public void close() {
+            abort();
+        }
+
+        public void abort() {
+            synchronized (this) {
+                if (failure == null) {
+                    failure = new IOException("Exchange has been aborted");
+                }
+                notifyAll();
+            }
+            try {
+                post(new Runnable() {
+                    public void run() {
+                        fail(new IOException("Exchange has been aborted"));
+                    }
+                });
+            } catch (IllegalStateException ignored) {
+                // Shut down, so it is already aborted
+            }
+        }
+
+        /** Called by {@link BodyStream} when it can receive more data. */
+        private void resumeReading() {
+            post(new Runnable() {
+                public void run() {
+                    if (!finished) {
+                        try {
+                            connection.setReadPaused(false);
+                            refreshTimeout();
+                        } catch (Exception e) {
+                            fail(e);
+                        }
+                    }
+                }
+            });
+        }
+
+        /** Called by {@link BodyStream} when too much data is buffered. */
+        private void pauseReading() {
+            try {
+                connection.setReadPaused(true);
+                loop.setDeadline(timeout, 0);
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        /** Stream through which the request body (which is not in memory) is written to the connection, on the calling thread. */
+        private final class RequestBodyStream extends OutputStream {
+            private final boolean chunked;
+            private final byte[] buffer = new byte[REQUEST_BODY_CHUNK];
+            private int size = 0;
+            private boolean closed = false;
+
+            private RequestBodyStream(boolean chunked) {
+                this.chunked = chunked;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                if (size == buffer.length) {
+                    flush();
+                }
+                buffer[size++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (size == buffer.length) {
+                        flush();
+                    }
+                    final int count = Math.min(len, buffer.length - size);
+                    System.arraycopy(b, off, buffer, size, count);
+                    size += count;
+                    off += count;
+                    len -= count;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (size == 0) {
+                    return;
+                }
+                final ByteBuffer data;
+                if (chunked) {
+                    final byte[] chunkHead = (Integer.toHexString(size) + "\r\n").getBytes(WebbConst.UTF8);
+                    data = ByteBuffer.allocate(chunkHead.length + size + 2);
+                    data.put(chunkHead).put(buffer, 0, size).put((byte) '\r').put((byte) '\n');
+                    data.flip();
+                } else {
+                    data = ByteBuffer.allocate(size);
+                    data.put(buffer, 0, size);
+                    data.flip();
+                }
+                size = 0;
+                sendAndWait(data);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                flush();
+                if (chunked) {
+                    sendAndWait(ByteBuffer.wrap("0\r\n\r\n".getBytes(WebbConst.UTF8)));
+                }
+            }
+
+            private void sendAndWait(final ByteBuffer data) throws IOException {
+                final int target;
+                synchronized (NioExchange.this) {
+                    if (failure != null) {
+                        throw ioException(failure);
+                    }
+                    target = ++writesQueued;
+                }
+                post(new Runnable() {
+                    public void run() {
+                        send(data);
+                    }
+                });
+                synchronized (NioExchange.this) {
+                    boolean interrupted = false;
+                    // Stop when the response came early, the server is not interested in the rest
+                    while (writesDone < target && failure == null && !ready) {
+                        interrupted |= waitUninterruptibly(NioExchange.this);
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (failure != null) {
+                        throw ioException(failure);
+                    }
+                }
+            }
+        }
+
+        /** Body of the response, which is being received from the loop thread. */
+        private final class BodyStream extends InputStream {
+            private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+            private int chunkOffset = 0;
+            private long buffered = 0;
+            private boolean complete = false;
+            private IOException failure;
+            private boolean closed = false;
+            private boolean paused = false;
+
+            /** Called from the loop thread */
+            void append(ByteBuffer data) {
+                final byte[] chunk = new byte[data.remaining()];
+                data.get(chunk);
+                final boolean pause;
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    chunks.add(chunk);
+                    buffered += chunk.length;
+                    pause = !paused && listener == null && buffered > MAX_BUFFERED_BODY;
+                    if (pause) {
+                        paused = true;
+                    }
+                    notifyAll();
+                }
+                if (pause) {
+                    pauseReading();
+                }
+            }
+
+            synchronized void finish() {
+                complete = true;
+                notifyAll();
+            }
+
+            synchronized void fail(IOException failure) {
+                if (!complete) {
+                    this.failure = failure;
+                }
+                notifyAll();
+            }
+
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                final int read = read(b, 0, 1);
+                return read == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                final boolean resume;
+                final int read;
+                synchronized (this) {
+                    boolean interrupted = false;
+                    while (chunks.isEmpty() && !complete && failure == null && !closed) {
+                        interrupted |= waitUninterruptibly(this);
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (closed) {
+                        throw new IOException("Stream closed");
+                    }
+                    if (chunks.isEmpty()) {
+                        if (failure != null) {
+                            throw failure;
+                        }
+                        return -1;
+                    }
+
+                    final byte[] chunk = chunks.getFirst();
+                    read = Math.min(len, chunk.length - chunkOffset);
+                    System.arraycopy(chunk, chunkOffset, b, off, read);
+                    chunkOffset += read;
+                    if (chunkOffset == chunk.length) {
+                        chunks.removeFirst();
+                        chunkOffset = 0;
+                    }
+                    buffered -= read;
+                    resume = paused && buffered <= MAX_BUFFERED_BODY / 2;
+                    if (resume) {
+                        paused = false;
+                    }
+                }
+                if (resume) {
+                    resumeReading();
+                }
+                return read;
+            }
+
+            @Override
+            public synchronized int available() {
+                return (int) Math.min(buffered, Integer.MAX_VALUE);
+            }
+
+            @Override
+            public void close() {
+                final boolean wasComplete;
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    wasComplete = complete;
+                    chunks.clear();
+                    buffered = 0;
+                    notifyAll();
+                }
+                if (!wasComplete) {
+                    abort();
+                }
+            }
+        }
+    }
+}
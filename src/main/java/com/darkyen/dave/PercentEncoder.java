@@ -0,0 +1,251 @@
+package com.darkyen.dave;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Percent-encoding of UTF-8 text, for query strings, <code>application/x-www-form-urlencoded</code> bodies and URI paths.
+ * <br>
+ * Characters are classified through lookup tables and encoded straight into the output,
+ * without {@link java.net.URLEncoder}'s charset lookup and intermediate strings.
+ */
+final class PercentEncoder {
+
+    private PercentEncoder() {}
+
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    /** ASCII characters which are not encoded in forms, same as {@link java.net.URLEncoder}. Space is encoded as '+'. */
+    static final boolean[] FORM = new boolean[128];
+    /** ASCII characters which are not encoded in path segments, the unreserved characters of RFC 3986 */
+    static final boolean[] PATH_SEGMENT = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            FORM[c] = PATH_SEGMENT[c] = true;
+            FORM[c - 'a' + 'A'] = PATH_SEGMENT[c - 'a' + 'A'] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            FORM[c] = PATH_SEGMENT[c] = true;
+        }
+        FORM['.'] = FORM['-'] = FORM['_'] = FORM['*'] = true;
+        PATH_SEGMENT['.'] = PATH_SEGMENT['-'] = PATH_SEGMENT['_'] = PATH_SEGMENT['~'] = true;
+    }
+
+    /** Append encoded value to the out. */
+    static void append(StringBuilder out, CharSequence value, boolean[] safe) {
+        final int length = value.length();
+        int i = 0;
+        while (i < length) {
+            final char c = value.charAt(i);
+            if (c >= 128 || !safe[c]) {
+                break;
+            }
+            i++;
+        }
+        // Most values need no encoding at all
+        out.append(value, 0, i);
+
+        for (; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 128) {
+                if (safe[c]) {
+                    out.append(c);
+                } else if (c == ' ' && safe == FORM) {
+                    out.append('+');
+                } else {
+                    appendByte(out, c);
+                }
+            } else if (c < 0x800) {
+                appendByte(out, 0xC0 | (c >> 6));
+                appendByte(out, 0x80 | (c & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                final int codePoint = codePoint(value, i);
+                if (codePoint == -1) {
+                    appendByte(out, '?');
+                } else {
+                    appendByte(out, 0xF0 | (codePoint >> 18));
+                    appendByte(out, 0x80 | ((codePoint >> 12) & 0x3F));
+                    appendByte(out, 0x80 | ((codePoint >> 6) & 0x3F));
+                    appendByte(out, 0x80 | (codePoint & 0x3F));
+                    i++;
+                }
+            } else {
+                appendByte(out, 0xE0 | (c >> 12));
+                appendByte(out, 0x80 | ((c >> 6) & 0x3F));
+                appendByte(out, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static void appendByte(StringBuilder out, int b) {
+        out.append('%').append((char) HEX[b >> 4]).append((char) HEX[b & 0xF]);
+    }
+
+    /** @return length of the encoded value, in bytes (or chars, it is all ASCII) */
+    static int encodedLength(CharSequence value, boolean[] safe) {
+        final int length = value.length();
+        int result = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 128) {
+                result += safe[c] || (c == ' ' && safe == FORM) ? 1 : 3;
+            } else if (c < 0x800) {
+                result += 6;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                if (codePoint(value, i) == -1) {
+                    result += 3;
+                } else {
+                    result += 12;
+                    i++;
+                }
+            } else {
+                result += 9;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write encoded value to the out, which must have enough space, see {@link #encodedLength(CharSequence, boolean[])}.
+     * @return position after the written value
+     */
+    static int encode(CharSequence value, boolean[] safe, byte[] out, int position) {
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 128) {
+                if (safe[c]) {
+                    out[position++] = (byte) c;
+                } else if (c == ' ' && safe == FORM) {
+                    out[position++] = '+';
+                } else {
+                    position = encodeByte(out, position, c);
+                }
+            } else if (c < 0x800) {
+                position = encodeByte(out, position, 0xC0 | (c >> 6));
+                position = encodeByte(out, position, 0x80 | (c & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                final int codePoint = codePoint(value, i);
+                if (codePoint == -1) {
+                    position = encodeByte(out, position, '?');
+                } else {
+                    position = encodeByte(out, position, 0xF0 | (codePoint >> 18));
+                    position = encodeByte(out, position, 0x80 | ((codePoint >> 12) & 0x3F));
+                    position = encodeByte(out, position, 0x80 | ((codePoint >> 6) & 0x3F));
+                    position = encodeByte(out, position, 0x80 | (codePoint & 0x3F));
+                    i++;
+                }
+            } else {
+                position = encodeByte(out, position, 0xE0 | (c >> 12));
+                position = encodeByte(out, position, 0x80 | ((c >> 6) & 0x3F));
+                position = encodeByte(out, position, 0x80 | (c & 0x3F));
+            }
+        }
+        return position;
+    }
+
+    private static int encodeByte(byte[] out, int position, int b) {
+        out[position] = '%';
+        out[position + 1] = HEX[b >> 4];
+        out[position + 2] = HEX[b & 0xF];
+        return position + 3;
+    }
+
+    /** @return code point of the surrogate pair at index or -1 if the surrogate is unpaired, which is encoded as '?' */
+    private static int codePoint(CharSequence value, int index) {
+        final char high = value.charAt(index);
+        if (Character.isHighSurrogate(high) && index + 1 < value.length()) {
+            final char low = value.charAt(index + 1);
+            if (Character.isLowSurrogate(low)) {
+                return Character.toCodePoint(high, low);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Append parameters to the out, encoded as a query string (without the leading '?').
+     * @see WebbUtils#queryString(Map)
+     */
+    static void appendParams(StringBuilder out, Map<String, Object> params) {
+        boolean first = true;
+        for (Map.Entry<String, Object> entry : params.entrySet()) {
+            final Object entryValue = entry.getValue();
+            if (entryValue instanceof Object[]) {
+                for (Object value : (Object[]) entryValue) {
+                    first = appendParam(out, first, entry.getKey(), value);
+                }
+            } else if (entryValue instanceof Iterable) {
+                for (Object value : (Iterable) entryValue) {
+                    first = appendParam(out, first, entry.getKey(), value);
+                }
+            } else {
+                first = appendParam(out, first, entry.getKey(), entryValue);
+            }
+        }
+    }
+
+    private static boolean appendParam(StringBuilder out, boolean first, String name, Object value) {
+        if (!first) {
+            out.append('&');
+        }
+        append(out, name, FORM);
+        out.append('=');
+        if (value != null) {
+            append(out, value instanceof CharSequence ? (CharSequence) value : String.valueOf(value), FORM);
+        }
+        return false;
+    }
+
+    /**
+     * Encode parameters as a <code>application/x-www-form-urlencoded</code> body.
+     * Values are converted to text once and measured, so that the result is written directly into an array of the exact size.
+     */
+    static byte[] formBody(Map<String, Object> params) {
+        final ArrayList<String> names = new ArrayList<String>(params.size());
+        final ArrayList<CharSequence> values = new ArrayList<CharSequence>(params.size());
+        for (Map.Entry<String, Object> entry : params.entrySet()) {
+            final Object entryValue = entry.getValue();
+            if (entryValue instanceof Object[]) {
+                for (Object value : (Object[]) entryValue) {
+                    names.add(entry.getKey());
+                    values.add(text(value));
+                }
+            } else if (entryValue instanceof Iterable) {
+                for (Object value : (Iterable) entryValue) {
+                    names.add(entry.getKey());
+                    values.add(text(value));
+                }
+            } else {
+                names.add(entry.getKey());
+                values.add(text(entryValue));
+            }
+        }
+
+        final int count = names.size();
+        int length = count > 1 ? count - 1 : 0; // Separators
+        for (int i = 0; i < count; i++) {
+            length += encodedLength(names.get(i), FORM) + 1 + encodedLength(values.get(i), FORM);
+        }
+
+        final byte[] out = new byte[length];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (i != 0) {
+                out[position++] = '&';
+            }
+            position = encode(names.get(i), FORM, out, position);
+            out[position++] = '=';
+            position = encode(values.get(i), FORM, out, position);
+        }
+        return out;
+    }
+
+    private static CharSequence text(Object value) {
+        if (value == null) {
+            return "";
+        }
+        return value instanceof CharSequence ? (CharSequence) value : String.valueOf(value);
+    }
+}
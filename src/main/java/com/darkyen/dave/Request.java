@@ -4,6 +4,7 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
 
 /**
@@ -20,8 +21,11 @@ public final class Request {
 
     final HttpMethod method;
     final String uri;
+    private String hostKey;
 
     Map<String, Object> headers;
+    /** Headers of the {@link RequestTemplate} (already merged with default headers) or null, shared and unmodifiable */
+    final Map<String, String> templateHeaders;
 
     Map<String, Object> params;
     boolean multipleValues;
@@ -44,11 +48,39 @@ public final class Request {
     boolean ensureSuccess;
     int retryCount;
     boolean waitExponential;
+    /** Request whose stale cached response this conditional copy revalidates, see {@link ResponseCache} */
+    Request revalidates;
 
     Request(Webb webb, HttpMethod method, String uri) {
+        this(webb, method, uri, null, null);
+    }
+
+    Request(Webb webb, HttpMethod method, String uri, String hostKey, Map<String, String> templateHeaders) {
         this.webb = webb;
         this.method = method;
         this.uri = uri;
+        this.hostKey = hostKey;
+        this.templateHeaders = templateHeaders;
+    }
+
+    /** Create a copy of a request without body, to the same URI, with its own headers and parameters. */
+    Request(Request request) {
+        this(request.webb, request.method, request.uri, request.hostKey, request.templateHeaders);
+        if (request.headers != null) {
+            headers = new LinkedHashMap<String, Object>(request.headers);
+        }
+        if (request.params != null) {
+            params = new LinkedHashMap<String, Object>(request.params);
+        }
+        multipleValues = request.multipleValues;
+        useCaches = request.useCaches;
+        connectTimeout = request.connectTimeout;
+        readTimeout = request.readTimeout;
+        ifModifiedSince = request.ifModifiedSince;
+        followRedirects = request.followRedirects;
+        ensureSuccess = request.ensureSuccess;
+        retryCount = request.retryCount;
+        waitExponential = request.waitExponential;
     }
 
     /**
@@ -150,6 +182,16 @@ public final class Request {
         return this;
     }
 
+    /** @return pool of buffers of the {@link Webb} which created this request */
+    BufferPool getBufferPool() {
+        return webb.getBufferPool();
+    }
+
+    /** @return retry manager of the {@link Webb} which created this request */
+    RetryManager getRetryManager() {
+        return webb.getRetryManager();
+    }
+
     /**
      * Get the URI of this request.
      *
@@ -159,6 +201,38 @@ public final class Request {
         return uri;
     }
 
+    /**
+     * Get the scheme and authority part of the URI of this request, for grouping of requests by the server they go to.
+     *
+     * @return e.g. "https://example.com:8080", lower case, without user info (credentials),
+     * or the whole uri if it does not look like absolute URI
+     */
+    String getHostKey() {
+        String hostKey = this.hostKey;
+        if (hostKey == null) {
+            final int schemeEnd = uri.indexOf("://");
+            int authorityEnd = uri.length();
+            int hostStart = -1;
+            if (schemeEnd != -1) {
+                hostStart = schemeEnd + 3;
+                for (int i = hostStart; i < uri.length(); i++) {
+                    final char c = uri.charAt(i);
+                    if (c == '/' || c == '?' || c == '#') {
+                        authorityEnd = i;
+                        break;
+                    }
+                }
+                final int userInfoEnd = uri.lastIndexOf('@', authorityEnd - 1);
+                if (userInfoEnd >= hostStart) {
+                    hostStart = userInfoEnd + 1;
+                }
+            }
+            hostKey = hostStart == -1 ? uri.substring(0, authorityEnd) : uri.substring(0, schemeEnd + 3) + uri.substring(hostStart, authorityEnd);
+            this.hostKey = hostKey = hostKey.toLowerCase(Locale.ENGLISH);
+        }
+        return hostKey;
+    }
+
     /**
      * Set (or overwrite) a HTTP header value.
      * <br>
@@ -212,19 +286,7 @@ public final class Request {
         if (file == null) throw new NullPointerException("file");
 
         this.payloadContentType = contentType;
-        this.payloadStream = new BodyStreamProvider<FileInputStream>() {
-            public FileInputStream createStream() throws Exception {
-                return new FileInputStream(file);
-            }
-
-            public long payloadSize(FileInputStream forStream) {
-                return file.length();
-            }
-
-            public void destroyStream(FileInputStream usedStream) {
-                WebbUtils.closeQuietly(usedStream);
-            }
-        };
+        this.payloadStream = new FileStreamProvider(file);
         return this;
     }
 
@@ -419,7 +481,7 @@ public final class Request {
      * @return the created <code>Response</code> object carrying the payload from the server as <code>T</code>
      */
     public <T> Response<T> execute(ResponseTranslator<T> translator) {
-        return webb.execute(this, translator);
+        return webb.execute(this, translator, null);
     }
 
     /**
@@ -438,6 +500,43 @@ public final class Request {
         return execute(ResponseTranslator.BYTES_TRANSLATOR);
     }
 
+    /**
+     * Execute the request and save the body to the file, see {@link FileTranslator}.
+     * @return the created <code>Response</code> object carrying the target file, or null if the response was not successful
+     */
+    public Response<File> executeFile(File target) {
+        return execute(new FileTranslator(target));
+    }
+
+    /**
+     * Execute the request as a download split into byte ranges, which are fetched at once, see {@link SegmentedDownload}.
+     * @return the response to the first range (or to the whole request, if the server does not support ranges),
+     * carrying the target file, or null if the response was not successful
+     */
+    public Response<File> executeSegmented(File target, int segments) {
+        return new SegmentedDownload(this, target).segments(segments).execute();
+    }
+
+    /**
+     * Execute the request as a download, which continues where it stopped when it fails, see {@link ResumableDownload}.
+     * @return the last response, carrying the target file, or null if the response was not successful
+     */
+    public Response<File> executeResumable(File target) {
+        return new ResumableDownload(this, target).execute();
+    }
+
+    /**
+     * Execute the request and return the body as an open stream, which can be read at caller's own pace,
+     * without buffering it whole in memory. The stream is already decompressed, if the body was compressed.
+     * <br>
+     * The response holds the connection until it is closed (or its body stream is closed),
+     * so it must always be closed, preferably in a <code>finally</code> block.
+     * @return the created <code>Response</code> object carrying the body as an open <code>InputStream</code>
+     */
+    public Response<InputStream> executeStream() {
+        return webb.executeStream(this);
+    }
+
     /**
      * Execute the request and expect no result payload (only status-code and headers).
      * @return the created <code>Response</code> object where no payload is expected or simply will be ignored.
@@ -465,4 +564,78 @@ public final class Request {
     public void execute(ResponseCallback<Void> callback) {
         execute(null, callback);
     }
+
+    /**
+     * Execute the request with given translator and using Webb's executionStrategy.
+     * @return future of the response, which can be used to wait for the result, register callbacks or cancel the request
+     * @see ResponseFuture
+     */
+    public <T> ResponseFuture<T> executeAsync(ResponseTranslator<T> translator) {
+        final ResponseFuture<T> future = new ResponseFuture<T>();
+        webb.executionStrategy.execute(this, translator, future.completion);
+        return future;
+    }
+
+    /** Execute the request with String translator and using Webb's executionStrategy. */
+    public ResponseFuture<String> executeAsyncString() {
+        return executeAsync(ResponseTranslator.STRING_TRANSLATOR);
+    }
+
+    /** Execute the request with byte[] translator and using Webb's executionStrategy. */
+    public ResponseFuture<byte[]> executeAsyncBytes() {
+        return executeAsync(ResponseTranslator.BYTES_TRANSLATOR);
+    }
+
+    /** Execute the request without any translator and using Webb's executionStrategy. */
+    public ResponseFuture<Void> executeAsync() {
+        return executeAsync((ResponseTranslator<Void>) null);
+    }
+
+    /**
+     * Execute the request without blocking the calling thread (if the transport supports it)
+     * and notify the callback when done.
+     */
+    <T> void executeNonBlocking(ResponseTranslator<T> translator, ResponseCallback<T> callback) {
+        webb.executeNonBlocking(this, translator, callback, 0);
+    }
+
+    /**
+     * Execute the request synchronously, on behalf of given callback.
+     * To be used by {@link ExecutionStrategy} implementations, so that the request can be cancelled,
+     * if the callback belongs to some {@link ResponseFuture}.
+     */
+    <T> Response<T> executeFor(ResponseTranslator<T> translator, ResponseCallback<T> callback) {
+        return webb.execute(this, translator, ResponseFuture.of(callback));
+    }
+
+    /**
+     * Like {@link #executeFor(ResponseTranslator, ResponseCallback)}, but retries are scheduled, instead of waiting for them.
+     * @param tries how many times was the request already tried
+     * @param retry run after the backoff delay, when the request should be tried again (with tries + 1)
+     * @return the response, or null if the retry was scheduled
+     */
+    <T> Response<T> executeAttempt(ResponseTranslator<T> translator, ResponseCallback<T> callback, int tries, Runnable retry) {
+        return webb.executeAttempt(this, translator, ResponseFuture.of(callback), tries, retry);
+    }
+
+    /** Provider of {@link #body(File, String)}, through which Webb recognizes file bodies, which can be sent without copying. */
+    static final class FileStreamProvider implements BodyStreamProvider<FileInputStream> {
+        final File file;
+
+        FileStreamProvider(File file) {
+            this.file = file;
+        }
+
+        public FileInputStream createStream() throws Exception {
+            return new FileInputStream(file);
+        }
+
+        public long payloadSize(FileInputStream forStream) {
+            return file.length();
+        }
+
+        public void destroyStream(FileInputStream usedStream) {
+            WebbUtils.closeQuietly(usedStream);
+        }
+    }
 }
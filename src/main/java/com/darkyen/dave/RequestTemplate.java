@@ -0,0 +1,204 @@
+package com.darkyen.dave;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precompiled request for frequently used endpoints, created by {@link Webb#template(HttpMethod, String)}.
+ * <br>
+ * Everything what is the same for each request is resolved when the template is created: the absolute URI
+ * with static query parameters already encoded, and headers already merged with default headers of the {@link Webb}.
+ * Each call then only binds the values of URI variables through {@link #bind(Object...)}.
+ * <br>
+ * URI variables are written as <code>{name}</code>, for example <code>/users/{id}/posts?page={page}</code>.
+ * Values of variables are encoded, as a path segment or as a query value, depending on where the variable is.
+ * <br>
+ * Templates are immutable and thread safe, methods which change the template return a new one.
+ * Later changes of the default headers of the {@link Webb} are not reflected in existing templates.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class RequestTemplate {
+
+    private final Webb webb;
+    private final HttpMethod method;
+    /** Literal parts of the URI, around the variables, always one more than variables */
+    private final String[] literals;
+    private final String[] variables;
+    /** Whether the variable at given index is in the query part of the URI */
+    private final boolean[] variableInQuery;
+    /** Total length of the literals */
+    private final int literalsLength;
+    private final String hostKey;
+    /** Unmodifiable, shared by all requests created by this template */
+    private final Map<String, String> headers;
+
+    RequestTemplate(Webb webb, HttpMethod method, String uri, Map<String, String> headers) {
+        this.webb = webb;
+        this.method = method;
+
+        final ArrayList<String> literals = new ArrayList<String>();
+        final ArrayList<String> variables = new ArrayList<String>();
+        final ArrayList<Boolean> variableInQuery = new ArrayList<Boolean>();
+        int literalStart = 0;
+        int variableStart;
+        while ((variableStart = uri.indexOf('{', literalStart)) != -1) {
+            final int variableEnd = uri.indexOf('}', variableStart);
+            if (variableEnd == -1) {
+                throw new IllegalArgumentException("Unterminated variable in " + uri);
+            }
+            final String name = uri.substring(variableStart + 1, variableEnd);
+            if (name.length() == 0) {
+                throw new IllegalArgumentException("Variable without name in " + uri);
+            }
+            literals.add(uri.substring(literalStart, variableStart));
+            variables.add(name);
+            variableInQuery.add(uri.lastIndexOf('?', variableStart) != -1);
+            literalStart = variableEnd + 1;
+        }
+        literals.add(uri.substring(literalStart));
+
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.variables = variables.toArray(new String[variables.size()]);
+        this.variableInQuery = new boolean[variableInQuery.size()];
+        for (int i = 0; i < this.variableInQuery.length; i++) {
+            this.variableInQuery[i] = variableInQuery.get(i);
+        }
+        this.literalsLength = length(this.literals);
+        final String first = this.literals[0];
+        final int schemeEnd = first.indexOf("://");
+        if (this.literals.length == 1 || (schemeEnd != -1 && first.indexOf('/', schemeEnd + 3) != -1)) {
+            this.hostKey = new Request(webb, method, first).getHostKey();
+        } else {
+            // Host depends on the variables
+            this.hostKey = null;
+        }
+        this.headers = Collections.unmodifiableMap(headers);
+    }
+
+    private RequestTemplate(RequestTemplate template, String[] literals, Map<String, String> headers) {
+        this.webb = template.webb;
+        this.method = template.method;
+        this.literals = literals;
+        this.variables = template.variables;
+        this.variableInQuery = template.variableInQuery;
+        this.literalsLength = length(literals);
+        this.hostKey = template.hostKey;
+        this.headers = headers;
+    }
+
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    /** @return names of URI variables, in the order in which they are bound by {@link #bind(Object...)} */
+    public List<String> getVariables() {
+        return Collections.unmodifiableList(Arrays.asList(variables));
+    }
+
+    /** @return headers sent with each request, including the default headers of the {@link Webb} */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Create a template with additional query parameter, which is the same for each request.
+     * The parameter is added to the end of the query, before the fragment, if there is one.
+     * @param value converted to String through <code>toString()</code>, null is converted to empty string
+     * @return new template
+     */
+    public RequestTemplate query(String name, Object value) {
+        if (name == null) throw new NullPointerException("name");
+        final String[] literals = this.literals.clone();
+        // The literal where the query ends, and where in it
+        int index = literals.length - 1;
+        int end = literals[index].length();
+        for (int i = 0; i < literals.length; i++) {
+            final int fragment = literals[i].indexOf('#');
+            if (fragment != -1) {
+                index = i;
+                end = fragment;
+                break;
+            }
+        }
+        boolean hasQuery = literals[index].lastIndexOf('?', end - 1) != -1;
+        for (int i = 0; i < index && !hasQuery; i++) {
+            hasQuery = literals[i].indexOf('?') != -1;
+        }
+        final Map<String, Object> param = Collections.singletonMap(name, value);
+        final String literal = literals[index];
+        literals[index] = literal.substring(0, end) + (hasQuery ? '&' : '?') + WebbUtils.queryString(param) + literal.substring(end);
+        return new RequestTemplate(this, literals, headers);
+    }
+
+    /**
+     * Create a template with additional header, which is sent with each request.
+     * @param value see {@link Request#header(String, Object)}, null to remove the header
+     * @return new template
+     */
+    public RequestTemplate header(String name, Object value) {
+        if (name == null || name.length() == 0) throw new IllegalArgumentException("name must not be empty");
+        final Map<String, String> headers = new LinkedHashMap<String, String>(this.headers);
+        if (value == null) {
+            headers.remove(name);
+        } else {
+            headers.put(name, WebbUtils.headerValue(value));
+        }
+        return new RequestTemplate(this, literals, Collections.unmodifiableMap(headers));
+    }
+
+    /**
+     * Create a request to the URI of this template.
+     * The request can be further modified as usual, but it is best to keep the changes to a minimum.
+     * @param values of the URI variables, in order, see {@link #getVariables()}.
+     *               Converted to String through <code>toString()</code>, null is not allowed.
+     */
+    public Request bind(Object... values) {
+        if (values.length != variables.length) {
+            throw new IllegalArgumentException("Template has " + variables.length + " variables, got " + values.length + " values");
+        }
+        if (values.length == 0) {
+            return new Request(webb, method, literals[0], hostKey, headers);
+        }
+
+        final StringBuilder uri = new StringBuilder(literalsLength + values.length * 16);
+        uri.append(literals[0]);
+        for (int i = 0; i < values.length; i++) {
+            final Object value = values[i];
+            if (value == null) {
+                throw new NullPointerException("Value of variable " + variables[i]);
+            }
+            PercentEncoder.append(uri, value.toString(), variableInQuery[i] ? PercentEncoder.FORM : PercentEncoder.PATH_SEGMENT);
+            uri.append(literals[i + 1]);
+        }
+        return new Request(webb, method, uri.toString(), hostKey, headers);
+    }
+
+    /**
+     * Create a request to the URI of this template.
+     * @param values of the URI variables by their name, all variables must be present
+     * @see #bind(Object...)
+     */
+    public Request bind(Map<String, ?> values) {
+        final Object[] ordered = new Object[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            final Object value = values.get(variables[i]);
+            if (value == null) {
+                throw new IllegalArgumentException("Missing value of variable " + variables[i]);
+            }
+            ordered[i] = value;
+        }
+        return bind(ordered);
+    }
+
+    private static int length(String[] literals) {
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        return length;
+    }
+}
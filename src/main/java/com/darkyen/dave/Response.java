@@ -1,8 +1,7 @@
 package com.darkyen.dave;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URLConnection;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.List;
@@ -10,11 +9,14 @@ import java.util.Map;
 
 /**
  * Holds data about the response message returning from HTTP request.
+ * <br>
+ * Responses of {@link Request#executeStream()} hold an open connection and must be closed,
+ * closing other responses does nothing.
  *
  * @author hgoebl
  */
 @SuppressWarnings("WeakerAccess")
-public final class Response<T> {
+public final class Response<T> implements Closeable {
 
     private final Request request;
 
@@ -25,26 +27,60 @@ public final class Response<T> {
     private final Map<String, List<String>> headers;
     private final String contentType;
     private final long date, expiration, lastModified;
+    private final long contentLength;
 
     T body;
+    /** Served from {@link ResponseCache}, not from the network */
+    boolean cached;
+    /** {@link System#nanoTime()} when the headers were received from the network, 0 if they were not */
+    long receivedNanos;
+    /** Released on {@link #close()}, if the body is streamed */
+    Closeable resources;
 
-    Response(Request request, URLConnection connection) throws IOException {
+    Response(Request request, Transport.Exchange exchange) {
+        this(request, exchange.getStatusCode(), exchange.getStatusMessage(), exchange.getStatusLine(), exchange.getHeaders());
+        this.receivedNanos = System.nanoTime();
+    }
+
+    /** Create response which was not received through an exchange, for example from a {@link ResponseCache} */
+    Response(Request request, int statusCode, String statusMessage, String statusLine, Map<String, List<String>> headers) {
         this.request = request;
 
-        if (connection instanceof HttpURLConnection) {
-            this.statusCode = ((HttpURLConnection)connection).getResponseCode();
-            this.statusMessage = ((HttpURLConnection)connection).getResponseMessage();
-        } else {
-            this.statusCode = 200;
-            this.statusMessage = "Non-http connection";
-        }
-        this.statusLine = connection.getHeaderField(null);
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+        this.statusLine = statusLine;
+
+        this.headers = headers;
+        this.contentType = getHeaderField(WebbConst.HDR_CONTENT_TYPE);
+        this.date = getHeaderFieldDate("Date", 0);
+        this.expiration = getHeaderFieldDate("Expires", 0);
+        this.lastModified = getHeaderFieldDate("Last-Modified", 0);
+        this.contentLength = contentLength();
+    }
+
+    /**
+     * Create response with the status and headers of this one, but with another body.
+     * Resources of this response stay with it, so it still has to be closed.
+     */
+    <B> Response<B> withBody(B body) {
+        final Response<B> result = new Response<B>(request, statusCode, statusMessage, statusLine, headers);
+        result.body = body;
+        result.cached = cached;
+        result.receivedNanos = receivedNanos;
+        return result;
+    }
 
-        this.headers = connection.getHeaderFields();
-        this.contentType = connection.getContentType();
-        this.date = connection.getDate();
-        this.expiration = connection.getExpiration();
-        this.lastModified = connection.getLastModified();
+    private long contentLength() {
+        if (statusCode == 204 || statusCode == 304 || (statusCode >= 100 && statusCode < 200)) {
+            return 0;
+        }
+        final String encoding = getHeaderField(WebbConst.HDR_CONTENT_ENCODING);
+        if (encoding != null && !"identity".equalsIgnoreCase(encoding.trim())) {
+            // Declared length is of the encoded body, translators see it decoded
+            return -1;
+        }
+        final long length = getHeaderFieldInt(WebbConst.HDR_CONTENT_LENGTH, -1);
+        return length < 0 ? -1 : length;
     }
 
     /**
@@ -55,6 +91,11 @@ public final class Response<T> {
         return request;
     }
 
+    /** @return pool of buffers, which translators can use to read the body */
+    public BufferPool getBufferPool() {
+        return request.getBufferPool();
+    }
+
     /**
      * See <a href="http://docs.oracle.com/javase/7/docs/api/java/net/HttpURLConnection.html#responseCode">
      *     HttpURLConnection.responseCode</a>
@@ -100,6 +141,19 @@ public final class Response<T> {
         return contentType;
     }
 
+    /**
+     * Returns the length of the body, as declared by the server in the "Content-Length" header.
+     * This is the length of the stream which is given to the {@link ResponseTranslator},
+     * so translators can use it to read the body into a buffer of the right size.
+     * Note that the server may not keep its promise, so the actual body may be shorter or longer.
+     *
+     * @return length in bytes, 0 for responses which have no body, or -1 if not known,
+     * for example when the body is compressed or chunked
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
     /**
      * Returns the payload of the response converted to the given type.
      * @return the converted payload (can be null).
@@ -152,7 +206,16 @@ public final class Response<T> {
      * @return the value of the named header field, or null
      */
     public String getHeaderField (String name) {
-        final List<String> values = headers.get(name);
+        List<String> values = headers.get(name);
+        if (values == null) {
+            // Header names are case-insensitive
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                if (name.equalsIgnoreCase(entry.getKey())) {
+                    values = entry.getValue();
+                    break;
+                }
+            }
+        }
         if (values == null || values.isEmpty()) {
             return null;
         }
@@ -221,4 +284,22 @@ public final class Response<T> {
             throw new WebbException("Request failed: " + statusCode + " " + statusMessage, this);
         }
     }
+
+    /**
+     * Release the connection of a streamed response, see {@link Request#executeStream()}.
+     * The body stream can not be read afterwards. Does nothing if the response is already closed or not streamed.
+     */
+    public void close() {
+        final Closeable resources;
+        synchronized (this) {
+            resources = this.resources;
+            this.resources = null;
+        }
+        if (resources != null) {
+            try {
+                resources.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
 }
@@ -0,0 +1,557 @@
+package com.darkyen.dave;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * In-memory HTTP cache of translated responses, following the rules of a private cache from RFC 7234,
+ * see {@link Webb#setCache(ResponseCache)}.
+ * <br>
+ * Only responses of GET requests are stored, and only when they are fresh for some time: through
+ * <code>Cache-Control: max-age</code>, <code>Expires</code>, or heuristically (10% of the time since
+ * <code>Last-Modified</code>, at most a day). Responses with <code>Cache-Control: no-store</code>
+ * or <code>Vary: *</code> are not stored, neither are those with <code>no-cache</code>, unless the cache revalidates.
+ * Requests with <code>Cache-Control: no-cache</code> or <code>no-store</code> (or <code>Pragma: no-cache</code>)
+ * always go to the network, <code>max-age</code>
+ * and <code>min-fresh</code> of the request are honored. Headers listed in <code>Vary</code> must match
+ * for the stored response to be used, only the last variant of each URI is kept.
+ * Requests with <code>Authorization</code> or <code>Cookie</code> headers are not keyed by them, so their responses
+ * are stored, and stored responses are served to them, only when the response is <code>Cache-Control: public</code>.
+ * <br>
+ * Bodies are cached as they were decoded by the {@link ResponseTranslator}, so each translator has its own entries
+ * (translators are compared by <code>equals()</code>) and the same body instance is given to each request served
+ * from the cache, so it must not be modified. Responses of {@link Request#executeStream()} and of {@link FileTranslator}
+ * are not cached, neither are requests with {@link Request#ifModifiedSince(long)}.
+ * Successful POST, PUT and DELETE requests invalidate the entries of their URI.
+ * <br>
+ * Cache which revalidates also stores responses which are not fresh, but have an <code>ETag</code> or <code>Last-Modified</code>.
+ * When such response is stale, the request is sent with <code>If-None-Match</code> and <code>If-Modified-Since</code>
+ * and if the server answers <code>304 Not Modified</code>, the stored response, with the body which was already translated,
+ * is returned instead, with headers updated by the 304 response.
+ * <br>
+ * Total size of the bodies is bounded, least recently used entries are evicted first.
+ * <br>
+ * This class is thread safe. If you need other behaviour, just extend this class.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ResponseCache {
+
+    /** Heuristic freshness is never longer than this */
+    private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000L;
+    /** Assumed size of bodies of unknown size */
+    private static final long DEFAULT_BODY_SIZE = 8 * 1024;
+
+    private final long maxSize;
+    private final boolean revalidate;
+    /** In access order, the first is the least recently used */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long size = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long storeCount = 0;
+    private long evictionCount = 0;
+    private long revalidationCount = 0;
+
+    /** Create cache which does not revalidate stale responses. */
+    public ResponseCache(long maxSize) {
+        this(maxSize, false);
+    }
+
+    /**
+     * @param maxSize maximum total size of cached bodies in bytes, see {@link #sizeOf(Object, Response)}
+     * @param revalidate true to store responses with <code>ETag</code> or <code>Last-Modified</code>
+     *                   and to revalidate them when they are stale, instead of downloading them again
+     */
+    public ResponseCache(long maxSize, boolean revalidate) {
+        if (maxSize < 0) throw new IllegalArgumentException("maxSize must not be negative");
+        this.maxSize = maxSize;
+        this.revalidate = revalidate;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public boolean isRevalidating() {
+        return revalidate;
+    }
+
+    /** @return current total size of cached bodies */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /** @return how many requests were served from the cache */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /** @return how many cacheable requests had to go to the network */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /** @return how many responses were stored */
+    public synchronized long getStoreCount() {
+        return storeCount;
+    }
+
+    /** @return how many entries were evicted to keep the size under the maximum */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /** @return how many stale responses were confirmed by the server to be still valid */
+    public synchronized long getRevalidationCount() {
+        return revalidationCount;
+    }
+
+    /** Remove all entries of the URI */
+    public synchronized void invalidate(String uri) {
+        final Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Key, Entry> entry = iterator.next();
+            if (entry.getKey().uri.equals(uri)) {
+                size -= entry.getValue().size;
+                iterator.remove();
+            }
+        }
+    }
+
+    /** Remove all entries, statistics are kept */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Estimate how much memory the body takes. Override to measure bodies of custom translators.
+     * @param body decoded by the translator, may be null
+     * @param response with the body
+     * @return size in bytes, in the same units as the maximum size
+     */
+    protected long sizeOf(Object body, Response<?> response) {
+        if (body == null) {
+            return 0;
+        } else if (body instanceof byte[]) {
+            return ((byte[]) body).length;
+        } else if (body instanceof CharSequence) {
+            return ((CharSequence) body).length() * 2L;
+        }
+        final long length = response.getContentLength();
+        return length >= 0 ? length : DEFAULT_BODY_SIZE;
+    }
+
+    /** @return true if the request with the translator can be served from the cache and its response stored */
+    static boolean isCacheable(Request request, ResponseTranslator<?> translator) {
+        return request.method == HttpMethod.GET && request.ifModifiedSince == null
+                && translator != null && !(translator instanceof FileTranslator);
+    }
+
+    /**
+     * @param uri resolved URI of the request
+     * @param headers resolved headers of the request
+     * @return response with fresh cached body or null if the request must go to the network
+     */
+    <T> Response<T> get(Request request, String uri, Map<String, String> headers, ResponseTranslator<T> translator) {
+        final Entry entry;
+        final long age;
+        synchronized (this) {
+            final Entry stored = bypasses(headers) ? null : entries.get(new Key(uri, translator));
+            age = stored == null ? 0 : stored.currentAge(System.currentTimeMillis());
+            if (stored == null || !varyMatches(stored.vary, headers) || !isShared(headers, stored.headers) || !isFresh(stored.freshnessLifetime, age, headerValue(headers, "Cache-Control"))) {
+                missCount++;
+                return null;
+            }
+            hitCount++;
+            entry = stored;
+        }
+
+        final Response<T> response = new Response<T>(request, entry.statusCode, entry.statusMessage, entry.statusLine, withAge(entry.headers, age));
+        //noinspection unchecked
+        response.body = (T) entry.body;
+        response.cached = true;
+        return response;
+    }
+
+    /**
+     * Store the response, if it is cacheable.
+     * @param uri resolved URI of the request
+     * @param headers resolved headers of the request
+     */
+    void put(String uri, Map<String, String> headers, ResponseTranslator<?> translator, Response<?> response) {
+        final long now = System.currentTimeMillis();
+        if (!isStorable(headers, response) || (freshnessLifetime(response, now) <= 0 && !(revalidate && hasValidator(response.getHeaders())))) {
+            return;
+        }
+        final long entrySize = sizeOf(response.getBody(), response);
+        if (entrySize > maxSize) {
+            return;
+        }
+        final Key key = new Key(uri, translator);
+        final Entry entry = new Entry(response, varyValues(headers, response), now, entrySize);
+
+        synchronized (this) {
+            final Entry old = entries.put(key, entry);
+            if (old != null) {
+                size -= old.size;
+            }
+            size += entrySize;
+            storeCount++;
+
+            final Iterator<Entry> iterator = entries.values().iterator();
+            while (size > maxSize && iterator.hasNext()) {
+                size -= iterator.next().size;
+                iterator.remove();
+                evictionCount++;
+            }
+        }
+    }
+
+    /**
+     * @param uri resolved URI of the request
+     * @param headers resolved headers of the request
+     * @return conditional copy of the request, which revalidates the stored response, or null if there is none to revalidate
+     */
+    Request revalidation(Request request, String uri, Map<String, String> headers, ResponseTranslator<?> translator) {
+        if (!revalidate || !canRevalidate(headers)) {
+            return null;
+        }
+        final Entry entry;
+        synchronized (this) {
+            entry = entries.get(new Key(uri, translator));
+        }
+        if (entry == null || !varyMatches(entry.vary, headers) || !isShared(headers, entry.headers) || !hasValidator(entry.headers)) {
+            return null;
+        }
+        return conditional(request, entry.headers);
+    }
+
+    /**
+     * Update the stored response, which was revalidated by the conditional request.
+     * @param uri resolved URI of the request
+     * @param headers resolved headers of the request
+     * @param notModified 304 response to the conditional request from {@link #revalidation(Request, String, Map, ResponseTranslator)}
+     * @return the stored response with updated headers, or null if it is not stored anymore
+     */
+    <T> Response<T> revalidated(String uri, Map<String, String> headers, ResponseTranslator<T> translator, Response<?> notModified) {
+        final long now = System.currentTimeMillis();
+        final Key key = new Key(uri, translator);
+        synchronized (this) {
+            final Entry entry = entries.get(key);
+            if (entry == null || !varyMatches(entry.vary, headers) || !isShared(headers, entry.headers)) {
+                return null;
+            }
+            final Response<T> response = new Response<T>(notModified.getRequest().revalidates, entry.statusCode, entry.statusMessage,
+                    entry.statusLine, updateHeaders(entry.headers, notModified.getHeaders()));
+            //noinspection unchecked
+            response.body = (T) entry.body;
+            response.cached = true;
+            response.receivedNanos = notModified.receivedNanos;
+            entries.put(key, new Entry(response, entry.vary, now, entry.size));
+            revalidationCount++;
+            return response;
+        }
+    }
+
+    /** @return true if the request headers allow to revalidate the stored response */
+    static boolean canRevalidate(Map<String, String> headers) {
+        return directive(headerValue(headers, "Cache-Control"), "no-store") == null
+                && headerValue(headers, "Range") == null
+                // Request which is already conditional is left to the caller
+                && headerValue(headers, "If-None-Match") == null
+                && headerValue(headers, "If-Modified-Since") == null;
+    }
+
+    static boolean hasValidator(Map<String, List<String>> headers) {
+        return headerValues(headers, "ETag") != null || headerValues(headers, "Last-Modified") != null;
+    }
+
+    /** @return copy of the request with <code>If-None-Match</code> and <code>If-Modified-Since</code> from the stored headers */
+    static Request conditional(Request request, Map<String, List<String>> storedHeaders) {
+        final Request conditional = new Request(request);
+        final String etag = headerValues(storedHeaders, "ETag");
+        if (etag != null) {
+            conditional.header("If-None-Match", etag);
+        }
+        final String lastModified = headerValues(storedHeaders, "Last-Modified");
+        if (lastModified != null) {
+            conditional.header("If-Modified-Since", lastModified);
+        }
+        conditional.revalidates = request;
+        return conditional;
+    }
+
+    /** @return stored headers, with those which are in the 304 response replaced, as RFC 7234 requires */
+    static Map<String, List<String>> updateHeaders(Map<String, List<String>> stored, Map<String, List<String>> notModified) {
+        final Map<String, List<String>> result = new LinkedHashMap<String, List<String>>(stored);
+        for (Map.Entry<String, List<String>> header : notModified.entrySet()) {
+            final String name = header.getKey();
+            // Status line and length of the empty body are not about the stored response
+            if (name == null || name.equalsIgnoreCase(WebbConst.HDR_CONTENT_LENGTH)) {
+                continue;
+            }
+            final Iterator<String> names = result.keySet().iterator();
+            while (names.hasNext()) {
+                final String storedName = names.next();
+                if (storedName != null && storedName.equalsIgnoreCase(name)) {
+                    names.remove();
+                }
+            }
+            result.put(name, header.getValue());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /** @return true if the request headers don't allow to serve it from the cache */
+    static boolean bypasses(Map<String, String> headers) {
+        final String cacheControl = headerValue(headers, "Cache-Control");
+        return directive(cacheControl, "no-cache") != null || directive(cacheControl, "no-store") != null
+                || "no-cache".equalsIgnoreCase(headerValue(headers, "Pragma"))
+                || headerValue(headers, "Range") != null;
+    }
+
+    /** @return true if the response of given freshness lifetime and age can be served to request with the Cache-Control */
+    static boolean isFresh(long freshnessLifetime, long age, String requestCacheControl) {
+        final String maxAge = directive(requestCacheControl, "max-age");
+        if (maxAge != null && age > seconds(maxAge)) {
+            return false;
+        }
+        final String minFresh = directive(requestCacheControl, "min-fresh");
+        final long minFreshness = minFresh == null ? 0 : seconds(minFresh);
+        return freshnessLifetime - age > minFreshness;
+    }
+
+    /** @return true if the response to the request with the headers may be stored, not considering its freshness */
+    static boolean isStorable(Map<String, String> headers, Response<?> response) {
+        switch (response.getStatusCode()) {
+            case 200: case 203: case 204: case 300: case 301: case 404: case 405: case 410: case 414: case 501:
+                break;
+            default:
+                return false;
+        }
+        final String cacheControl = headerValues(response.getHeaders(), "Cache-Control");
+        final String vary = headerValues(response.getHeaders(), "Vary");
+        return directive(cacheControl, "no-store") == null
+                && directive(headerValue(headers, "Cache-Control"), "no-store") == null
+                && headerValue(headers, "Range") == null
+                && (vary == null || vary.indexOf('*') == -1)
+                && isShared(headers, response.getHeaders());
+    }
+
+    /**
+     * @param headers of the request
+     * @param responseHeaders of the stored response, or of the response to store
+     * @return true if the response can be stored for, or served to, the request: requests with credentials
+     * (<code>Authorization</code> or <code>Cookie</code>) share only public responses, because the cache is not keyed by them
+     */
+    static boolean isShared(Map<String, String> headers, Map<String, List<String>> responseHeaders) {
+        return (headerValue(headers, "Authorization") == null && headerValue(headers, "Cookie") == null)
+                || directive(headerValues(responseHeaders, "Cache-Control"), "public") != null;
+    }
+
+    /** @return for how many milliseconds is the response fresh since it was created, 0 if it is stale right away */
+    static long freshnessLifetime(Response<?> response, long responseTime) {
+        final String cacheControl = headerValues(response.getHeaders(), "Cache-Control");
+        if (directive(cacheControl, "no-cache") != null) {
+            return 0;
+        }
+        final String maxAge = directive(cacheControl, "max-age");
+        if (maxAge != null) {
+            return seconds(maxAge);
+        }
+        final long date = response.getDate() != 0 ? response.getDate() : responseTime;
+        if (response.getHeaderField("Expires") != null) {
+            // Invalid dates, like "0", mean already expired
+            return response.getExpiration() == 0 ? 0 : Math.max(0, response.getExpiration() - date);
+        }
+        if (response.getLastModified() != 0) {
+            return Math.min(Math.max(0, date - response.getLastModified()) / 10, MAX_HEURISTIC_LIFETIME);
+        }
+        return 0;
+    }
+
+    /** @return values of headers of the request listed in Vary of the response, by lowercase name, or null if there is no Vary */
+    static Map<String, String> varyValues(Map<String, String> headers, Response<?> response) {
+        final String vary = headerValues(response.getHeaders(), "Vary");
+        if (vary == null) {
+            return null;
+        }
+        final Map<String, String> values = new LinkedHashMap<String, String>();
+        for (String name : vary.split(",")) {
+            name = name.trim();
+            if (name.length() > 0) {
+                values.put(name.toLowerCase(Locale.ENGLISH), headerValue(headers, name));
+            }
+        }
+        return values;
+    }
+
+    /** @return true if the request headers listed in Vary are the same as the stored values, see {@link #varyValues(Map, Response)} */
+    static boolean varyMatches(Map<String, String> vary, Map<String, String> headers) {
+        if (vary == null) {
+            return true;
+        }
+        for (Map.Entry<String, String> entry : vary.entrySet()) {
+            final String value = headerValue(headers, entry.getKey());
+            if (value == null ? entry.getValue() != null : !value.equals(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return age of the response in milliseconds, when it was received, according to its Date and Age headers */
+    static long initialAge(Response<?> response, long responseTime) {
+        final long apparentAge = response.getDate() == 0 ? 0 : Math.max(0, responseTime - response.getDate());
+        return Math.max(apparentAge, seconds(response.getHeaderField("Age")));
+    }
+
+    /** @return copy of the headers with Age header set to the age, as RFC 7234 requires for responses from a cache */
+    static Map<String, List<String>> withAge(Map<String, List<String>> headers, long age) {
+        final Map<String, List<String>> result = new LinkedHashMap<String, List<String>>(headers);
+        final Iterator<String> names = result.keySet().iterator();
+        while (names.hasNext()) {
+            final String name = names.next();
+            if (name != null && name.equalsIgnoreCase("Age")) {
+                names.remove();
+            }
+        }
+        result.put("Age", Collections.singletonList(Long.toString(age / 1000)));
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @param value of the directive, in seconds
+     * @return milliseconds, invalid values are 0
+     */
+    static long seconds(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value)) * 1000L;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Find a directive in the value of Cache-Control header.
+     * @return value of the directive, empty string if it has no value, or null if it is not present
+     */
+    static String directive(String cacheControl, String name) {
+        if (cacheControl == null) {
+            return null;
+        }
+        for (String part : cacheControl.split(",")) {
+            final int equals = part.indexOf('=');
+            final String directive = (equals == -1 ? part : part.substring(0, equals)).trim();
+            if (directive.equalsIgnoreCase(name)) {
+                if (equals == -1) {
+                    return "";
+                }
+                String value = part.substring(equals + 1).trim();
+                if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /** @return value of the request header with case-insensitive name, or null */
+    static String headerValue(Map<String, String> headers, String name) {
+        final String value = headers.get(name);
+        if (value != null) {
+            return value;
+        }
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /** @return all values of the response header with case-insensitive name, joined by commas, or null */
+    static String headerValues(Map<String, List<String>> headers, String name) {
+        StringBuilder result = null;
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (entry.getKey() == null || !name.equalsIgnoreCase(entry.getKey())) {
+                continue;
+            }
+            for (String value : entry.getValue()) {
+                if (result == null) {
+                    result = new StringBuilder(value);
+                } else {
+                    result.append(", ").append(value);
+                }
+            }
+        }
+        return result == null ? null : result.toString();
+    }
+
+    private static final class Key {
+        final String uri;
+        final ResponseTranslator<?> translator;
+
+        private Key(String uri, ResponseTranslator<?> translator) {
+            this.uri = uri;
+            this.translator = translator;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key key = (Key) o;
+            return uri.equals(key.uri) && translator.equals(key.translator);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * uri.hashCode() + translator.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        final int statusCode;
+        final String statusMessage;
+        final String statusLine;
+        final Map<String, List<String>> headers;
+        final Object body;
+        /** See {@link #varyValues(Map, Response)} */
+        final Map<String, String> vary;
+        final long responseTime;
+        /** Age of the response when it was received, in milliseconds */
+        final long initialAge;
+        final long freshnessLifetime;
+        final long size;
+
+        private Entry(Response<?> response, Map<String, String> vary, long responseTime, long size) {
+            this.statusCode = response.getStatusCode();
+            this.statusMessage = response.getStatusMessage();
+            this.statusLine = response.getStatusLine();
+            this.headers = response.getHeaders();
+            this.body = response.getBody();
+            this.vary = vary;
+            this.responseTime = responseTime;
+            this.initialAge = initialAge(response, responseTime);
+            this.freshnessLifetime = freshnessLifetime(response, responseTime);
+            this.size = size;
+        }
+
+        long currentAge(long now) {
+            return initialAge + Math.max(0, now - responseTime);
+        }
+
+    }
+}
@@ -0,0 +1,230 @@
+package com.darkyen.dave;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pending result of a request executed through {@link Request#executeAsync(ResponseTranslator)}.
+ * <br>
+ * The request is executed by Webb's {@link ExecutionStrategy}. Results can be either waited for through
+ * {@link #get()}, or received without blocking any thread through {@link #addCallback(ResponseCallback)}.
+ * <br>
+ * Cancelling the future with <code>mayInterruptIfRunning</code> disconnects the underlying connection
+ * of the running request. Requests which did not start yet are not executed at all.
+ * (This works with strategies built into this library, with custom strategies, cancellation
+ * only prevents the result from being delivered.)
+ *
+ * @param <T> type of the response body
+ */
+@SuppressWarnings("WeakerAccess")
+public final class ResponseFuture<T> implements Future<Response<T>> {
+
+    private boolean done = false;
+    private boolean cancelled = false;
+    private Response<T> response;
+    private WebbException exception;
+
+    private Transport.Exchange exchange;
+    private List<ResponseCallback<T>> callbacks;
+
+    /** Callback given to the {@link ExecutionStrategy}, completes this future. */
+    final ResponseCallback<T> completion = new Completion();
+
+    ResponseFuture() {
+    }
+
+    /**
+     * Register a callback which is called when the request completes.
+     * If the request already completed, callback is called immediately on the calling thread,
+     * otherwise it will be called on the thread which completes the request.
+     * When the future is cancelled, {@link ResponseCallback#failure(WebbException)} is called with exception
+     * caused by {@link CancellationException}.
+     *
+     * @return <code>this</code> for method chaining
+     */
+    public ResponseFuture<T> addCallback(ResponseCallback<T> callback) {
+        if (callback == null) throw new NullPointerException("callback");
+        synchronized (this) {
+            if (!done) {
+                if (callbacks == null) {
+                    callbacks = new ArrayList<ResponseCallback<T>>(2);
+                }
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        notifyCallback(callback);
+        return this;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        final Transport.Exchange exchange;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            cancelled = true;
+            exception = new WebbException("Request has been cancelled", new CancellationException());
+            exchange = this.exchange;
+            this.exchange = null;
+            notifyAll();
+        }
+
+        if (mayInterruptIfRunning && exchange != null) {
+            exchange.abort();
+        }
+        // There is no ExecutionStrategy to report to, the canceller should not get callback exceptions either
+        final RuntimeException callbackException = notifyCallbacks();
+        if (callbackException != null) {
+            System.err.println("ResponseFuture - callbackFailure");
+            callbackException.printStackTrace(System.err);
+        }
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public Response<T> get() throws InterruptedException, ExecutionException {
+        synchronized (this) {
+            while (!done) {
+                wait();
+            }
+        }
+        return result();
+    }
+
+    public Response<T> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            while (!done) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+        return result();
+    }
+
+    private synchronized Response<T> result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (exception != null) {
+            throw new ExecutionException(exception);
+        }
+        return response;
+    }
+
+    /**
+     * Called by {@link Webb} when it opens an exchange for this request.
+     * @return false if the request has been cancelled and the exchange should not be used
+     */
+    synchronized boolean attach(Transport.Exchange exchange) {
+        if (cancelled) {
+            return false;
+        }
+        this.exchange = exchange;
+        return true;
+    }
+
+    /** Called by {@link Webb} when the exchange is no longer in use. */
+    synchronized void detach() {
+        this.exchange = null;
+    }
+
+    private void complete(Response<T> response, WebbException exception) {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            this.response = response;
+            this.exception = exception;
+            this.exchange = null;
+            notifyAll();
+        }
+        final RuntimeException callbackException = notifyCallbacks();
+        if (callbackException != null) {
+            // Let the ExecutionStrategy report it
+            throw callbackException;
+        }
+    }
+
+    /**
+     * Notify all registered callbacks, even when some of them throw.
+     * @return the first exception thrown by a callback, if any
+     */
+    private RuntimeException notifyCallbacks() {
+        final List<ResponseCallback<T>> callbacks;
+        synchronized (this) {
+            callbacks = this.callbacks;
+            this.callbacks = null;
+        }
+        if (callbacks == null) {
+            return null;
+        }
+
+        RuntimeException callbackException = null;
+        for (ResponseCallback<T> callback : callbacks) {
+            try {
+                notifyCallback(callback);
+            } catch (RuntimeException e) {
+                if (callbackException == null) {
+                    callbackException = e;
+                }
+            }
+        }
+        return callbackException;
+    }
+
+    private void notifyCallback(ResponseCallback<T> callback) {
+        final Response<T> response;
+        final WebbException exception;
+        synchronized (this) {
+            response = this.response;
+            exception = this.exception;
+        }
+        if (exception != null) {
+            callback.failure(exception);
+        } else {
+            callback.success(response);
+        }
+    }
+
+    /** @return the future which is completed by given callback, if it is a completion callback of some future */
+    static ResponseFuture<?> of(ResponseCallback<?> callback) {
+        if (callback instanceof ResponseFuture.Completion) {
+            return ((ResponseFuture<?>.Completion) callback).future();
+        }
+        return null;
+    }
+
+    private final class Completion implements ResponseCallback<T> {
+
+        public void success(Response<T> response) {
+            complete(response, null);
+        }
+
+        public void failure(WebbException exception) {
+            complete(null, exception);
+        }
+
+        ResponseFuture<T> future() {
+            return ResponseFuture.this;
+        }
+    }
+}
@@ -47,12 +47,24 @@ public interface ResponseTranslator<Type> {
                 }
             }
 
+            final long contentLength = response.getContentLength();
+            if (contentLength >= 0) {
+                // Length is known, so read bytes into exact-size array and decode them at once,
+                // without growing a StringBuilder and then copying it into the String
+                return new String(WebbUtils.readBytes(in, contentLength), encoding);
+            }
+
             final InputStreamReader reader = new InputStreamReader(in, encoding);
             final StringBuilder sb = new StringBuilder(1024);
-            final char[] buffer = new char[512];
-            int read;
-            while ((read = reader.read(buffer)) > 0) {
-                sb.append(buffer, 0, read);
+            final BufferPool bufferPool = response.getBufferPool();
+            final char[] buffer = bufferPool.takeChars();
+            try {
+                int read;
+                while ((read = reader.read(buffer)) > 0) {
+                    sb.append(buffer, 0, read);
+                }
+            } finally {
+                bufferPool.giveChars(buffer);
             }
 
             return sb.toString();
@@ -66,7 +78,7 @@ public interface ResponseTranslator<Type> {
     ResponseTranslator<byte[]> BYTES_TRANSLATOR = new ResponseTranslator<byte[]>(){
 
         public byte[] decode(Response response, InputStream in) throws Exception {
-            return WebbUtils.readBytes(in);
+            return WebbUtils.readBytes(in, response.getContentLength());
         }
 
         public byte[] decodeEmptyBody(Response response) throws Exception {
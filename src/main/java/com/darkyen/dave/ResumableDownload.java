@@ -0,0 +1,325 @@
+package com.darkyen.dave;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+/**
+ * Download of a resource into a file, which continues where it stopped when it fails,
+ * even after the process is restarted, see {@link Request#executeResumable(File)}.
+ * <br>
+ * The resource is downloaded into a partial file next to the target (target name with <code>.part</code> suffix).
+ * Progress is regularly forced to the storage device and recorded in a small checkpoint file
+ * (target name with <code>.part.checkpoint</code> suffix), together with the URI and the ETag or Last-Modified of the resource.
+ * When the download fails, it is resumed from the last checkpoint with <code>Range: bytes=N-</code>,
+ * validated by <code>If-Range</code>: if the resource has changed in the meantime, the server sends it whole
+ * and the download starts from the beginning. Same happens when a download with a checkpoint is executed again.
+ * <br>
+ * When the download is complete, the partial file replaces the target and the checkpoint is deleted.
+ * Unsuccessful (non-2xx) responses don't touch the target, nor the partial file, so the download can be resumed later.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class ResumableDownload {
+
+    private static final String CHECKPOINT_URI = "uri";
+    private static final String CHECKPOINT_VALIDATOR = "validator";
+    private static final String CHECKPOINT_LENGTH = "length";
+    private static final String CHECKPOINT_POSITION = "position";
+
+    private final Request request;
+    private final File target;
+    private final File partFile;
+    private final File checkpointFile;
+    private int retries = 3;
+    private long checkpointInterval = 4 * 1024 * 1024;
+    private boolean sync = false;
+
+    /**
+     * @param request GET request of the resource, it is not modified, each attempt is done through its copy
+     * @param target file to which the resource is saved
+     */
+    public ResumableDownload(Request request, File target) {
+        if (request == null) throw new NullPointerException("request");
+        if (target == null) throw new NullPointerException("target");
+        if (request.method != HttpMethod.GET) throw new IllegalArgumentException("Only GET requests can be resumed");
+        this.request = request;
+        this.target = target;
+        this.partFile = new File(target.getPath() + ".part");
+        this.checkpointFile = new File(target.getPath() + ".part.checkpoint");
+    }
+
+    /**
+     * @param retries how many times is the download resumed after it fails in this execution (default 3).
+     *                If the request waits exponentially (see {@link Request#retry(int, boolean)}), so do the retries.
+     *                Retries are limited by the {@link RetryBudget} of the {@link RetryManager}, if it has one.
+     * @return <code>this</code> for method chaining
+     */
+    public ResumableDownload retries(int retries) {
+        if (retries < 0) throw new IllegalArgumentException("retries must not be negative");
+        this.retries = retries;
+        return this;
+    }
+
+    /**
+     * @param checkpointInterval after how many bytes is the progress recorded (default 4 MiB).
+     *                           At most this many bytes are downloaded again when the download is resumed.
+     * @return <code>this</code> for method chaining
+     */
+    public ResumableDownload checkpointInterval(long checkpointInterval) {
+        if (checkpointInterval < 1) throw new IllegalArgumentException("checkpointInterval must be at least 1");
+        this.checkpointInterval = checkpointInterval;
+        return this;
+    }
+
+    /**
+     * @param sync see {@link FileTranslator#FileTranslator(File, boolean)} (default false)
+     * @return <code>this</code> for method chaining
+     */
+    public ResumableDownload sync(boolean sync) {
+        this.sync = sync;
+        return this;
+    }
+
+    /** @return file into which the resource is downloaded, before it is complete */
+    public File getPartFile() {
+        return partFile;
+    }
+
+    /** @return file with the progress of the download, exists only when the download is not complete */
+    public File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * Download the resource into the target file, resuming the previous download, if there is any.
+     * @return the last response, carrying the target file, or null if the response was not successful
+     */
+    public Response<File> execute() {
+        long position = 0;
+        long length = -1;
+        String validator = null;
+        final Properties checkpoint = readCheckpoint();
+        if (checkpoint != null) {
+            position = Long.parseLong(checkpoint.getProperty(CHECKPOINT_POSITION));
+            length = Long.parseLong(checkpoint.getProperty(CHECKPOINT_LENGTH));
+            validator = checkpoint.getProperty(CHECKPOINT_VALIDATOR);
+        }
+
+        for (int tries = 0; ; tries++) {
+            if (position > 0 && position == length) {
+                // Download was complete, only the rename did not happen. The last byte is downloaded again,
+                // so that the response is successful and If-Range confirms that the resource has not changed.
+                position--;
+            }
+            final Request attempt = new Request(request);
+            // Retries are done by this loop and a 416 or a temporary error is handled below, not a failure
+            attempt.retryCount = 0;
+            attempt.ensureSuccess = false;
+            // Ranges of compressed representation are useless
+            attempt.header(WebbConst.HDR_ACCEPT_ENCODING, "identity");
+            if (position > 0) {
+                attempt.header("Range", "bytes=" + position + "-");
+                attempt.header("If-Range", validator);
+            }
+
+            Response<InputStream> response = null;
+            try {
+                response = attempt.executeStream();
+                final int status = response.getStatusCode();
+                if (status == 416 && position > 0) {
+                    position = 0;
+                    continue;
+                } else if (status == 206 && position > 0) {
+                    final long[] range = SegmentedDownload.parseContentRange(response.getHeaderField("Content-Range"));
+                    if (range == null || range[0] != position) {
+                        throw new WebbException("Unexpected Content-Range: " + response.getHeaderField("Content-Range"), response);
+                    }
+                    length = range[2];
+                } else if (response.isSuccess()) {
+                    // Resource has changed, or the server does not support ranges, so start from the beginning
+                    position = 0;
+                    length = response.getContentLength();
+                    validator = SegmentedDownload.validator(response);
+                } else if (tries < retries && request.getRetryManager().isRetryUseful(response)
+                        && request.getRetryManager().isRetryAllowed()) {
+                    if (request.waitExponential || request.getRetryManager().getRetryAfterMillis(response) >= 0) {
+                        request.getRetryManager().wait(tries, response);
+                    }
+                    continue;
+                } else {
+                    if (request.ensureSuccess) {
+                        response.ensureSuccess();
+                    }
+                    return response.withBody((File) null);
+                }
+
+                position = receive(response.getBody(), position, length, validator);
+                return complete(response);
+            } catch (Exception e) {
+                final WebbException exception = e instanceof WebbException ? (WebbException) e : new WebbException(e);
+                if (exception.response == null) {
+                    exception.response = response;
+                }
+                if (tries >= retries || !isRecoverable(exception) || !request.getRetryManager().isRetryAllowed()) {
+                    throw exception;
+                }
+                if (request.waitExponential) {
+                    request.getRetryManager().wait(tries);
+                }
+                // Continue from the last checkpoint
+                final Properties lastCheckpoint = validator == null ? null : readCheckpoint();
+                position = lastCheckpoint == null ? 0 : Long.parseLong(lastCheckpoint.getProperty(CHECKPOINT_POSITION));
+            } finally {
+                if (response != null) {
+                    response.close();
+                }
+            }
+        }
+    }
+
+    /** Failures of the connection are always worth resuming, other failures are decided by the {@link RetryManager}. */
+    private boolean isRecoverable(WebbException exception) {
+        return exception.getCause() instanceof IOException || request.getRetryManager().isRecoverable(exception);
+    }
+
+    /**
+     * Write the body into the partial file, from the position on, with checkpoints.
+     * @return position after the body
+     */
+    private long receive(InputStream body, long position, long length, String validator) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+        try {
+            final FileChannel channel = file.getChannel();
+            if (position == 0) {
+                channel.truncate(0);
+            }
+            if (validator == null) {
+                // Download can't be resumed safely
+                //noinspection ResultOfMethodCallIgnored
+                checkpointFile.delete();
+            } else {
+                writeCheckpoint(validator, length, position);
+            }
+
+            final LimitedInputStream limited = new LimitedInputStream(body);
+            while (true) {
+                limited.remaining = checkpointInterval;
+                position += FileTranslator.write(limited, channel, position, request.getBufferPool());
+                if (limited.remaining > 0) {
+                    break;
+                }
+                if (validator != null) {
+                    channel.force(false);
+                    writeCheckpoint(validator, length, position);
+                }
+            }
+            if (length >= 0 && position != length) {
+                throw new IOException("Body ended after " + position + " bytes instead of " + length);
+            }
+            if (sync) {
+                channel.force(true);
+            }
+            return position;
+        } finally {
+            file.close();
+        }
+    }
+
+    private Response<File> complete(Response<InputStream> response) throws IOException {
+        FileTranslator.replace(target, partFile);
+        //noinspection ResultOfMethodCallIgnored
+        checkpointFile.delete();
+        return response.withBody(target);
+    }
+
+    /** @return checkpoint of the download of the same URI, which can be resumed, or null if there is none */
+    private Properties readCheckpoint() {
+        if (!checkpointFile.isFile()) {
+            return null;
+        }
+        final Properties checkpoint = new Properties();
+        try {
+            final FileInputStream in = new FileInputStream(checkpointFile);
+            try {
+                checkpoint.load(in);
+            } finally {
+                in.close();
+            }
+            final long position = Long.parseLong(checkpoint.getProperty(CHECKPOINT_POSITION));
+            Long.parseLong(checkpoint.getProperty(CHECKPOINT_LENGTH));
+            if (!request.getUri().equals(checkpoint.getProperty(CHECKPOINT_URI))
+                    || checkpoint.getProperty(CHECKPOINT_VALIDATOR) == null
+                    || partFile.length() < position) {
+                return null;
+            }
+            return checkpoint;
+        } catch (Exception e) {
+            // Damaged, start from the beginning
+            return null;
+        }
+    }
+
+    void writeCheckpoint(String validator, long length, long position) throws IOException {
+        final Properties checkpoint = new Properties();
+        checkpoint.setProperty(CHECKPOINT_URI, request.getUri());
+        checkpoint.setProperty(CHECKPOINT_VALIDATOR, validator);
+        checkpoint.setProperty(CHECKPOINT_LENGTH, Long.toString(length));
+        checkpoint.setProperty(CHECKPOINT_POSITION, Long.toString(position));
+
+        final File temp = new File(checkpointFile.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(temp);
+        try {
+            checkpoint.store(out, "Webb resumable download");
+            if (sync) {
+                out.getFD().sync();
+            }
+        } finally {
+            out.close();
+        }
+        FileTranslator.replace(checkpointFile, temp);
+    }
+
+    /** Stream which ends after given amount of bytes */
+    private static final class LimitedInputStream extends FilterInputStream {
+        long remaining;
+
+        LimitedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int result = in.read();
+            if (result != -1) {
+                remaining--;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int result = in.read(b, off, (int) Math.min(len, remaining));
+            if (result > 0) {
+                remaining -= result;
+            }
+            return result;
+        }
+
+        @Override
+        public void close() {
+            // Body is closed with the response
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.darkyen.dave;
+
+/**
+ * Token bucket which allows retries only as a fraction of recent successful requests, so that when a server
+ * has trouble, clients don't multiply its load by retrying everything, see {@link RetryManager#RetryManager(RetryManager.Jitter, RetryBudget)}.
+ * <br>
+ * Each successful response deposits <code>ratio</code> tokens and each retry withdraws one token, retries without a token are denied.
+ * So that there can be some retries even when there is little traffic, <code>minRetriesPerSecond</code> tokens
+ * are deposited each second as well. The bucket holds at most <code>maxTokens</code>, so only recent traffic counts.
+ * <br>
+ * This class is thread safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class RetryBudget {
+
+    private final double ratio;
+    private final double minRetriesPerSecond;
+    private final double maxTokens;
+
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    private long allowedCount = 0;
+    private long deniedCount = 0;
+
+    /** Create budget with 10 retries per second and at most 100 tokens, see {@link #RetryBudget(double, double, double)}. */
+    public RetryBudget(double ratio) {
+        this(ratio, 10, 100);
+    }
+
+    /**
+     * @param ratio how many retries are allowed per successful response, for example 0.1 for 10 %
+     * @param minRetriesPerSecond how many retries per second are allowed regardless of the traffic, the bucket starts with this many tokens
+     * @param maxTokens how many retries can be done at once, at least 1
+     */
+    public RetryBudget(double ratio, double minRetriesPerSecond, double maxTokens) {
+        if (ratio < 0) throw new IllegalArgumentException("ratio must not be negative");
+        if (minRetriesPerSecond < 0) throw new IllegalArgumentException("minRetriesPerSecond must not be negative");
+        if (maxTokens < 1) throw new IllegalArgumentException("maxTokens must be at least 1");
+        this.ratio = ratio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        this.maxTokens = maxTokens;
+        this.tokens = Math.min(minRetriesPerSecond, maxTokens);
+    }
+
+    /** Deposit tokens for a successful response. */
+    public synchronized void recordSuccess() {
+        refill();
+        tokens = Math.min(maxTokens, tokens + ratio);
+    }
+
+    /**
+     * Withdraw a token for a retry.
+     * @return true if the retry is allowed, false if it is denied, because the budget is exhausted
+     */
+    public synchronized boolean tryRetry() {
+        refill();
+        if (tokens < 1) {
+            deniedCount++;
+            return false;
+        }
+        tokens -= 1;
+        allowedCount++;
+        return true;
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        tokens = Math.min(maxTokens, tokens + (now - lastRefill) / 1e9 * minRetriesPerSecond);
+        lastRefill = now;
+    }
+
+    /** @return how many retries can be done now */
+    public synchronized double getTokens() {
+        refill();
+        return tokens;
+    }
+
+    /** @return how many retries were allowed */
+    public synchronized long getAllowedCount() {
+        return allowedCount;
+    }
+
+    /** @return how many retries were denied, because the budget was exhausted */
+    public synchronized long getDeniedCount() {
+        return deniedCount;
+    }
+}
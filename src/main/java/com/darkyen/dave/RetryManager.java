@@ -6,6 +6,16 @@ import java.net.SocketTimeoutException;
 /**
  * Decides whether a request should be retried or not.
  * <br>
+ * To keep many clients from retrying in lockstep after a failure of the server, the delays can be randomized
+ * ({@link Jitter}), and to keep retries from multiplying the load of a failing server, they can be limited
+ * by a {@link RetryBudget}. The budget is shared by all requests of the {@link Webb}s which use this manager,
+ * so each Webb should have its own manager.
+ * <br>
+ * When the server tells when to come back through <code>Retry-After</code> (in seconds or as a date),
+ * the retry waits for that long instead, even when the request does not wait exponentially. If that is longer
+ * than the longest backoff delay, the request is not retried at all. <code>429 Too Many Requests</code>
+ * is retried only when the manager is created with <code>retryTooManyRequests</code>.
+ * <br>
  * If you need other behaviour, just extend this class.
  */
 @SuppressWarnings("WeakerAccess")
@@ -15,15 +25,82 @@ public class RetryManager {
 
     static final RetryManager DEFAULT = new RetryManager();
 
+    private final Jitter jitter;
+    private final RetryBudget budget;
+    private final boolean retryTooManyRequests;
+
+    /** Create manager with fixed backoff delays and without a retry budget. */
+    public RetryManager() {
+        this(Jitter.NONE, null);
+    }
+
+    /** Create manager which does not retry 429, see {@link #RetryManager(Jitter, RetryBudget, boolean)}. */
+    public RetryManager(Jitter jitter, RetryBudget budget) {
+        this(jitter, budget, false);
+    }
+
+    /**
+     * @param jitter how to randomize the backoff delays
+     * @param budget which limits the retries, or null for no limit
+     * @param retryTooManyRequests true to retry <code>429 Too Many Requests</code>, like 503
+     */
+    public RetryManager(Jitter jitter, RetryBudget budget, boolean retryTooManyRequests) {
+        if (jitter == null) throw new NullPointerException("jitter");
+        this.jitter = jitter;
+        this.budget = budget;
+        this.retryTooManyRequests = retryTooManyRequests;
+    }
+
+    public Jitter getJitter() {
+        return jitter;
+    }
+
+    /** @return budget which limits the retries, or null if there is none */
+    public RetryBudget getBudget() {
+        return budget;
+    }
+
+    public boolean isRetryingTooManyRequests() {
+        return retryTooManyRequests;
+    }
+
     /**
      * Indicates whether it would possibly make sense to retry the request.
      * @param response the outcome of the request
      * @return <tt>true</tt> only in case of temporary (server-side) errors where retrying the
-     *         request could succeed.
+     *         request could succeed, and the server does not ask to wait for too long.
      */
     public boolean isRetryUseful(Response response) {
         int statusCode = response.getStatusCode();
-        return statusCode == 503 || statusCode == 504 || statusCode >= 520;
+        return (statusCode == 503 || statusCode == 504 || statusCode >= 520 || (statusCode == 429 && retryTooManyRequests))
+                && getRetryAfterMillis(response) <= BACKOFF[BACKOFF.length - 1] * 1000L;
+    }
+
+    /**
+     * Parse the <code>Retry-After</code> header of the response, which is either in seconds or a date.
+     * Dates are compared with the <code>Date</code> of the response, if it has one, so that the clocks don't need to agree.
+     * @param response to be retried, may be null
+     * @return how many milliseconds the server asks to wait, or -1 if it does not say
+     */
+    public long getRetryAfterMillis(Response response) {
+        if (response == null) {
+            return -1;
+        }
+        final String value = response.getHeaderField("Retry-After");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000L);
+        } catch (NumberFormatException ignored) {
+            // Not seconds, so a date
+        }
+        final long date = response.getHeaderFieldDate("Retry-After", -1);
+        if (date == -1) {
+            return -1;
+        }
+        final long now = response.getDate() != 0 ? response.getDate() : System.currentTimeMillis();
+        return Math.max(0, date - now);
     }
 
     /**
@@ -48,12 +125,87 @@ public class RetryManager {
         return cause instanceof SocketTimeoutException;
     }
 
+    /**
+     * Called when the request should be retried, according to {@link #isRetryUseful(Response)}
+     * or {@link #isRecoverable(WebbException)}, right before the retry.
+     * @return true if the retry may be done, false if it is denied by the {@link RetryBudget}
+     */
+    public boolean isRetryAllowed() {
+        return budget == null || budget.tryRetry();
+    }
+
+    /**
+     * Called for each successful response which did not come from a cache.
+     * @param response the successful response
+     */
+    public void onSuccess(Response response) {
+        if (budget != null) {
+            budget.recordSuccess();
+        }
+    }
+
+    /**
+     * How long to wait before the next retry (depends on the current retry sequence).
+     * Used directly (instead of {@link #wait(int)}) when the retry is scheduled and no thread waits for it.
+     * @param retry the retry sequence (starts with 0 for the first retry).
+     * @return the delay in milliseconds
+     */
+    public long getDelayMillis(int retry) {
+        final long delay = BACKOFF[Math.min(retry, BACKOFF.length - 1)] * 1000L;
+        switch (jitter) {
+            case FULL:
+                return (long) (Math.random() * delay);
+            case SPREAD: {
+                final long min = BACKOFF[0] * 1000L;
+                final long max = BACKOFF[BACKOFF.length - 1] * 1000L;
+                final long previousBackoff = retry == 0 ? min : BACKOFF[Math.min(retry - 1, BACKOFF.length - 1)] * 1000L;
+                return Math.min(max, min + (long) (Math.random() * (previousBackoff * 3 - min)));
+            }
+            default:
+                return delay;
+        }
+    }
+
+    /**
+     * How long to wait before the next retry of the response.
+     * @param retry the retry sequence (starts with 0 for the first retry).
+     * @param response to be retried, or null if the request failed without one
+     * @return the delay from <code>Retry-After</code> of the response, if it has it, otherwise {@link #getDelayMillis(int)}
+     */
+    public long getDelayMillis(int retry, Response response) {
+        final long retryAfter = getRetryAfterMillis(response);
+        return retryAfter >= 0 ? retryAfter : getDelayMillis(retry);
+    }
+
     /**
      * Implementation for the actual wait (depends on the current retry sequence).
+     * Called by {@link #wait(int, Response)} when the server does not say how long to wait.
+     * <br>
+     * Only requests executed synchronously wait, retries of requests executed through {@link ExecutionStrategy.Async}
+     * or {@link ExecutionStrategy#NON_BLOCKING_EXECUTION_STRATEGY} are scheduled after {@link #getDelayMillis(int, Response)}
+     * and this is never called for them.
      * @param retry the retry sequence (starts with 0 for the first retry).
      */
     public void wait(int retry) {
-        long sleepMillis = BACKOFF[Math.min(retry, BACKOFF.length - 1)] * 1000L;
+        sleep(getDelayMillis(retry));
+    }
+
+    /**
+     * Implementation for the actual wait, before the retry of the response.
+     * When the response has no <code>Retry-After</code>, this delegates to {@link #wait(int)}, so that its overrides still apply.
+     * Like {@link #wait(int)}, this is never called for retries which are scheduled.
+     * @param retry the retry sequence (starts with 0 for the first retry).
+     * @param response to be retried, or null if the request failed without one
+     */
+    public void wait(int retry, Response response) {
+        if (getRetryAfterMillis(response) < 0) {
+            wait(retry);
+        } else {
+            sleep(getDelayMillis(retry, response));
+        }
+    }
+
+    private static void sleep(long sleepMillis) {
         try {
             Thread.sleep(sleepMillis);
         } catch (InterruptedException ie) {
@@ -61,4 +213,19 @@ public class RetryManager {
             throw new WebbException(ie);
         }
     }
+
+    /** How the backoff delays are randomized */
+    public enum Jitter {
+        /** Delays are exactly those in {@link #BACKOFF} */
+        NONE,
+        /** Delay is random, between 0 and the delay in {@link #BACKOFF} */
+        FULL,
+        /**
+         * Delay is random, between the first delay in {@link #BACKOFF} and three times the delay in {@link #BACKOFF}
+         * of the previous retry, but at most the last delay in {@link #BACKOFF}. Grows like the exponential backoff,
+         * but is spread more. Unlike decorrelated jitter, it does not depend on the previously chosen (random) delay,
+         * only on the retry sequence, so the delays of one request are independent of each other.
+         */
+        SPREAD
+    }
 }
@@ -0,0 +1,274 @@
+package com.darkyen.dave;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Download of a large resource into a file, split into byte ranges (segments), which are fetched at once,
+ * each through its own connection, see {@link Request#executeSegmented(File, int)}.
+ * <br>
+ * The first request asks only for the first range. If the server answers with it (206 Partial Content),
+ * the size of the resource is known and the rest is split into segments, which are requested through
+ * the {@link ExecutionStrategy} of the {@link Webb}, after the first range is received. Strategies which execute
+ * the request on the calling thread would otherwise download the segments while the first range waits unread.
+ * Segments are written at their offsets into a temporary file, which replaces the target when all are complete,
+ * like in {@link FileTranslator}. Segments are requested with <code>If-Range</code>, so when the resource changes
+ * in the meantime, the download fails instead of mixing two versions.
+ * <br>
+ * If the server does not support ranges, the whole resource is received through the first request.
+ * If the server supports ranges, but the first range has no validator (strong <code>ETag</code> or <code>Last-Modified</code>),
+ * the change of the resource could not be detected, so the first range is dropped and the whole resource
+ * is requested again, without ranges.
+ * <br>
+ * Segments are downloaded in parallel only when the execution strategy executes requests in parallel,
+ * like {@link ExecutionStrategy.Async}, the default synchronous strategy downloads them one after another.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class SegmentedDownload {
+
+    private final Request request;
+    private final File target;
+    private int segments = 4;
+    private long minSegmentSize = 1024 * 1024;
+    private boolean sync = false;
+
+    /**
+     * @param request GET request of the resource, it is not modified, each segment is downloaded through its copy
+     * @param target file to which the resource is saved
+     */
+    public SegmentedDownload(Request request, File target) {
+        if (request == null) throw new NullPointerException("request");
+        if (target == null) throw new NullPointerException("target");
+        if (request.method != HttpMethod.GET) throw new IllegalArgumentException("Only GET requests can be downloaded in segments");
+        this.request = request;
+        this.target = target;
+    }
+
+    /**
+     * @param segments into how many segments is the resource split, after the first range (default 4)
+     * @return <code>this</code> for method chaining
+     */
+    public SegmentedDownload segments(int segments) {
+        if (segments < 1) throw new IllegalArgumentException("segments must be at least 1");
+        this.segments = segments;
+        return this;
+    }
+
+    /**
+     * @param minSegmentSize size of the first range and the minimal size of other segments, smaller resources
+     *                       are split into less segments (default 1 MiB)
+     * @return <code>this</code> for method chaining
+     */
+    public SegmentedDownload minSegmentSize(long minSegmentSize) {
+        if (minSegmentSize < 1) throw new IllegalArgumentException("minSegmentSize must be at least 1");
+        this.minSegmentSize = minSegmentSize;
+        return this;
+    }
+
+    /**
+     * @param sync see {@link FileTranslator#FileTranslator(File, boolean)} (default false)
+     * @return <code>this</code> for method chaining
+     */
+    public SegmentedDownload sync(boolean sync) {
+        this.sync = sync;
+        return this;
+    }
+
+    /**
+     * Download the resource into the target file.
+     * @return the response to the first range (or to the whole request, if the server does not support ranges),
+     * carrying the target file, or null if the response was not successful
+     */
+    public Response<File> execute() {
+        final Request first = new Request(request);
+        // 416 of an empty resource is not a failure, success is ensured below
+        first.ensureSuccess = false;
+        first.header("Range", "bytes=0-" + (minSegmentSize - 1));
+        // Ranges of compressed representation are useless
+        first.header(WebbConst.HDR_ACCEPT_ENCODING, "identity");
+
+        final Response<InputStream> response = first.executeStream();
+        if (response.getStatusCode() == 416) {
+            // Empty resource has no ranges
+            response.close();
+            return new Request(request).execute(new FileTranslator(target, sync));
+        }
+        try {
+            if (request.ensureSuccess) {
+                response.ensureSuccess();
+            }
+            final File body;
+            if (response.getStatusCode() == 206) {
+                final long[] range = parseContentRange(response.getHeaderField("Content-Range"));
+                if (range == null || range[0] != 0 || range[2] < 0) {
+                    throw new WebbException("Unexpected Content-Range: " + response.getHeaderField("Content-Range"), response);
+                }
+                if (range[1] + 1 < range[2] && validator(response) == null) {
+                    // Segments could not be requested with If-Range
+                    response.close();
+                    return new Request(request).execute(new FileTranslator(target, sync));
+                }
+                download(response, range[1] + 1, range[2]);
+                body = target;
+            } else {
+                // Ranges are not supported, whole resource is here
+                body = new FileTranslator(target, sync).decode(response, response.getBody());
+            }
+
+            return response.withBody(body);
+        } catch (WebbException e) {
+            throw e;
+        } catch (Exception e) {
+            final WebbException exception = new WebbException(e);
+            exception.response = response;
+            throw exception;
+        } finally {
+            response.close();
+        }
+    }
+
+    private void download(Response<InputStream> response, long firstLength, long total) throws IOException {
+        final File temp = FileTranslator.createTemp(target);
+        boolean saved = false;
+        try {
+            final RandomAccessFile file = new RandomAccessFile(temp, "rw");
+            try {
+                file.setLength(total);
+                final FileChannel channel = file.getChannel();
+                final long written = FileTranslator.write(response.getBody(), channel, 0, response.getBufferPool());
+                if (written != firstLength) {
+                    throw new WebbException("First segment has " + written + " bytes instead of " + firstLength, response);
+                }
+
+                final List<ResponseFuture<Long>> futures = new ArrayList<ResponseFuture<Long>>();
+                try {
+                    final long remaining = total - firstLength;
+                    if (remaining > 0) {
+                        // Not null, checked before
+                        final String validator = validator(response);
+                        final int count = (int) Math.max(1, Math.min(segments, remaining / minSegmentSize));
+                        long start = firstLength;
+                        for (int i = 0; i < count; i++) {
+                            final long end = i == count - 1 ? total - 1 : start + remaining / count - 1;
+                            final Request segment = new Request(request);
+                            segment.header("Range", "bytes=" + start + "-" + end);
+                            segment.header(WebbConst.HDR_ACCEPT_ENCODING, "identity");
+                            segment.header("If-Range", validator);
+                            futures.add(segment.executeAsync(new SegmentTranslator(channel, start, end)));
+                            start = end + 1;
+                        }
+                    }
+
+                    for (ResponseFuture<Long> future : futures) {
+                        await(future);
+                    }
+                    futures.clear();
+                } finally {
+                    // Some segment failed, so others are useless
+                    for (ResponseFuture<Long> future : futures) {
+                        future.cancel(true);
+                    }
+                }
+                if (sync) {
+                    channel.force(true);
+                }
+            } finally {
+                file.close();
+            }
+            FileTranslator.replace(target, temp);
+            saved = true;
+        } finally {
+            if (!saved) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        }
+    }
+
+    private static void await(ResponseFuture<Long> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebbException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof WebbException ? (WebbException) cause : new WebbException(cause);
+        }
+    }
+
+    /** @return validator for <code>If-Range</code>, strong ETag or Last-Modified, or null if there is none */
+    static String validator(Response response) {
+        final String etag = response.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return response.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Parse value of Content-Range header, like <code>bytes 0-499/1234</code>.
+     * @return first byte, last byte and complete length (-1 if not known), or null if not valid
+     */
+    static long[] parseContentRange(String value) {
+        if (value == null || !value.startsWith("bytes ")) {
+            return null;
+        }
+        final int dash = value.indexOf('-');
+        final int slash = value.indexOf('/');
+        if (dash == -1 || slash < dash) {
+            return null;
+        }
+        try {
+            final long first = Long.parseLong(value.substring(6, dash).trim());
+            final long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+            final String completeLength = value.substring(slash + 1).trim();
+            final long length = "*".equals(completeLength) ? -1 : Long.parseLong(completeLength);
+            if (first < 0 || last < first || (length != -1 && last >= length)) {
+                return null;
+            }
+            return new long[]{first, last, length};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Writes a segment into its place in the file */
+    private static final class SegmentTranslator implements ResponseTranslator<Long> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        private SegmentTranslator(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        public Long decode(Response response, InputStream in) throws Exception {
+            if (response.getStatusCode() != 206) {
+                // 200 means that If-Range did not match
+                throw new WebbException("Segment not received, resource may have changed: " + response.getStatusLine(), response);
+            }
+            final long[] range = parseContentRange(response.getHeaderField("Content-Range"));
+            if (range == null || range[0] != start || range[1] != end) {
+                throw new WebbException("Unexpected Content-Range: " + response.getHeaderField("Content-Range"), response);
+            }
+            final long written = FileTranslator.write(in, channel, start, response.getBufferPool());
+            if (written != end - start + 1) {
+                throw new WebbException("Segment has " + written + " bytes instead of " + (end - start + 1), response);
+            }
+            return written;
+        }
+
+        public Long decodeEmptyBody(Response response) throws Exception {
+            throw new WebbException("Segment not received: " + response.getStatusLine(), response);
+        }
+    }
+}
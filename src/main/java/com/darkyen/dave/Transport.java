@@ -0,0 +1,114 @@
+package com.darkyen.dave;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Engine which does the actual HTTP communication for {@link Webb}.
+ * <br>
+ * Webb resolves everything about the request (URI with query, merged headers, body) into a {@link TransportRequest}
+ * and the transport only has to send it and hand back the response.
+ * Default implementation is {@link HttpURLConnectionTransport}.
+ *
+ * Implementations MUST be thread safe, single instance is used for all requests of a {@link Webb}.
+ */
+public interface Transport {
+
+    /**
+     * Prepare the exchange for given request.
+     * This should not block on network I/O, that is done in {@link Exchange#execute()}.
+     */
+    Exchange open(TransportRequest request) throws Exception;
+
+    /**
+     * Single request-response exchange with the server.
+     * <br>
+     * {@link Webb} calls {@link #execute()}, then reads the response through the getters and {@link #getBody()}
+     * and always ends with {@link #close()}. {@link #abort()} may be called at any time, from any thread.
+     */
+    interface Exchange {
+
+        /** Send the request and receive the status and headers of the response. Blocks. */
+        void execute() throws Exception;
+
+        /** @return HTTP status code of the response, valid after {@link #execute()} */
+        int getStatusCode();
+
+        /** @return text explaining the status code, e.g. "Not Found" */
+        String getStatusMessage();
+
+        /** @return the first line of the response, e.g. "HTTP/1.1 200 OK", may be null */
+        String getStatusLine();
+
+        /** @return headers of the response, never null */
+        Map<String, List<String>> getHeaders();
+
+        /**
+         * @return stream with the body of the response, as sent by the server (Content-Encoding is decoded by Webb),
+         * or null if there is no body. Called at most once.
+         */
+        InputStream getBody() throws Exception;
+
+        /** Release all resources of this exchange. Called always, even when {@link #execute()} fails. */
+        void close();
+
+        /** Abort the exchange as soon as possible, pending and future operations should fail. Called from any thread. */
+        void abort();
+    }
+
+    /**
+     * {@link Exchange} which can also be executed without blocking the calling thread.
+     * Used by {@link ExecutionStrategy#NON_BLOCKING_EXECUTION_STRATEGY}.
+     */
+    interface AsyncExchange extends Exchange {
+
+        /**
+         * Start executing the exchange, like {@link #execute()}, but return immediately.
+         * Listener is notified (on any thread) when done. After successful completion,
+         * {@link #getBody()} must not block on network I/O.
+         */
+        void executeAsync(Listener listener);
+    }
+
+    /** Listener for completion of {@link AsyncExchange} */
+    interface Listener {
+
+        /** Exchange completed, response is available */
+        void completed();
+
+        /** Exchange failed */
+        void failed(Exception exception);
+    }
+
+    /** Body of a request, which can be written to the server. */
+    interface Body {
+
+        /** @return length of the body in bytes, or -1 if it is not known in advance */
+        long getLength();
+
+        /**
+         * @return true if the body is held in memory, so it is cheap to write it multiple times
+         * (for example when following redirects)
+         */
+        boolean isInMemory();
+
+        /** Write the whole body to the given stream. Does not close the stream. */
+        void writeTo(OutputStream out) throws Exception;
+    }
+
+    /**
+     * Body with content of a regular file, which transports with access to the socket can send straight from the file,
+     * without copying it through the heap. Its length is always known.
+     */
+    interface FileBody extends Body {
+
+        /** @return channel of the file, to be used only for positional reads, like {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} */
+        FileChannel getChannel();
+
+        /** @return position in the channel at which the body starts */
+        long getPosition();
+    }
+}
@@ -0,0 +1,107 @@
+package com.darkyen.dave;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
+import java.util.Map;
+
+/**
+ * Fully resolved request, as given to the {@link Transport}.
+ * <br>
+ * Settings which were not set on the {@link Request} are already filled from the {@link Webb}.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class TransportRequest {
+
+    private final Request request;
+    private final String uri;
+    private final Map<String, String> headers;
+    private final Transport.Body body;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final boolean followRedirects;
+    private final SSLSocketFactory sslSocketFactory;
+    private final HostnameVerifier hostnameVerifier;
+    private final ConnectionPool connectionPool;
+
+    TransportRequest(Request request, String uri, Map<String, String> headers, Transport.Body body,
+                     int connectTimeout, int readTimeout, boolean followRedirects,
+                     SSLSocketFactory sslSocketFactory, HostnameVerifier hostnameVerifier,
+                     ConnectionPool connectionPool) {
+        this.request = request;
+        this.uri = uri;
+        this.headers = headers;
+        this.body = body;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.followRedirects = followRedirects;
+        this.sslSocketFactory = sslSocketFactory;
+        this.hostnameVerifier = hostnameVerifier;
+        this.connectionPool = connectionPool;
+    }
+
+    /** @return the request from which this was created */
+    public Request getRequest() {
+        return request;
+    }
+
+    public HttpMethod getMethod() {
+        return request.method;
+    }
+
+    /** @return absolute URI of the request, including the query string with params (if any) */
+    public String getUri() {
+        return uri;
+    }
+
+    /** @return all headers of the request, never null, must not be modified */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /** @return the body to send or null if there is no body */
+    public Transport.Body getBody() {
+        return body;
+    }
+
+    /** @return connect timeout in milliseconds, <code>&lt;= 0</code> for no timeout */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /** @return read timeout in milliseconds, <code>&lt;= 0</code> for no timeout */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public boolean isFollowRedirects() {
+        return followRedirects;
+    }
+
+    /** @see Request#useCaches(boolean) */
+    public boolean isUseCaches() {
+        return request.useCaches;
+    }
+
+    /**
+     * @return value for the "If-Modified-Since" header in milliseconds since epoch, or 0 if it should not be sent
+     * @see Request#ifModifiedSince(long)
+     */
+    public long getIfModifiedSince() {
+        return request.ifModifiedSince == null ? 0 : request.ifModifiedSince;
+    }
+
+    /** @return custom socket factory for HTTPS connections or null for default */
+    public SSLSocketFactory getSSLSocketFactory() {
+        return sslSocketFactory;
+    }
+
+    /** @return custom hostname verifier for HTTPS connections or null for default */
+    public HostnameVerifier getHostnameVerifier() {
+        return hostnameVerifier;
+    }
+
+    /** @return pool of connections, which the transport should use to reuse connections, or null if connections should not be reused */
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+}
@@ -3,14 +3,16 @@ package com.darkyen.dave;
 import java.io.*;
 
 import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -31,6 +33,12 @@ public final class Webb {
     private SSLSocketFactory sslSocketFactory = null;
     private HostnameVerifier hostnameVerifier = null;
     private RetryManager retryManager = RetryManager.DEFAULT;
+    private Transport transport = new HttpURLConnectionTransport();
+    private ConnectionPool connectionPool = new ConnectionPool();
+    private BufferPool bufferPool = BufferPool.DEFAULT;
+    private ResponseCache cache = null;
+    private DiskCache diskCache = null;
+    private CircuitBreaker circuitBreaker = null;
 
     ExecutionStrategy executionStrategy = ExecutionStrategy.SYNCHRONOUS_EXECUTION_STRATEGY;
 
@@ -139,6 +147,10 @@ public final class Webb {
         this.retryManager = retryManager;
     }
 
+    public RetryManager getRetryManager() {
+        return retryManager;
+    }
+
     /**
      * Change strategy of asynchronous request execution.
      *
@@ -151,6 +163,108 @@ public final class Webb {
         this.executionStrategy = executionStrategy;
     }
 
+    /**
+     * Change the engine which does the HTTP communication.
+     *
+     * Default transport is {@link HttpURLConnectionTransport}.
+     *
+     * @param transport not null
+     */
+    public void setTransport(Transport transport) {
+        if (transport == null) throw new NullPointerException("transport");
+        this.transport = transport;
+    }
+
+    /**
+     * Change the pool of persistent connections, which the transport uses to reuse connections between requests.
+     * The pool may be shared between multiple Webb instances.
+     *
+     * Default pool is <code>new ConnectionPool()</code>, owned by this instance.
+     * The pool, its limits and its statistics apply only to transports which use it, like {@link NioTransport}.
+     * The default {@link HttpURLConnectionTransport} ignores it and keeps connections alive by the platform's own cache,
+     * regardless of this setting.
+     *
+     * @param connectionPool to use or null to make transports which use the pool not reuse connections
+     */
+    public void setConnectionPool(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /** @return the pool of persistent connections or null if transports which use the pool don't reuse connections */
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Change the pool of buffers used to copy uploaded and downloaded data, for compression and by the built-in translators.
+     *
+     * Default pool is {@link BufferPool#DEFAULT}.
+     *
+     * @param bufferPool not null
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        if (bufferPool == null) throw new NullPointerException("bufferPool");
+        this.bufferPool = bufferPool;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Set the cache which serves GET requests without going to the network, while the cached responses are fresh.
+     * The cache may be shared between multiple Webb instances.
+     *
+     * Default is no cache.
+     *
+     * @param cache to use or null to not cache responses
+     * @see ResponseCache
+     */
+    public void setCache(ResponseCache cache) {
+        this.cache = cache;
+    }
+
+    /** @return the cache of responses or null if responses are not cached */
+    public ResponseCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Set the persistent cache, which serves GET requests without going to the network, while the cached responses are fresh,
+     * after the {@link #setCache(ResponseCache) memory cache}. The cache may be shared between multiple Webb instances.
+     *
+     * Default is no disk cache.
+     *
+     * @param diskCache to use or null to not store responses on the disk
+     * @see DiskCache
+     */
+    public void setDiskCache(DiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    /** @return the persistent cache of responses or null if responses are not stored on the disk */
+    public DiskCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * Set the circuit breaker, which fails requests to hosts which keep failing with {@link CircuitOpenException},
+     * without sending them. The breaker may be shared between multiple Webb instances.
+     *
+     * Default is no circuit breaker.
+     *
+     * @param circuitBreaker to use or null to always send the requests
+     * @see CircuitBreaker
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /** @return the circuit breaker or null if there is none */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
     /**
      * Creates a <b>GET HTTP</b> request with the specified absolute or relative URI.
      * @param pathOrUri the URI - see {@link #getBaseUri()}
@@ -187,6 +301,17 @@ public final class Webb {
         return new Request(this, HttpMethod.DELETE, buildPath(pathOrUri));
     }
 
+    /**
+     * Creates a template for requests to the specified absolute or relative URI, which may contain variables.
+     * Useful for endpoints which are called very often, see {@link RequestTemplate}.
+     * @param pathOrUri the URI - see {@link #getBaseUri()}, may contain variables like <code>{name}</code>
+     * @return template, which creates requests with the current default headers
+     */
+    public RequestTemplate template(HttpMethod method, String pathOrUri) {
+        if (method == null) throw new NullPointerException("method");
+        return new RequestTemplate(this, method, buildPath(pathOrUri), WebbUtils.headerValues(defaultHeaders));
+    }
+
     private String buildPath(String pathOrUri) {
         if (pathOrUri == null) {
             throw new IllegalArgumentException("pathOrUri must not be null");
@@ -201,237 +326,608 @@ public final class Webb {
         }
     }
 
-    <T> Response<T> execute(Request request, ResponseTranslator<T> translator) {
-        Response<T> response = null;
+    /**
+     * @param future to which the connections should be attached, so that they can be cancelled, may be null
+     */
+    <T> Response<T> execute(Request request, ResponseTranslator<T> translator, ResponseFuture<?> future) {
+        return execute(request, translator, future, false);
+    }
+
+    /** Execute the request synchronously and hand the body to the caller as an open stream, see {@link Request#executeStream()}. */
+    Response<InputStream> executeStream(Request request) {
+        return execute(request, null, null, true);
+    }
+
+    /**
+     * @param translator of the body, must be null if the body is streamed
+     * @param stream true to keep the body open and hand it to the caller, instead of translating it
+     */
+    private <T> Response<T> execute(Request request, ResponseTranslator<T> translator, ResponseFuture<?> future, boolean stream) {
+        Response<T> response = fromCache(request, translator);
+        if (response == null) {
+            // Conditional copy of the request, if there is a stale cached response to revalidate
+            request = revalidation(request, translator);
+        }
 
-        if (request.retryCount == 0) {
+        if (response != null) {
+            // Fresh response from the cache
+        } else if (request.retryCount == 0) {
             // no retry -> just delegate to inner method
-            response = _execute(request, translator);
+            response = _execute(request, translator, future, stream);
         } else {
             for (int tries = 0; tries <= request.retryCount; ++tries) {
+                Response<T> retried = null;
                 try {
-                    response = _execute(request, translator);
-                    if (tries >= request.retryCount || !retryManager.isRetryUseful(response)) {
+                    response = _execute(request, translator, future, stream);
+                    if (!shouldRetry(request, tries, response, null)) {
                         break;
                     }
+                    response.close();
+                    retried = response;
                 } catch (WebbException we) {
                     // analyze: is exception recoverable?
-                    if (tries >= request.retryCount || !retryManager.isRecoverable(we)) {
+                    if (!shouldRetry(request, tries, null, we)) {
                         throw we;
                     }
                 }
-                if (request.waitExponential) {
-                    retryManager.wait(tries);
+                if (request.waitExponential || retryManager.getRetryAfterMillis(retried) >= 0) {
+                    retryManager.wait(tries, retried);
                 }
             }
         }
         if (response == null) {
             throw new IllegalStateException(); // should never reach this line
         }
-        if (request.ensureSuccess) {
-            response.ensureSuccess();
+        return completed(request, translator, response);
+    }
+
+    /**
+     * Like {@link #execute(Request, ResponseTranslator, ResponseFuture)}, but only one attempt is done on the calling thread.
+     * When the request should be retried, the retry is scheduled after the backoff delay, instead of waiting for it.
+     * For execution strategies which don't want to block their threads by waiting.
+     * @param tries how many times was the request already tried
+     * @param retry run by the retry scheduler when the request should be tried again, with tries + 1,
+     *              it must not block, only hand the retry to a thread which can execute it
+     * @return the response, or null if the retry was scheduled
+     */
+    <T> Response<T> executeAttempt(Request request, ResponseTranslator<T> translator, ResponseFuture<?> future, int tries, Runnable retry) {
+        Response<T> response = tries == 0 ? fromCache(request, translator) : null;
+        if (response == null) {
+            request = revalidation(request, translator);
+            WebbException failure = null;
+            try {
+                response = _execute(request, translator, future, false);
+            } catch (WebbException e) {
+                failure = e;
+            }
+            if (shouldRetry(request, tries, response, failure)) {
+                if (response != null) {
+                    response.close();
+                }
+                retryScheduler().schedule(retry, retryDelay(request, tries, response), TimeUnit.MILLISECONDS);
+                return null;
+            }
+            if (failure != null) {
+                throw failure;
+            }
         }
+        return completed(request, translator, response);
+    }
 
-        return response;
+    private <T> Response<T> _execute(Request request, ResponseTranslator<T> translator, ResponseFuture<?> future, boolean stream) {
+        final Attempt attempt = new Attempt(future);
+        acquireCircuit(request, attempt);
+        try {
+            open(request, attempt).execute();
+            final Response<T> response = readResponse(request, translator, attempt, stream);
+            recordOutcome(attempt, response, null);
+            return response;
+        } catch (Exception e) {
+            final WebbException failure = attempt.fail(e);
+            recordOutcome(attempt, null, failure);
+            throw failure;
+        } finally {
+            if (!attempt.streaming) {
+                attempt.release();
+            }
+        }
     }
 
-    private <T> Response<T> _execute(Request request, ResponseTranslator<T> translator) {
-        InputStream is = null;
-        final URLConnection connection;
-        HttpURLConnection httpConnection = null;
+    /**
+     * Execute the request without blocking the calling thread, if the transport supports it.
+     * Retries are scheduled, instead of waiting for them.
+     * @param tries how many times was the request already tried
+     */
+    <T> void executeNonBlocking(final Request request, final ResponseTranslator<T> translator, final ResponseCallback<T> callback, final int tries) {
+        if (tries == 0 && request.revalidates == null) {
+            final Response<T> cached = fromCache(request, translator);
+            if (cached != null) {
+                // No retries for cached responses
+                attemptDone(request, translator, callback, request.retryCount, cached, null);
+                return;
+            }
+            final Request conditional = revalidation(request, translator);
+            if (conditional != request) {
+                executeNonBlocking(conditional, translator, callback, 0);
+                return;
+            }
+        }
 
-        Response<T> response = null;
+        final Attempt attempt = new Attempt(ResponseFuture.of(callback));
+        try {
+            acquireCircuit(request, attempt);
+        } catch (CircuitOpenException e) {
+            attemptDone(request, translator, callback, tries, null, e);
+            return;
+        }
 
+        final Transport.Exchange exchange;
         try {
-            String uri = request.uri;
-            if (!request.method.canHaveBody && request.params != null && !request.params.isEmpty()) {
-                if (uri.indexOf('?') != -1) {
-                    uri = uri + '&' + WebbUtils.queryString(request.params);
-                } else {
-                    uri = uri + '?' + WebbUtils.queryString(request.params);
+            exchange = open(request, attempt);
+        } catch (Exception e) {
+            attempt.release();
+            final WebbException failure = attempt.fail(e);
+            recordOutcome(attempt, null, failure);
+            attemptDone(request, translator, callback, tries, null, failure);
+            return;
+        }
+
+        if (!(exchange instanceof Transport.AsyncExchange)) {
+            Response<T> response = null;
+            WebbException failure = null;
+            try {
+                exchange.execute();
+                response = readResponse(request, translator, attempt, false);
+            } catch (Exception e) {
+                failure = attempt.fail(e);
+            } finally {
+                attempt.release();
+            }
+            recordOutcome(attempt, response, failure);
+            attemptDone(request, translator, callback, tries, response, failure);
+            return;
+        }
+
+        ((Transport.AsyncExchange) exchange).executeAsync(new Transport.Listener() {
+            public void completed() {
+                Response<T> response = null;
+                WebbException failure = null;
+                try {
+                    response = readResponse(request, translator, attempt, false);
+                } catch (Exception e) {
+                    failure = attempt.fail(e);
+                } finally {
+                    attempt.release();
                 }
+                recordOutcome(attempt, response, failure);
+                attemptDone(request, translator, callback, tries, response, failure);
             }
-            URL apiUrl = new URL(uri);
-            connection = apiUrl.openConnection();
-            if (connection instanceof HttpURLConnection) {
-                httpConnection = (HttpURLConnection) connection;
+
+            public void failed(Exception exception) {
+                attempt.release();
+                final WebbException failure = attempt.fail(exception);
+                recordOutcome(attempt, null, failure);
+                attemptDone(request, translator, callback, tries, null, failure);
             }
+        });
+    }
+
+    /**
+     * Let the attempt through the circuit breaker, if there is one.
+     * @throws CircuitOpenException if the attempt must not be sent
+     */
+    private void acquireCircuit(Request request, Attempt attempt) {
+        final CircuitBreaker circuitBreaker = this.circuitBreaker;
+        if (circuitBreaker != null) {
+            attempt.host = request.getHostKey();
+            attempt.probe = circuitBreaker.acquire(attempt.host);
+            attempt.circuitBreaker = circuitBreaker;
+        }
+    }
+
+    /** Tell the circuit breaker which let the attempt through how it went, cancelled attempts don't count. */
+    private void recordOutcome(Attempt attempt, Response<?> response, WebbException failure) {
+        final CircuitBreaker circuitBreaker = attempt.circuitBreaker;
+        if (circuitBreaker == null) {
+            return;
+        }
+        if (attempt.future != null && attempt.future.isCancelled()) {
+            circuitBreaker.cancel(attempt.host, attempt.probe);
+        } else {
+            circuitBreaker.record(attempt.host, attempt.probe, circuitBreaker.isFailure(retryManager, response, failure));
+        }
+    }
 
-            prepareSslConnection(connection);
-            if (httpConnection != null) {
-                httpConnection.setRequestMethod(request.method.name());
-                httpConnection.setInstanceFollowRedirects(request.followRedirects == null ? followRedirects : request.followRedirects);
+    private <T> void attemptDone(final Request request, final ResponseTranslator<T> translator, final ResponseCallback<T> callback,
+                                 final int tries, Response<T> response, WebbException failure) {
+        if (shouldRetry(request, tries, response, failure)) {
+            final Runnable retry = new Runnable() {
+                public void run() {
+                    executeNonBlocking(request, translator, callback, tries + 1);
+                }
+            };
+            final long delay = retryDelay(request, tries, response);
+            if (delay > 0) {
+                // Synchronous transports and caches block, so the retry is not executed by the scheduler itself
+                retryScheduler().schedule(new Runnable() {
+                    public void run() {
+                        retryExecutor().execute(retry);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } else {
+                // Not on this thread either, it may be the loop of a non-blocking transport, which must not block
+                retryExecutor().execute(retry);
             }
-            connection.setUseCaches(request.useCaches);
-            connection.setConnectTimeout(request.connectTimeout == null ? connectTimeout : request.connectTimeout);
-            connection.setReadTimeout(request.readTimeout == null ? readTimeout : request.readTimeout);
-            if (request.ifModifiedSince != null) {
-                connection.setIfModifiedSince(request.ifModifiedSince);
+            return;
+        }
+
+        if (failure == null) {
+            try {
+                response = completed(request, translator, response);
+            } catch (WebbException e) {
+                failure = e;
             }
+        }
 
-            WebbUtils.addRequestProperties(connection, mergeHeaders(request.headers));
-
-            if (request.method.canHaveBody) {
-                final BodyStreamProvider payloadStream = request.payloadStream;
-                final byte[] payloadData = request.payloadData;
-
-                if (payloadStream != null) {
-                    WebbUtils.ensureRequestProperty(connection, WebbConst.HDR_CONTENT_TYPE, request.payloadContentType != null ? request.payloadContentType : WebbConst.MIME_BINARY);
-
-                    InputStream stream = payloadStream.createStream();
-
-                    if (httpConnection != null) {
-                        if (request.compressPayload) {
-                            httpConnection.setChunkedStreamingMode(-1); // use default chunk size
-                            httpConnection.setRequestProperty(WebbConst.HDR_CONTENT_ENCODING, "gzip");
-                        } else {
-                            //noinspection unchecked
-                            final long length = payloadStream.payloadSize(stream);
-                            boolean lengthSet = false;
-
-                            // - 8 just in case, values too close to close to MAX_VALUE may be buggy
-                            if (length > 0 && length <= Integer.MAX_VALUE - 8) {
-                                // This is fine, we can set this always
-                                httpConnection.setFixedLengthStreamingMode((int)length);
-                                lengthSet = true;
-                            } else if (length > 0) {
-                                // This should be fine on newer implementations...
-                                try {
-                                    //noinspection Since15
-                                    httpConnection.setFixedLengthStreamingMode(length);
-                                    lengthSet = true;
-                                } catch (NoSuchMethodError ignored) {
-                                    // ... and this is not a new implementation
-                                }
-                            }
-
-                            if (!lengthSet) {
-                                // Length can't be set normally, send it in parts
-                                httpConnection.setChunkedStreamingMode(-1); // use default chunk size
-                            }
-                        }
-                    }
+        try {
+            if (failure == null) {
+                callback.success(response);
+            } else {
+                callback.failure(failure);
+            }
+        } catch (Throwable e) {
+            System.err.println("Webb - callback failure");
+            e.printStackTrace(System.err);
+        }
+    }
 
+    /**
+     * @param response of the attempt, or null if it failed
+     * @param failure of the attempt, or null if there is a response
+     * @return true if the request should be tried again and the retry budget allows it
+     */
+    private boolean shouldRetry(Request request, int tries, Response<?> response, WebbException failure) {
+        return tries < request.retryCount
+                && (failure == null ? retryManager.isRetryUseful(response) : retryManager.isRecoverable(failure))
+                && retryManager.isRetryAllowed();
+    }
 
-                    connection.setDoOutput(true);
+    /**
+     * @param response to be retried, or null if the attempt failed
+     * @return how many milliseconds to wait before the next try, the server may ask for it through <code>Retry-After</code>
+     */
+    private long retryDelay(Request request, int tries, Response<?> response) {
+        return request.waitExponential || retryManager.getRetryAfterMillis(response) >= 0 ? retryManager.getDelayMillis(tries, response) : 0;
+    }
+
+    /** Cache the final response of the request and ensure its success, if requested. */
+    private <T> Response<T> completed(Request request, ResponseTranslator<T> translator, Response<T> response) {
+        if (!response.cached && response.isSuccess()) {
+            retryManager.onSuccess(response);
+        }
+        response = toCache(request, translator, response);
+        if (request.ensureSuccess) {
+            try {
+                response.ensureSuccess();
+            } catch (WebbException e) {
+                response.close();
+                throw e;
+            }
+        }
+        return response;
+    }
 
-                    // "E/StrictMode﹕ A resource was acquired at attached stack trace but never released"
-                    // see comments about this problem in #writeBody()
-                    OutputStream os = null;
-                    try {
-                        os = connection.getOutputStream();
+    /** @return fresh response from the cache, or null if the request must be executed */
+    private <T> Response<T> fromCache(Request request, ResponseTranslator<T> translator) {
+        final ResponseCache cache = this.cache;
+        final DiskCache diskCache = this.diskCache;
+        if ((cache == null && diskCache == null) || !ResponseCache.isCacheable(request, translator)) {
+            return null;
+        }
+        final String uri = resolveUri(request);
+        final Map<String, String> headers = resolveHeaders(request);
+        if (cache != null) {
+            final Response<T> response = cache.get(request, uri, headers, translator);
+            if (response != null) {
+                return response;
+            }
+        }
+        if (diskCache != null) {
+            final Response<T> response = diskCache.get(request, uri, headers, translator);
+            if (response != null && cache != null) {
+                cache.put(uri, headers, translator, response);
+            }
+            return response;
+        }
+        return null;
+    }
 
-                        if (request.compressPayload) {
-                            GZIPOutputStream gos = new GZIPOutputStream(os);
-                            WebbUtils.copyStream(stream, gos);
-                            gos.finish();
-                        } else {
-                            WebbUtils.copyStream(stream, os);
-                        }
+    /** @return conditional copy of the request, if there is a stale cached response to revalidate, otherwise the request */
+    private Request revalidation(Request request, ResponseTranslator<?> translator) {
+        final ResponseCache cache = this.cache;
+        final DiskCache diskCache = this.diskCache;
+        if ((cache == null && diskCache == null) || !ResponseCache.isCacheable(request, translator)) {
+            return request;
+        }
+        final String uri = resolveUri(request);
+        final Map<String, String> headers = resolveHeaders(request);
+        Request conditional = null;
+        if (cache != null) {
+            conditional = cache.revalidation(request, uri, headers, translator);
+        }
+        if (conditional == null && diskCache != null) {
+            conditional = diskCache.revalidation(request, uri, headers);
+        }
+        return conditional != null ? conditional : request;
+    }
 
-                        os.flush();
-                    } finally {
-                        if (os != null) {
-                            try { os.close(); } catch (Exception ignored) {}
-                        }
+    /**
+     * Store the response in the memory cache, if it is cacheable, or invalidate the caches, if the request changed the resource.
+     * The disk cache stores responses while their body is read.
+     * @return the response, or the revalidated cached response, if the response is 304 to a revalidation
+     */
+    private <T> Response<T> toCache(Request request, ResponseTranslator<T> translator, Response<T> response) {
+        final ResponseCache cache = this.cache;
+        final DiskCache diskCache = this.diskCache;
+        if (request.revalidates != null && response.getStatusCode() == 304) {
+            final String uri = resolveUri(request);
+            final Map<String, String> headers = resolveHeaders(request);
+            Response<T> revalidated = null;
+            if (cache != null) {
+                revalidated = cache.revalidated(uri, headers, translator, response);
+            }
+            if (revalidated == null && diskCache != null) {
+                revalidated = diskCache.revalidated(uri, headers, translator, response);
+                if (revalidated != null && cache != null) {
+                    cache.put(uri, headers, translator, revalidated);
+                }
+            }
+            // Evicted in the meantime, so the caller gets the 304
+            return revalidated != null ? revalidated : response;
+        } else if (request.method != HttpMethod.GET && response.getStatusCode() < 400 && (cache != null || diskCache != null)) {
+            final String uri = resolveUri(request);
+            if (cache != null) {
+                cache.invalidate(uri);
+            }
+            if (diskCache != null) {
+                diskCache.invalidate(uri);
+            }
+        } else if (cache != null && !response.cached && ResponseCache.isCacheable(request, translator)) {
+            cache.put(resolveUri(request), resolveHeaders(request), translator, response);
+        }
+        return response;
+    }
 
-                        //noinspection unchecked
-                        payloadStream.destroyStream(stream);
-                    }
-                } else if (payloadData != null || request.params != null) {
-                    byte[] sentPayloadData;
-                    if (payloadData == null) {
-                        sentPayloadData = WebbUtils.queryString(request.params).getBytes(WebbConst.UTF8);
-                        WebbUtils.ensureRequestProperty(connection, WebbConst.HDR_CONTENT_TYPE, WebbConst.MIME_URLENCODED);
-                    } else {
-                        sentPayloadData = payloadData;
-                        WebbUtils.ensureRequestProperty(connection, WebbConst.HDR_CONTENT_TYPE, request.payloadContentType != null ? request.payloadContentType : WebbConst.MIME_BINARY);
-                    }
+    private static ScheduledExecutorService retryScheduler;
 
+    private static synchronized ScheduledExecutorService retryScheduler() {
+        if (retryScheduler == null) {
+            retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "Webb - retry scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return retryScheduler;
+    }
 
-                    // only compress if the new body is smaller than uncompressed body
-                    if (request.compressPayload && sentPayloadData.length > WebbConst.MIN_COMPRESSED_ADVANTAGE) {
-                        byte[] compressedBody = WebbUtils.gzip(payloadData);
-                        if (sentPayloadData.length - compressedBody.length > WebbConst.MIN_COMPRESSED_ADVANTAGE) {
-                            sentPayloadData = compressedBody;
-                            connection.setRequestProperty(WebbConst.HDR_CONTENT_ENCODING, "gzip");
-                        }
-                    }
+    private static ExecutorService retryExecutor;
 
-                    // We don't need to setFixedLengthStreamingMode, because we already know that given data will fit
-                    // into internal buffers - we already have it in memory!
-                    connection.setDoOutput(true);
-                    writeBody(connection, sentPayloadData);
+    /** @return executor of scheduled retries of non-blocking requests, which may block */
+    private static synchronized ExecutorService retryExecutor() {
+        if (retryExecutor == null) {
+            retryExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "Webb - retry");
+                    thread.setDaemon(true);
+                    return thread;
                 }
+            });
+        }
+        return retryExecutor;
+    }
+
+    /** Resolve the request, open the exchange for it and store everything that must be released in attempt. */
+    private Transport.Exchange open(Request request, Attempt attempt) throws Exception {
+        final String uri = resolveUri(request);
+        Map<String, String> headers = resolveHeaders(request);
+        Transport.Body body = null;
+
+        if (request.method.canHaveBody && (request.payloadStream != null || request.payloadData != null || request.params != null)) {
+            if (headers == request.templateHeaders) {
+                headers = new LinkedHashMap<String, String>(headers);
             }
-            connection.connect();
+            final BodyStreamProvider payloadStream = request.payloadStream;
+            final byte[] payloadData = request.payloadData;
 
-            response = new Response<T>(request, connection);
+            if (payloadStream != null) {
+                WebbUtils.ensureHeader(headers, WebbConst.HDR_CONTENT_TYPE, request.payloadContentType != null ? request.payloadContentType : WebbConst.MIME_BINARY);
 
-            // get the response body (if any)
-            if (response.isSuccess()) {
-                is = connection.getInputStream();
-            } else if (httpConnection != null) {
-                is = httpConnection.getErrorStream();
-                if (is == null) {
-                    is = connection.getInputStream();
+                final InputStream stream = payloadStream.createStream();
+                attempt.payloadStream = payloadStream;
+                attempt.payload = stream;
+                if (request.compressPayload) {
+                    headers.put(WebbConst.HDR_CONTENT_ENCODING, "gzip");
+                }
+                if (!request.compressPayload && payloadStream instanceof Request.FileStreamProvider
+                        && ((Request.FileStreamProvider) payloadStream).file.isFile()) {
+                    final FileChannel channel = ((FileInputStream) stream).getChannel();
+                    body = new FileBody(stream, channel, channel.position(), channel.size() - channel.position(), bufferPool);
+                } else {
+                    body = new StreamBody(payloadStream, stream, request.compressPayload, bufferPool);
+                }
+            } else if (payloadData != null || request.params != null) {
+                byte[] sentPayloadData;
+                if (payloadData == null) {
+                    sentPayloadData = PercentEncoder.formBody(request.params);
+                    WebbUtils.ensureHeader(headers, WebbConst.HDR_CONTENT_TYPE, WebbConst.MIME_URLENCODED);
+                } else {
+                    sentPayloadData = payloadData;
+                    WebbUtils.ensureHeader(headers, WebbConst.HDR_CONTENT_TYPE, request.payloadContentType != null ? request.payloadContentType : WebbConst.MIME_BINARY);
                 }
-            }
-            is = WebbUtils.decodeStream(connection.getContentEncoding(), is);
 
-            if (translator == null) {
-                response.body = null;
-            } else if (is != null) {
-                response.body = translator.decode(response, is);
-            } else {
-                response.body = translator.decodeEmptyBody(response);
-            }
 
-            return response;
-        } catch (WebbException e) {
-            e.response = response;
-            throw e;
-        } catch (Exception e) {
-            final WebbException exception = new WebbException(e);
-            exception.response = response;
-            throw exception;
-        } finally {
-            WebbUtils.closeQuietly(is);
-            if (httpConnection != null) {
-                try { httpConnection.disconnect(); } catch (Exception ignored) {}
+                // only compress if the new body is smaller than uncompressed body
+                if (request.compressPayload && sentPayloadData.length > WebbConst.MIN_COMPRESSED_ADVANTAGE) {
+                    byte[] compressedBody = WebbUtils.gzip(sentPayloadData, bufferPool);
+                    if (sentPayloadData.length - compressedBody.length > WebbConst.MIN_COMPRESSED_ADVANTAGE) {
+                        sentPayloadData = compressedBody;
+                        headers.put(WebbConst.HDR_CONTENT_ENCODING, "gzip");
+                    }
+                }
+
+                body = new BytesBody(sentPayloadData);
             }
         }
+
+        final TransportRequest transportRequest = new TransportRequest(request, uri, headers, body,
+                request.connectTimeout == null ? connectTimeout : request.connectTimeout,
+                request.readTimeout == null ? readTimeout : request.readTimeout,
+                request.followRedirects == null ? followRedirects : request.followRedirects,
+                sslSocketFactory, hostnameVerifier, connectionPool);
+
+        final Transport.Exchange exchange = transport.open(transportRequest);
+        attempt.exchange = exchange;
+        if (attempt.future != null && !attempt.future.attach(exchange)) {
+            throw new WebbException("Request has been cancelled");
+        }
+        return exchange;
     }
 
-    private void writeBody(URLConnection connection, byte[] body) throws IOException {
-        // Android StrictMode might complain about not closing the connection:
-        // "E/StrictMode﹕ A resource was acquired at attached stack trace but never released"
-        // It seems like some kind of bug in special devices (e.g. 4.0.4/Sony) but does not
-        // happen e.g. on 4.4.2/Moto G.
-        // Closing the stream in the try block might help sometimes (it's intermittently),
-        // but I don't want to deal with the IOException which can be thrown in close().
-        OutputStream os = null;
-        try {
-            os = connection.getOutputStream();
-            os.write(body);
-            os.flush();
-        } finally {
-            if (os != null) {
-                try { os.close(); } catch (Exception ignored) {}
+    /** @return absolute URI of the request, with params in the query string, if the method has no body */
+    private String resolveUri(Request request) {
+        final String uri = request.uri;
+        if (!request.method.canHaveBody && request.params != null && !request.params.isEmpty()) {
+            final StringBuilder uriWithQuery = new StringBuilder(uri.length() + 16 * request.params.size());
+            uriWithQuery.append(uri).append(uri.indexOf('?') != -1 ? '&' : '?');
+            PercentEncoder.appendParams(uriWithQuery, request.params);
+            return uriWithQuery.toString();
+        }
+        return uri;
+    }
+
+    /** @return headers of the request merged with default headers, may be shared by requests of a template */
+    private Map<String, String> resolveHeaders(Request request) {
+        if (request.templateHeaders == null) {
+            return WebbUtils.headerValues(mergeHeaders(request.headers));
+        } else if (request.headers == null) {
+            // Shared by all requests of the template, copied before modification
+            return request.templateHeaders;
+        } else {
+            final Map<String, String> headers = new LinkedHashMap<String, String>(request.templateHeaders);
+            headers.putAll(WebbUtils.headerValues(request.headers));
+            return headers;
+        }
+    }
+
+    /**
+     * Read the response of executed exchange of the attempt.
+     * @param stream true to hand the body to the caller as an open stream, the translator is not used then
+     */
+    private <T> Response<T> readResponse(Request request, ResponseTranslator<T> translator, Attempt attempt, boolean stream) throws Exception {
+        final Response<T> response = new Response<T>(request, attempt.exchange);
+        attempt.response = response;
+
+        // get the response body (if any)
+        InputStream is = attempt.exchange.getBody();
+        attempt.body = is;
+        is = WebbUtils.decodeStream(response.getHeaderField(WebbConst.HDR_CONTENT_ENCODING), is, bufferPool);
+        attempt.body = is;
+
+        final DiskCache diskCache = this.diskCache;
+        if (diskCache != null && !stream && ResponseCache.isCacheable(request, translator)) {
+            final DiskCache.Store store = diskCache.store(resolveUri(request), resolveHeaders(request), response, is);
+            if (store != null) {
+                // Translator reads the body through the store, which writes it into the cache
+                boolean decoded = false;
+                try {
+                    response.body = is != null ? translator.decode(response, store) : translator.decodeEmptyBody(response);
+                    decoded = true;
+                } finally {
+                    store.finish(decoded);
+                }
+                return response;
             }
         }
+
+        if (stream) {
+            // Resources are released when the response (or its body) is closed, instead of now
+            //noinspection unchecked
+            response.body = (T) new ResponseBodyStream(is != null ? is : new ByteArrayInputStream(WebbConst.EMPTY_BYTE_ARRAY), response);
+            response.resources = attempt;
+            attempt.streaming = true;
+        } else if (translator == null) {
+            response.body = null;
+        } else if (is != null) {
+            response.body = translator.decode(response, is);
+        } else {
+            response.body = translator.decodeEmptyBody(response);
+        }
+
+        return response;
+    }
+
+    /** Body of a streamed response, closing it closes the whole response. */
+    private static final class ResponseBodyStream extends FilterInputStream {
+        private final Response<?> response;
+
+        ResponseBodyStream(InputStream in, Response<?> response) {
+            super(in);
+            this.response = response;
+        }
+
+        @Override
+        public void close() {
+            response.close();
+        }
     }
 
-    private void prepareSslConnection(URLConnection connection) {
-        if (connection instanceof HttpsURLConnection) {
-            HttpsURLConnection sslConnection = (HttpsURLConnection) connection;
-            if (hostnameVerifier != null) {
-                sslConnection.setHostnameVerifier(hostnameVerifier);
+    /** Resources of a single attempt to execute a request, which must be released afterwards. */
+    private static final class Attempt implements Closeable {
+        final ResponseFuture<?> future;
+        BodyStreamProvider payloadStream;
+        InputStream payload;
+        Transport.Exchange exchange;
+        InputStream body;
+        Response<?> response;
+        /** Response body is streamed, so the attempt is released when the response is closed */
+        boolean streaming;
+        /** Which let the attempt through, null if there is none */
+        CircuitBreaker circuitBreaker;
+        String host;
+        /** See {@link CircuitBreaker#acquire(String)} */
+        int probe;
+
+        private Attempt(ResponseFuture<?> future) {
+            this.future = future;
+        }
+
+        /** @return exception to throw, with response attached (if there was any) */
+        WebbException fail(Exception e) {
+            final WebbException exception = e instanceof WebbException ? (WebbException) e : new WebbException(e);
+            exception.response = response;
+            return exception;
+        }
+
+        void release() {
+            if (future != null) {
+                future.detach();
+            }
+            WebbUtils.closeQuietly(body);
+            if (exchange != null) {
+                exchange.close();
             }
-            if (sslSocketFactory != null) {
-                sslConnection.setSSLSocketFactory(sslSocketFactory);
+            if (payload != null) {
+                //noinspection unchecked
+                payloadStream.destroyStream(payload);
             }
         }
+
+        public void close() {
+            release();
+        }
     }
 
     private Map<String, Object> mergeHeaders(Map<String, Object> requestHeaders) {
@@ -449,4 +945,102 @@ public final class Webb {
         }
         return headers;
     }
+
+    /** Body of a request with data in memory */
+    private static final class BytesBody implements Transport.Body {
+        private final byte[] data;
+
+        private BytesBody(byte[] data) {
+            this.data = data;
+        }
+
+        public long getLength() {
+            return data.length;
+        }
+
+        public boolean isInMemory() {
+            return true;
+        }
+
+        public void writeTo(OutputStream out) throws Exception {
+            out.write(data);
+        }
+    }
+
+    /** Body with content of a file, which transports can send straight from the file */
+    private static final class FileBody implements Transport.FileBody {
+        private final InputStream stream;
+        private final FileChannel channel;
+        private final long position;
+        private final long length;
+        private final BufferPool bufferPool;
+
+        private FileBody(InputStream stream, FileChannel channel, long position, long length, BufferPool bufferPool) {
+            this.stream = stream;
+            this.channel = channel;
+            this.position = position;
+            this.length = length;
+            this.bufferPool = bufferPool;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public boolean isInMemory() {
+            return false;
+        }
+
+        public void writeTo(OutputStream out) throws Exception {
+            WebbUtils.copyStream(stream, out, bufferPool);
+        }
+    }
+
+    /** Body of a request with data from {@link BodyStreamProvider} */
+    private static final class StreamBody implements Transport.Body {
+        private final BodyStreamProvider provider;
+        private final InputStream stream;
+        private final boolean compress;
+        private final BufferPool bufferPool;
+
+        private StreamBody(BodyStreamProvider provider, InputStream stream, boolean compress, BufferPool bufferPool) {
+            this.provider = provider;
+            this.stream = stream;
+            this.compress = compress;
+            this.bufferPool = bufferPool;
+        }
+
+        public long getLength() {
+            if (compress) {
+                return -1;
+            }
+            //noinspection unchecked
+            return provider.payloadSize(stream);
+        }
+
+        public boolean isInMemory() {
+            return false;
+        }
+
+        public void writeTo(OutputStream out) throws Exception {
+            if (compress) {
+                final GZIPOutputStream gos = new WebbUtils.PooledGZIPOutputStream(out, bufferPool);
+                try {
+                    WebbUtils.copyStream(stream, gos, bufferPool);
+                } finally {
+                    gos.finish();
+                }
+            } else {
+                WebbUtils.copyStream(stream, out, bufferPool);
+            }
+        }
+    }
 }
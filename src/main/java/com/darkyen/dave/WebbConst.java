@@ -17,6 +17,7 @@ public final class WebbConst {
     // Headers
     public static final String HDR_CONTENT_TYPE = "Content-Type";
     public static final String HDR_CONTENT_ENCODING = "Content-Encoding";
+    public static final String HDR_CONTENT_LENGTH = "Content-Length";
     public static final String HDR_ACCEPT_ENCODING = "Accept-Encoding";
     public static final String HDR_ACCEPT = "Accept";
     public static final String HDR_USER_AGENT = "User-Agent";
@@ -5,7 +5,7 @@ package com.darkyen.dave;
  *
  * @author hgoebl
  */
-public final class WebbException extends RuntimeException {
+public class WebbException extends RuntimeException {
 
     Response response;
 
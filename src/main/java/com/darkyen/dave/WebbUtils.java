@@ -2,7 +2,6 @@ package com.darkyen.dave;
 
 import java.io.*;
 import java.net.URLConnection;
-import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.zip.GZIPInputStream;
@@ -27,38 +26,11 @@ final class WebbUtils {
      * @return e.g. "key1=value&amp;key2=&amp;email=max%40example.com"
      */
     static String queryString(Map<String, Object> values) {
-        StringBuilder sbuf = new StringBuilder();
-        String separator = "";
-
-        for (Map.Entry<String, Object> entry : values.entrySet()) {
-            Object entryValue = entry.getValue();
-            if (entryValue instanceof Object[]) {
-                for (Object value : (Object[]) entryValue) {
-                    appendParam(sbuf, separator, entry.getKey(), value);
-                    separator = "&";
-                }
-            } else if (entryValue instanceof Iterable) {
-                for (Object multiValue : (Iterable) entryValue) {
-                    appendParam(sbuf, separator, entry.getKey(), multiValue);
-                    separator = "&";
-                }
-            } else {
-                appendParam(sbuf, separator, entry.getKey(), entryValue);
-                separator = "&";
-            }
-        }
-
+        final StringBuilder sbuf = new StringBuilder();
+        PercentEncoder.appendParams(sbuf, values);
         return sbuf.toString();
     }
 
-    private static void appendParam(StringBuilder sbuf, String separator, String entryKey, Object value) {
-        String sValue = value == null ? "" : String.valueOf(value);
-        sbuf.append(separator);
-        sbuf.append(urlEncode(entryKey));
-        sbuf.append('=');
-        sbuf.append(urlEncode(sValue));
-    }
-
     /**
      * Read an <code>InputStream</code> into <code>byte[]</code> until EOF.
      * <br>
@@ -69,12 +41,80 @@ final class WebbUtils {
      * @throws IOException when read or write operation fails
      */
     static byte[] readBytes(InputStream is) throws IOException {
+        return readBytes(is, -1);
+    }
+
+    /**
+     * Largest array allocated up front for the declared length, so that a bogus Content-Length can't take much memory
+     * before any bytes arrive. Longer bodies continue in chunks.
+     */
+    static final int MAX_PRESIZED_LENGTH = 1024 * 1024;
+    private static final int FIRST_CHUNK_SIZE = 8 * 1024;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Read an <code>InputStream</code> into <code>byte[]</code> until EOF.
+     * <br>
+     * When the length is known, bytes are read directly into an array of that size (up to {@link #MAX_PRESIZED_LENGTH}).
+     * Otherwise, or when the stream turns out to be longer, bytes are read into a list of growing chunks,
+     * which are copied into the result only once, at the end.
+     * When the stream is shorter than expected, the result is trimmed.
+     *
+     * @param expectedLength length of the stream, if known (for example from the Content-Length header), -1 if not known
+     * @see #readBytes(InputStream)
+     */
+    static byte[] readBytes(InputStream is, long expectedLength) throws IOException {
         if (is == null) {
             return null;
         }
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-        copyStream(is, byteOut);
-        return byteOut.toByteArray();
+
+        byte[] chunk = new byte[expectedLength >= 0 ? (int) Math.min(expectedLength, MAX_PRESIZED_LENGTH) : FIRST_CHUNK_SIZE];
+        int filled = fill(is, chunk, 0);
+        if (filled < chunk.length) {
+            final byte[] result = new byte[filled];
+            System.arraycopy(chunk, 0, result, 0, filled);
+            return result;
+        }
+        int next = is.read();
+        if (next == -1) {
+            // Exact size, the common case when the length is known
+            return chunk;
+        }
+
+        final ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+        long length = chunk.length;
+        chunks.add(chunk);
+        while (true) {
+            chunk = new byte[(int) Math.min(Math.max(length, FIRST_CHUNK_SIZE), MAX_CHUNK_SIZE)];
+            chunk[0] = (byte) next;
+            filled = fill(is, chunk, 1);
+            length += filled;
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IOException("Stream is too long to fit into an array");
+            }
+            chunks.add(chunk);
+            if (filled < chunk.length || (next = is.read()) == -1) {
+                break;
+            }
+        }
+
+        final byte[] result = new byte[(int) length];
+        int position = 0;
+        for (byte[] part : chunks) {
+            final int partLength = Math.min(part.length, result.length - position);
+            System.arraycopy(part, 0, result, position, partLength);
+            position += partLength;
+        }
+        return result;
+    }
+
+    /** Read into the buffer from position until it is full or until EOF. @return position after the read bytes */
+    private static int fill(InputStream is, byte[] buffer, int position) throws IOException {
+        int read;
+        while (position < buffer.length && (read = is.read(buffer, position, buffer.length - position)) != -1) {
+            position += read;
+        }
+        return position;
     }
 
     /**
@@ -87,10 +127,19 @@ final class WebbUtils {
      * @throws IOException when read or write operation fails
      */
     static void copyStream(InputStream input, OutputStream output) throws IOException {
-        byte[] buffer = new byte[1024];
-        int count;
-        while ((count = input.read(buffer)) != -1) {
-            output.write(buffer, 0, count);
+        copyStream(input, output, BufferPool.DEFAULT);
+    }
+
+    /** @see #copyStream(InputStream, OutputStream) */
+    static void copyStream(InputStream input, OutputStream output, BufferPool bufferPool) throws IOException {
+        final byte[] buffer = bufferPool.takeBytes();
+        try {
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+        } finally {
+            bufferPool.giveBytes(buffer);
         }
     }
 
@@ -108,12 +157,11 @@ final class WebbUtils {
         RFC1123_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
 
+    /** Encode the value like {@link java.net.URLEncoder} does, with UTF-8. */
     static String urlEncode(String value) {
-        try {
-            return URLEncoder.encode(value, WebbConst.UTF8);
-        } catch (UnsupportedEncodingException e) {
-            return value;
-        }
+        final StringBuilder sbuf = new StringBuilder(value.length() + 16);
+        PercentEncoder.append(sbuf, value, PercentEncoder.FORM);
+        return sbuf.toString();
     }
 
     static void addRequestProperties(URLConnection connection, Map<String, Object> map) {
@@ -130,20 +178,53 @@ final class WebbUtils {
             throw new IllegalArgumentException("name and value must not be empty");
         }
 
-        String valueAsString;
+        connection.addRequestProperty(name, headerValue(value));
+    }
+
+    /**
+     * Convert header value to String.
+     * {@link Date} and {@link Calendar} are formatted as RFC1123 dates, other objects through <code>toString()</code>.
+     */
+    static String headerValue(Object value) {
         if (value instanceof Date) {
             synchronized (RFC1123_DATE_FORMAT) {
-                valueAsString = RFC1123_DATE_FORMAT.format((Date) value);
+                return RFC1123_DATE_FORMAT.format((Date) value);
             }
         } else if (value instanceof Calendar) {
             synchronized (RFC1123_DATE_FORMAT) {
-                valueAsString = RFC1123_DATE_FORMAT.format(((Calendar) value).getTime());
+                return RFC1123_DATE_FORMAT.format(((Calendar) value).getTime());
             }
         } else {
-            valueAsString = value.toString();
+            return value.toString();
+        }
+    }
+
+    /**
+     * Convert all header values to String.
+     * @param headers may be null
+     * @return new modifiable map with the headers in the same order
+     * @see #headerValue(Object)
+     */
+    static Map<String, String> headerValues(Map<String, Object> headers) {
+        final Map<String, String> result = new LinkedHashMap<String, String>();
+        if (headers == null) {
+            return result;
         }
+        for (Map.Entry<String, Object> entry : headers.entrySet()) {
+            final String name = entry.getKey();
+            final Object value = entry.getValue();
+            if (name == null || name.length() == 0 || value == null) {
+                throw new IllegalArgumentException("name and value must not be empty");
+            }
+            result.put(name, headerValue(value));
+        }
+        return result;
+    }
 
-        connection.addRequestProperty(name, valueAsString);
+    static void ensureHeader(Map<String, String> headers, String name, String value) {
+        if (!headers.containsKey(name)) {
+            headers.put(name, value);
+        }
     }
 
     static void ensureRequestProperty(URLConnection connection, String name, Object value) {
@@ -153,10 +234,14 @@ final class WebbUtils {
     }
 
     static byte[] gzip(byte[] input) {
+        return gzip(input, BufferPool.DEFAULT);
+    }
+
+    static byte[] gzip(byte[] input, BufferPool bufferPool) {
         GZIPOutputStream gzipOS = null;
         try {
-            ByteArrayOutputStream byteArrayOS = new ByteArrayOutputStream();
-            gzipOS = new GZIPOutputStream(byteArrayOS);
+            ByteArrayOutputStream byteArrayOS = new ByteArrayOutputStream(Math.max(input.length / 2, 32));
+            gzipOS = new PooledGZIPOutputStream(byteArrayOS, bufferPool);
             gzipOS.write(input);
             gzipOS.close();
             gzipOS = null;
@@ -171,18 +256,98 @@ final class WebbUtils {
     }
 
     static InputStream decodeStream(String contentEncoding, InputStream inputStream) throws IOException {
+        return decodeStream(contentEncoding, inputStream, BufferPool.DEFAULT);
+    }
+
+    /** Wrap the stream so that it decodes given content encoding. Buffers of the decoder are returned to the pool when closed. */
+    static InputStream decodeStream(String contentEncoding, InputStream inputStream, BufferPool bufferPool) throws IOException {
         if (contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding)) {
             return inputStream;
         }
         if ("gzip".equalsIgnoreCase(contentEncoding)) {
-            return new GZIPInputStream(inputStream);
+            return new PooledGZIPInputStream(inputStream, bufferPool);
         }
         if ("deflate".equalsIgnoreCase(contentEncoding)) {
-            return new InflaterInputStream(inputStream, new Inflater(false), 512);
+            return new PooledInflaterInputStream(inputStream, bufferPool);
         }
         throw new WebbException("unsupported content-encoding: " + contentEncoding);
     }
 
+    /** {@link GZIPInputStream} with buffer from {@link BufferPool}. */
+    private static final class PooledGZIPInputStream extends GZIPInputStream {
+        private final BufferPool bufferPool;
+        private boolean released = false;
+
+        PooledGZIPInputStream(InputStream in, BufferPool bufferPool) throws IOException {
+            // The minimal buffer is replaced right away, header is read without it
+            super(in, 1);
+            this.bufferPool = bufferPool;
+            this.buf = bufferPool.takeBytes();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!released) {
+                    released = true;
+                    bufferPool.giveBytes(buf);
+                }
+            }
+        }
+    }
+
+    /** {@link InflaterInputStream} with buffer from {@link BufferPool}, which also releases its {@link Inflater} when closed. */
+    private static final class PooledInflaterInputStream extends InflaterInputStream {
+        private final BufferPool bufferPool;
+        private boolean released = false;
+
+        PooledInflaterInputStream(InputStream in, BufferPool bufferPool) {
+            super(in, new Inflater(false), 1);
+            this.bufferPool = bufferPool;
+            this.buf = bufferPool.takeBytes();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!released) {
+                    released = true;
+                    inf.end();
+                    bufferPool.giveBytes(buf);
+                }
+            }
+        }
+    }
+
+    /** {@link GZIPOutputStream} with buffer from {@link BufferPool}, which is returned by {@link #finish()}. */
+    static final class PooledGZIPOutputStream extends GZIPOutputStream {
+        private final BufferPool bufferPool;
+        private boolean released = false;
+
+        PooledGZIPOutputStream(OutputStream out, BufferPool bufferPool) throws IOException {
+            super(out, 1);
+            this.bufferPool = bufferPool;
+            this.buf = bufferPool.takeBytes();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            try {
+                super.finish();
+            } finally {
+                if (!released) {
+                    released = true;
+                    bufferPool.giveBytes(buf);
+                    buf = new byte[1];
+                }
+            }
+        }
+    }
+
     static void closeQuietly(Closeable closeable) {
         if (closeable == null) return;
         try {
@@ -0,0 +1,41 @@
+"use strict";
+
+module.exports = function registerRoutes(app) {
+
+    var counters = {};
+
+    // Body is "<id>:<number of requests of the id>", so that clients can tell cached responses
+    // ?cache-control=x - Cache-Control header, ?vary=x - Vary header
+    // ?etag - ETag header, ?last-modified - Last-Modified header, matching conditional requests get 304
+    app.get('/cache/:id', function (req, res) {
+        var id = req.param('id');
+
+        counters[id] = (counters[id] || 0) + 1;
+        if (req.query['cache-control'] !== undefined) {
+            res.header('Cache-Control', req.query['cache-control']);
+        }
+        if (req.query.vary !== undefined) {
+            res.header('Vary', req.query.vary);
+        }
+        var etag = '"' + id + '"';
+        var lastModified = 'Tue, 24 Dec 2013 23:59:30 GMT';
+        if (req.query.etag !== undefined) {
+            res.header('ETag', etag);
+            if (req.get('If-None-Match') === etag) {
+                return res.send(304);
+            }
+        }
+        if (req.query['last-modified'] !== undefined) {
+            res.header('Last-Modified', lastModified);
+            if (req.get('If-None-Match') === undefined && req.get('If-Modified-Since') === lastModified) {
+                return res.send(304);
+            }
+        }
+        res.header('Content-Type', 'text/plain');
+        res.send(200, id + ':' + counters[id]);
+    });
+
+    app.post('/cache/:id', function (req, res) {
+        res.send(204);
+    });
+};
@@ -0,0 +1,53 @@
+"use strict";
+
+// 3 MiB + 17 bytes, byte at index i is (i * 7) % 251
+var LENGTH = 3 * 1024 * 1024 + 17,
+    CONTENT = new Buffer(LENGTH),
+    LAST_MODIFIED = 'Tue, 24 Dec 2013 23:59:30 GMT',
+    i;
+
+for (i = 0; i < LENGTH; ++i) {
+    CONTENT[i] = (i * 7) % 251;
+}
+
+module.exports = function registerRoutes(app) {
+
+    // ?norange - ignore Range headers, ?version=x - version of the content, changes the ETag, ?empty - no content,
+    // ?novalidator - no ETag and Last-Modified
+    app.get('/download', function (req, res) {
+        var etag = '"download-' + (req.query.version || '1') + '"',
+            range = req.header('range'),
+            ifRange = req.header('if-range'),
+            content = req.query.empty === undefined ? CONTENT : new Buffer(0),
+            match, first, last;
+
+        if (req.query.novalidator === undefined) {
+            res.header('ETag', etag);
+            res.header('Last-Modified', LAST_MODIFIED);
+        }
+        res.header('Content-Type', 'application/octet-stream');
+
+        if (req.header('if-none-match') === etag) {
+            res.send(304);
+            return;
+        }
+
+        if (req.query.norange === undefined) {
+            res.header('Accept-Ranges', 'bytes');
+            match = range && /^bytes=(\d+)-(\d*)$/.exec(range);
+            if (match && (!ifRange || ifRange === etag || ifRange === LAST_MODIFIED)) {
+                first = parseInt(match[1], 10);
+                last = match[2] ? Math.min(parseInt(match[2], 10), content.length - 1) : content.length - 1;
+                if (first >= content.length || last < first) {
+                    res.header('Content-Range', 'bytes */' + content.length);
+                    res.send(416);
+                    return;
+                }
+                res.header('Content-Range', 'bytes ' + first + '-' + last + '/' + content.length);
+                res.send(206, content.slice(first, last + 1));
+                return;
+            }
+        }
+        res.send(200, content);
+    });
+};
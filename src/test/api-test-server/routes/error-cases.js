@@ -18,6 +18,15 @@ module.exports = function registerRoutes(app) {
         res.send(400, {msg: 'an error has occurred'});
     });
 
+    // promises 100 bytes, sends 10 and closes the connection
+    app.get('/error/short-body', function (req, res) {
+        res.writeHead(200, {'Content-Type': 'application/octet-stream', 'Content-Length': 100});
+        res.write(new Buffer(10));
+        setTimeout(function () {
+            res.connection.destroy();
+        }, 100);
+    });
+
     var counters = {};
 
     function cleanupCounters() {
@@ -29,7 +38,7 @@ module.exports = function registerRoutes(app) {
         });
     }
 
-    app.get('/error/503/:requestTimestamp/:retryCount', function (req, res) {
+    app.all('/error/503/:requestTimestamp/:retryCount', function (req, res) {
 
         var requestTimestamp = req.param('requestTimestamp'),
             retryCount = Number(req.param('retryCount')),
@@ -39,9 +48,13 @@ module.exports = function registerRoutes(app) {
         currentRetry = counters[requestTimestamp] || 0;
         counters[requestTimestamp] = currentRetry + 1;
 
+        // ?status=x - status instead of 503, ?retry-after=x - Retry-After header
         if (currentRetry < retryCount) {
             console.log('503 -> ' + currentRetry + ' of ' + retryCount);
-            res.send(503);
+            if (req.query['retry-after'] !== undefined) {
+                res.header('Retry-After', req.query['retry-after']);
+            }
+            res.send(Number(req.query.status || 503));
         } else {
             res.send(200, 'Now it works');
         }
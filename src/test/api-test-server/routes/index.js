@@ -20,4 +20,6 @@ module.exports = function registerRoutes(app) {
     require('./redirect.js')(app);
     require('./upload.js')(app);
     require('./compressed.js')(app);
+    require('./download.js')(app);
+    require('./cache.js')(app);
 };
\ No newline at end of file
@@ -10,6 +10,10 @@ module.exports = function registerRoutes(app) {
         res.redirect(303, 'redirect/target');
     });
 
+    app.post('/redirect/307', function (req, res) {
+        res.redirect(307, 'redirect/target');
+    });
+
     app.get('/redirect/target', function (req, res) {
         res.send(200, 'redirected to target');
     });
@@ -4,6 +4,8 @@ import junit.framework.TestCase;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URLEncoder;
 import java.util.*;
 import java.util.zip.GZIPInputStream;
 
@@ -55,6 +57,51 @@ public class TestWebbUtils_NoMock extends TestCase {
         assertEquals("M%C3%BCnchen+1+Ma%C3%9F+10+%E2%82%AC", WebbUtils.urlEncode("München 1 Maß 10 €"));
     }
 
+    public void testPercentEncoderMatchesURLEncoder() throws Exception {
+        final Random random = new Random(4711);
+        final char[] samples = {'a', 'Z', '0', ' ', '~', '*', '&', '=', '+', '%', '/', '\u00e9', '\u20ac', '\ud83d', '\ude00', '\u0000'};
+        for (int i = 0; i < 1000; i++) {
+            final StringBuilder value = new StringBuilder();
+            final int length = random.nextInt(12);
+            for (int c = 0; c < length; c++) {
+                value.append(samples[random.nextInt(samples.length)]);
+            }
+            final String expected = URLEncoder.encode(value.toString(), "UTF-8");
+            assertEquals(expected, WebbUtils.urlEncode(value.toString()));
+            assertEquals(expected.length(), PercentEncoder.encodedLength(value, PercentEncoder.FORM));
+        }
+    }
+
+    public void testFormBody() throws Exception {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("m", Arrays.asList("abc", 1, null, "M\u00fcnchen \ud83d\ude00"));
+        map.put("dumb param", Boolean.TRUE);
+        map.put("empty", "");
+
+        final String expected = WebbUtils.queryString(map);
+        assertEquals("m=abc&m=1&m=&m=M%C3%BCnchen+%F0%9F%98%80&dumb+param=true&empty=", expected);
+        assertEquals(expected, new String(PercentEncoder.formBody(map), "US-ASCII"));
+        assertEquals(0, PercentEncoder.formBody(new LinkedHashMap<String, Object>()).length);
+    }
+
+    public void testFormBodyOneShotIterable() throws Exception {
+        final Iterator<Object> values = Arrays.<Object>asList("a b", "\u00e9").iterator();
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("once", new Iterable<Object>() {
+            private boolean iterated = false;
+
+            public Iterator<Object> iterator() {
+                if (iterated) {
+                    throw new IllegalStateException("Can be iterated only once");
+                }
+                iterated = true;
+                return values;
+            }
+        });
+
+        assertEquals("once=a+b&once=%C3%A9", new String(PercentEncoder.formBody(map), "US-ASCII"));
+    }
+
     public void testReadBytes() throws Exception {
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < 1024 * 2 + 100; ++i) {
@@ -71,6 +118,39 @@ public class TestWebbUtils_NoMock extends TestCase {
         assertNull("return null when is=null", WebbUtils.readBytes(null));
     }
 
+    public void testReadBytesExpectedLength() throws Exception {
+        final byte[] input = new byte[100000];
+        for (int i = 0; i < input.length; ++i) {
+            input[i] = (byte) (i * 31);
+        }
+        // Unknown, exact, too short and too long expected lengths
+        final long[] expectedLengths = {-1, input.length, 10, input.length * 2L, 0, WebbUtils.MAX_PRESIZED_LENGTH + 1L};
+        for (long expectedLength : expectedLengths) {
+            assertArrayEquals(input, WebbUtils.readBytes(new TrickleInputStream(input), expectedLength));
+        }
+        assertEquals(0, WebbUtils.readBytes(new ByteArrayInputStream(new byte[0]), 0).length);
+        assertEquals(0, WebbUtils.readBytes(new ByteArrayInputStream(new byte[0]), 100).length);
+
+        // Longer than what is allocated up front
+        final byte[] longInput = new byte[WebbUtils.MAX_PRESIZED_LENGTH * 2 + 123];
+        for (int i = 0; i < longInput.length; ++i) {
+            longInput[i] = (byte) (i * 31);
+        }
+        assertArrayEquals(longInput, WebbUtils.readBytes(new TrickleInputStream(longInput), longInput.length));
+    }
+
+    /** Returns at most 1000 bytes per read, like a network stream would */
+    private static final class TrickleInputStream extends ByteArrayInputStream {
+        TrickleInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1000));
+        }
+    }
+
     public void testAddRequestProperty_valueNull() throws Exception {
         try {
             WebbUtils.addRequestProperty(null, "name1", null);
@@ -136,6 +216,36 @@ public class TestWebbUtils_NoMock extends TestCase {
         assertArrayEquals(payload, gUnzip(gzip));
     }
 
+    public void testBufferPool() throws Exception {
+        final BufferPool pool = new BufferPool(64, 32, 1);
+        final byte[] bytes = pool.takeBytes();
+        assertEquals(64, bytes.length);
+        pool.giveBytes(bytes);
+        assertSame(bytes, pool.takeBytes());
+        assertNotSame(bytes, pool.takeBytes());
+        pool.giveBytes(new byte[10]);
+        assertEquals(64, pool.takeBytes().length);
+
+        final char[] chars = pool.takeChars();
+        assertEquals(32, chars.length);
+        pool.giveChars(chars);
+        assertSame(chars, pool.takeChars());
+
+        // Buffers of the decoder are returned when it is closed
+        byte[] payload = new byte[5000];
+        for (int i = 0; i < payload.length; ++i) {
+            payload[i] = (byte) (0xFF & (i / 100));
+        }
+        for (int i = 0; i < 3; i++) {
+            final InputStream in = WebbUtils.decodeStream("gzip", new ByteArrayInputStream(WebbUtils.gzip(payload, pool)), pool);
+            assertArrayEquals(payload, WebbUtils.readBytes(in));
+            in.close();
+        }
+        final byte[] pooled = pool.takeBytes();
+        pool.giveBytes(pooled);
+        assertSame(pooled, pool.takeBytes());
+    }
+
     static byte[] gUnzip(byte[] gzip) throws Exception {
         ByteArrayInputStream baIs = new ByteArrayInputStream(gzip);
         GZIPInputStream gzipInputStream = new GZIPInputStream(baIs);
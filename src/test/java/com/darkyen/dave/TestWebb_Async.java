@@ -1,6 +1,12 @@
 package com.darkyen.dave;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -60,4 +66,293 @@ public class TestWebb_Async extends AbstractTestWebb {
         assertTrue("Async request took suspiciously long time",afterRequest - beforeRequest < 100);
         assertTrue("Async response took suspiciously short time",afterResponse - beforeRequest > 500);
     }
+
+    public void testVirtualThreadsAsync() throws InterruptedException {
+        if (!ExecutionStrategy.VirtualThreads.isSupported()) {
+            return;
+        }
+
+        final ExecutionStrategy.VirtualThreads virtualStrategy = new ExecutionStrategy.VirtualThreads(10);
+        webb.setExecutionStrategy(virtualStrategy);
+
+        final int requests = 20;
+        final CountDownLatch latch = new CountDownLatch(requests);
+        final AtomicInteger successes = new AtomicInteger();
+
+        final long beforeRequest = System.currentTimeMillis();
+        for (int i = 0; i < requests; i++) {
+            webb.get("/read-timeout").executeString(new ResponseCallback<String>() {
+                public void success(Response<String> response) {
+                    if (response.isSuccess() && "long-running operations result".equals(response.getBody())) {
+                        successes.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+
+                public void failure(WebbException exception) {
+                    latch.countDown();
+                }
+            });
+        }
+        final long afterRequest = System.currentTimeMillis();
+        virtualStrategy.shutdown();
+
+        latch.await();
+        final long afterResponse = System.currentTimeMillis();
+
+        assertEquals(requests, successes.get());
+        // These timings may fail on very slow machine
+        assertTrue("Async request took suspiciously long time", afterRequest - beforeRequest < 100);
+        // 20 requests with concurrency of 10 need at least two rounds of 500ms
+        assertTrue("Concurrency limit was not respected", afterResponse - beforeRequest > 1000);
+    }
+
+    public void testFutureGet() throws Exception {
+        final ExecutionStrategy.Async asyncStrategy = new ExecutionStrategy.Async(2);
+        webb.setExecutionStrategy(asyncStrategy);
+
+        final ResponseFuture<String> first = webb.get("/read-timeout").executeAsyncString();
+        final ResponseFuture<String> second = webb.get("/ping").executeAsyncString();
+
+        assertEquals("pong", second.get().getBody());
+        assertEquals("long-running operations result", first.get().getBody());
+        assertTrue(first.isDone());
+        assertFalse(first.isCancelled());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        first.addCallback(new ResponseCallback<String>() {
+            public void success(Response<String> response) {
+                latch.countDown();
+            }
+
+            public void failure(WebbException exception) {
+                fail("Expected success, got: "+exception);
+            }
+        });
+        assertEquals("Callback of completed future must be called immediately", 0, latch.getCount());
+
+        asyncStrategy.shutdown(true);
+    }
+
+    public void testFutureCancel() throws Exception {
+        final ExecutionStrategy.Async asyncStrategy = new ExecutionStrategy.Async(1);
+        webb.setExecutionStrategy(asyncStrategy);
+
+        final ResponseFuture<String> running = webb.get("/read-timeout").executeAsyncString();
+        final ResponseFuture<String> queued = webb.get("/read-timeout").executeAsyncString();
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        running.addCallback(new ResponseCallback<String>() {
+            public void success(Response<String> response) {
+                fail("Expected cancellation, got: "+response);
+            }
+
+            public void failure(WebbException exception) {
+                assertTrue(exception.getCause() instanceof CancellationException);
+                latch.countDown();
+            }
+        });
+        // Failing callback is reported, not thrown from cancel()
+        queued.addCallback(new ResponseCallback<String>() {
+            public void success(Response<String> response) {
+            }
+
+            public void failure(WebbException exception) {
+                throw new IllegalStateException("Callback failure (expected)");
+            }
+        });
+
+        final long beforeCancel = System.currentTimeMillis();
+        Thread.sleep(100);
+        assertTrue(running.cancel(true));
+        assertTrue(queued.cancel(true));
+        assertTrue(running.isCancelled());
+        assertFalse(running.cancel(true));
+        latch.await();
+
+        try {
+            running.get();
+            fail("Expected CancellationException");
+        } catch (CancellationException expected) {
+            // good
+        }
+
+        // Queued request must not be executed, so the worker gets free quickly
+        assertEquals("pong", webb.get("/ping").executeAsyncString().get().getBody());
+        assertTrue("Cancelled request was not disconnected", System.currentTimeMillis() - beforeCancel < 500);
+
+        asyncStrategy.shutdown(true);
+    }
+
+    public void testBoundedQueueReject() throws Exception {
+        final ExecutionStrategy.Async asyncStrategy = new ExecutionStrategy.Async(1, 1, ExecutionStrategy.Async.OverflowPolicy.REJECT);
+        webb.setExecutionStrategy(asyncStrategy);
+
+        final ResponseFuture<String> running = webb.get("/read-timeout").executeAsyncString();
+        Thread.sleep(100);
+        final ResponseFuture<String> queued = webb.get("/read-timeout").executeAsyncString();
+        assertEquals(1, asyncStrategy.getQueueDepth());
+
+        final ResponseFuture<String> rejected = webb.get("/read-timeout").executeAsyncString();
+        assertTrue("Request over capacity must be rejected immediately", rejected.isDone());
+        try {
+            rejected.get();
+            fail("Expected rejection");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof WebbException);
+        }
+
+        assertEquals("long-running operations result", running.get().getBody());
+        assertEquals("long-running operations result", queued.get().getBody());
+        assertEquals(0, asyncStrategy.getQueueDepth());
+
+        asyncStrategy.shutdown(true);
+    }
+
+    public void testBoundedQueueDropOldest() throws Exception {
+        final ExecutionStrategy.Async asyncStrategy = new ExecutionStrategy.Async(1, 1, ExecutionStrategy.Async.OverflowPolicy.DROP_OLDEST);
+        webb.setExecutionStrategy(asyncStrategy);
+
+        final ResponseFuture<String> running = webb.get("/read-timeout").executeAsyncString();
+        Thread.sleep(100);
+        final ResponseFuture<String> dropped = webb.get("/read-timeout").executeAsyncString();
+        final ResponseFuture<String> queued = webb.get("/ping").executeAsyncString();
+
+        assertTrue("Oldest queued request must be dropped", dropped.isDone());
+        assertEquals("pong", queued.get().getBody());
+        assertEquals("long-running operations result", running.get().getBody());
+
+        asyncStrategy.shutdown(true);
+    }
+
+    public void testPerHostConcurrencyLimit() throws Exception {
+        final ExecutionStrategy.Async asyncStrategy = new ExecutionStrategy.Async(2, Integer.MAX_VALUE, ExecutionStrategy.Async.OverflowPolicy.BLOCK, 1);
+        webb.setExecutionStrategy(asyncStrategy);
+
+        final long start = System.currentTimeMillis();
+        final ResponseFuture<String> slow1 = webb.get("/read-timeout").executeAsyncString();
+        final ResponseFuture<String> slow2 = webb.get("/read-timeout").executeAsyncString();
+        // Same server, but different host
+        final ResponseFuture<String> other = webb.get(uri().replace("localhost", "127.0.0.1") + "/ping").executeAsyncString();
+
+        assertEquals("pong", other.get().getBody());
+        assertTrue("Request to other host should not wait for the slow host", System.currentTimeMillis() - start < 400);
+        assertFalse(slow2.isDone());
+
+        assertEquals("long-running operations result", slow1.get().getBody());
+        assertEquals("long-running operations result", slow2.get().getBody());
+        assertTrue("Requests to the same host must run one after another", System.currentTimeMillis() - start >= 1000);
+
+        asyncStrategy.shutdown(true);
+    }
+
+    public void testRetryDoesNotBlockThread() throws Exception {
+        final ExecutionStrategy.Async asyncStrategy = new ExecutionStrategy.Async(1);
+        webb.setExecutionStrategy(asyncStrategy);
+
+        final long start = System.currentTimeMillis();
+        final ResponseFuture<String> retried = webb.get("/error/503/" + System.currentTimeMillis() + "/1")
+                .retry(1, true)
+                .executeAsyncString();
+        Thread.sleep(100);
+        final ResponseFuture<String> other = webb.get("/ping").executeAsyncString();
+
+        assertEquals("pong", other.get().getBody());
+        assertTrue("Request should not wait for the retry of another request", System.currentTimeMillis() - start < 900);
+        assertFalse(retried.isDone());
+
+        assertEquals("Now it works", retried.get().getBody());
+        assertTrue("Retry should wait for the backoff", System.currentTimeMillis() - start >= 1000);
+
+        asyncStrategy.shutdown(true);
+    }
+
+    public void testNonBlockingRetryThread() throws Exception {
+        webb.setExecutionStrategy(ExecutionStrategy.NON_BLOCKING_EXECUTION_STRATEGY);
+        final String[] thread = new String[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        webb.get("/error/503/" + System.currentTimeMillis() + "/1?retry-after=1").retry(1, false).executeString(new ResponseCallback<String>() {
+            public void success(Response<String> response) {
+                thread[0] = Thread.currentThread().getName();
+                latch.countDown();
+            }
+
+            public void failure(WebbException exception) {
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        // Default transport blocks, so the retry must not be executed by the scheduler
+        assertEquals("Webb - retry", thread[0]);
+    }
+
+    public void testConcurrencyLimiter() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 10, 4, 0.5, 2);
+        final String host = "http://example.com";
+        final long millisecond = 1000000;
+
+        limiter.started(host);
+        limiter.started(host);
+        limiter.started(host);
+        limiter.completed(host, millisecond, false);
+        assertEquals(4, limiter.getLimit(host));
+        assertEquals(1.0, limiter.getRttMillis(host), 0.001);
+        for (int i = 0; i < 4; i++) {
+            limiter.started(host);
+            limiter.completed(host, millisecond, false);
+        }
+        assertEquals("Limit should grow while it is used", 5, limiter.getLimit(host));
+
+        limiter.started(host);
+        limiter.completed(host, 10 * millisecond, false);
+        assertEquals("Slow request should halve the limit", 2, limiter.getLimit(host));
+        limiter.started(host);
+        limiter.completed(host, millisecond, true);
+        assertEquals(1, limiter.getLimit(host));
+
+        // Hosts with few requests at a time keep what was learned about them
+        final String other = "http://other.example.com";
+        assertEquals(4, limiter.getLimit(other));
+        limiter.started(other);
+        limiter.skipped(other);
+        limiter.started(other);
+        limiter.completed(other, millisecond, false);
+        assertEquals(1.0, limiter.getRttMillis(other), 0.001);
+        limiter.started(other);
+        limiter.completed(other, 10 * millisecond, false);
+        assertEquals("Slow request should halve the limit of idle host too", 2, limiter.getLimit(other));
+
+        // Until they are idle for too long
+        limiter.started(host);
+        limiter.forgetIdle(System.nanoTime() + 2 * ConcurrencyLimiter.IDLE_TIMEOUT_NANOS);
+        assertEquals(0.0, limiter.getRttMillis(other), 0.001);
+        assertEquals(4, limiter.getLimit(other));
+        assertTrue("Host with requests in flight is remembered", limiter.getRttMillis(host) > 0);
+    }
+
+    public void testAdaptiveConcurrencyLimit() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 8, 1, 0.5, 100);
+        final ExecutionStrategy.Async asyncStrategy = new ExecutionStrategy.Async(4, Integer.MAX_VALUE,
+                ExecutionStrategy.Async.OverflowPolicy.BLOCK, 4, limiter);
+        webb.setExecutionStrategy(asyncStrategy);
+        assertEquals(1, asyncStrategy.getConcurrencyLimit(uri()));
+
+        final List<ResponseFuture<String>> futures = new ArrayList<ResponseFuture<String>>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(webb.get("/ping").executeAsyncString());
+        }
+        for (ResponseFuture<String> future : futures) {
+            assertEquals("pong", future.get().getBody());
+        }
+        assertTrue("Limit should grow", limiter.getLimit(uri()) > 1);
+        assertEquals(Math.min(4, limiter.getLimit(uri())), asyncStrategy.getConcurrencyLimit(uri()));
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(503, webb.get("/error/503/" + System.currentTimeMillis() + i + "/1").executeAsyncString().get().getStatusCode());
+        }
+        assertEquals("Failures should shrink the limit", 1, asyncStrategy.getConcurrencyLimit(uri()));
+
+        asyncStrategy.shutdown(true);
+    }
 }
@@ -0,0 +1,419 @@
+package com.darkyen.dave;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestWebb_Cache extends AbstractTestWebb {
+
+    private ResponseCache cache;
+    private File directory;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        cache = new ResponseCache(1024 * 1024);
+        webb.setCache(cache);
+        directory = File.createTempFile("webb-cache", "");
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (webb.getDiskCache() != null) {
+            webb.getDiskCache().close();
+        }
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+        super.tearDown();
+    }
+
+    private static String id(String name) {
+        return name + System.nanoTime();
+    }
+
+    public void testCacheHit() throws Exception {
+        final String id = id("hit");
+        final String path = "/cache/" + id + "?cache-control=max-age=60";
+
+        final Response<String> first = webb.get(path).executeString();
+        final Response<String> second = webb.get(path).executeString();
+
+        assertEquals(id + ":1", first.getBody());
+        assertEquals(id + ":1", second.getBody());
+        assertEquals(200, second.getStatusCode());
+        // Date has a precision of seconds, so the age may be one second
+        assertTrue(Integer.parseInt(second.getHeaderField("Age")) <= 1);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getEntryCount());
+        assertEquals((id + ":1").length() * 2, cache.getSize());
+    }
+
+    public void testNotCachedWithoutFreshness() throws Exception {
+        final String id = id("fresh");
+
+        webb.get("/cache/" + id).executeString();
+        final Response<String> response = webb.get("/cache/" + id).executeString();
+
+        assertEquals(id + ":2", response.getBody());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void testResponseNoStore() throws Exception {
+        final String id = id("nostore");
+        final String path = "/cache/" + id + "?cache-control=no-store,max-age=60";
+
+        webb.get(path).executeString();
+        final Response<String> response = webb.get(path).executeString();
+
+        assertEquals(id + ":2", response.getBody());
+        assertEquals(0, cache.getStoreCount());
+    }
+
+    public void testRequestNoCache() throws Exception {
+        final String id = id("nocache");
+        final String path = "/cache/" + id + "?cache-control=max-age=60";
+
+        webb.get(path).executeString();
+        final Response<String> reloaded = webb.get(path).header("Cache-Control", "no-cache").executeString();
+        final Response<String> cached = webb.get(path).executeString();
+
+        assertEquals(id + ":2", reloaded.getBody());
+        assertEquals(id + ":2", cached.getBody());
+    }
+
+    public void testVary() throws Exception {
+        final String id = id("vary");
+        final String path = "/cache/" + id + "?cache-control=max-age=60&vary=X-Variant";
+
+        assertEquals(id + ":1", webb.get(path).header("X-Variant", "a").executeString().getBody());
+        assertEquals(id + ":1", webb.get(path).header("X-Variant", "a").executeString().getBody());
+        assertEquals(id + ":2", webb.get(path).header("X-Variant", "b").executeString().getBody());
+        assertEquals(id + ":3", webb.get(path).executeString().getBody());
+    }
+
+    public void testCredentials() throws Exception {
+        final String id = id("credentials");
+        final String path = "/cache/" + id + "?cache-control=max-age=60";
+
+        assertEquals(id + ":1", webb.get(path).header("Authorization", "Bearer a").executeString().getBody());
+        assertEquals(id + ":2", webb.get(path).header("Authorization", "Bearer b").executeString().getBody());
+        assertEquals(id + ":3", webb.get(path).executeString().getBody());
+        assertEquals(id + ":4", webb.get(path).header("Cookie", "session=a").executeString().getBody());
+        assertEquals(id + ":3", webb.get(path).executeString().getBody());
+
+        final String publicId = id("public");
+        final String publicPath = "/cache/" + publicId + "?cache-control=public,max-age=60";
+        assertEquals(publicId + ":1", webb.get(publicPath).header("Authorization", "Bearer a").executeString().getBody());
+        assertEquals(publicId + ":1", webb.get(publicPath).header("Authorization", "Bearer b").executeString().getBody());
+    }
+
+    public void testTranslatorsHaveOwnEntries() throws Exception {
+        final String id = id("translators");
+        final String path = "/cache/" + id + "?cache-control=max-age=60";
+
+        webb.get(path).executeString();
+        final Response<byte[]> bytes = webb.get(path).executeBytes();
+
+        assertEquals(id + ":2", new String(bytes.getBody(), "UTF-8"));
+        assertEquals(2, cache.getEntryCount());
+    }
+
+    public void testInvalidation() throws Exception {
+        final String id = id("invalidate");
+        final String path = "/cache/" + id + "?cache-control=max-age=60";
+
+        webb.get(path).executeString();
+        assertEquals(204, webb.post("/cache/" + id + "?cache-control=max-age=60").executeString().getStatusCode());
+        final Response<String> response = webb.get(path).executeString();
+
+        assertEquals(id + ":2", response.getBody());
+    }
+
+    public void testEviction() throws Exception {
+        cache = new ResponseCache(25) {
+            @Override
+            protected long sizeOf(Object body, Response<?> response) {
+                return 10;
+            }
+        };
+        webb.setCache(cache);
+        final String a = "/cache/" + id("a") + "?cache-control=max-age=60";
+        final String b = "/cache/" + id("b") + "?cache-control=max-age=60";
+        final String c = "/cache/" + id("c") + "?cache-control=max-age=60";
+
+        webb.get(a).executeString();
+        webb.get(b).executeString();
+        webb.get(a).executeString();
+        webb.get(c).executeString();
+
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(20, cache.getSize());
+        assertTrue(webb.get(a).executeString().getBody().endsWith(":1"));
+        assertTrue(webb.get(b).executeString().getBody().endsWith(":2"));
+    }
+
+    public void testNonBlocking() throws Exception {
+        webb.setExecutionStrategy(ExecutionStrategy.NON_BLOCKING_EXECUTION_STRATEGY);
+        final String id = id("nonblocking");
+        final String path = "/cache/" + id + "?cache-control=max-age=60";
+
+        webb.get(path).executeAsyncString().get();
+        final Response<String> response = webb.get(path).executeAsyncString().get();
+
+        assertEquals(id + ":1", response.getBody());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    public void testDiskCache() throws Exception {
+        webb.setCache(null);
+        final DiskCache diskCache = new DiskCache(directory, 1024 * 1024);
+        webb.setDiskCache(diskCache);
+        final String id = id("disk");
+        final String path = "/cache/" + id + "?cache-control=max-age=60";
+
+        webb.get(path).executeString();
+        final Response<String> string = webb.get(path).executeString();
+        final Response<byte[]> bytes = webb.get(path).executeBytes();
+
+        assertEquals(id + ":1", string.getBody());
+        assertEquals(id + ":1", new String(bytes.getBody(), "UTF-8"));
+        assertEquals("text/plain", string.getContentType());
+        assertEquals(2, diskCache.getHitCount());
+        assertEquals(1, diskCache.getStoreCount());
+        assertEquals(1, diskCache.getEntryCount());
+        assertEquals(new File(directory, Long.toHexString(DiskCache.hash(uri() + path)) + ".entry").length(), diskCache.getSize());
+    }
+
+    public void testDiskCacheCredentials() throws Exception {
+        webb.setCache(null);
+        final DiskCache diskCache = new DiskCache(directory, 1024 * 1024);
+        webb.setDiskCache(diskCache);
+        final String id = id("diskcredentials");
+        final String path = "/cache/" + id + "?cache-control=max-age=60";
+
+        assertEquals(id + ":1", webb.get(path).header("Authorization", "Bearer a").executeString().getBody());
+        assertEquals(0, diskCache.getEntryCount());
+        assertEquals(id + ":2", webb.get(path).executeString().getBody());
+        assertEquals(id + ":3", webb.get(path).header("Cookie", "session=a").executeString().getBody());
+        assertEquals(id + ":2", webb.get(path).executeString().getBody());
+    }
+
+    public void testDiskCacheSurvivesRestart() throws Exception {
+        final String id = id("restart");
+        final String path = "/cache/" + id + "?cache-control=max-age=60";
+        webb.setCache(null);
+        webb.setDiskCache(new DiskCache(directory, 1024 * 1024));
+        webb.get(path).executeString();
+        webb.getDiskCache().close();
+
+        final DiskCache diskCache = new DiskCache(directory, 1024 * 1024);
+        webb.setDiskCache(diskCache);
+        final Response<String> response = webb.get(path).executeString();
+
+        assertEquals(id + ":1", response.getBody());
+        assertEquals(1, diskCache.getHitCount());
+    }
+
+    public void testDiskCacheFillsMemoryCache() throws Exception {
+        final String id = id("layers");
+        final String path = "/cache/" + id + "?cache-control=max-age=60";
+        webb.setDiskCache(new DiskCache(directory, 1024 * 1024));
+        webb.get(path).executeString();
+        cache.clear();
+
+        assertEquals(id + ":1", webb.get(path).executeString().getBody());
+        assertEquals(id + ":1", webb.get(path).executeString().getBody());
+        assertEquals(1, webb.getDiskCache().getHitCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    public void testDiskCacheEviction() throws Exception {
+        webb.setCache(null);
+        webb.setDiskCache(new DiskCache(directory, 1024 * 1024));
+        final String a = "/cache/" + id("a") + "?cache-control=max-age=60";
+        final String b = "/cache/" + id("b") + "?cache-control=max-age=60";
+        webb.get(a).executeString();
+        final long entrySize = webb.getDiskCache().getSize();
+        webb.get(b).executeString();
+        webb.get(a).executeString();
+        webb.getDiskCache().close();
+
+        // Smaller cache keeps only the recently used entry
+        final DiskCache diskCache = new DiskCache(directory, entrySize + entrySize / 2);
+        webb.setDiskCache(diskCache);
+
+        assertEquals(1, diskCache.getEntryCount());
+        assertEquals(1, diskCache.getEvictionCount());
+        assertTrue(webb.get(a).executeString().getBody().endsWith(":1"));
+        assertTrue(webb.get(b).executeString().getBody().endsWith(":2"));
+        assertEquals(1, diskCache.getEntryCount());
+        assertEquals(2, diskCache.getEvictionCount());
+    }
+
+    public void testDiskCacheRecovery() throws Exception {
+        final String id = id("recovery");
+        final String path = "/cache/" + id + "?cache-control=max-age=60";
+        webb.setCache(null);
+        webb.setDiskCache(new DiskCache(directory, 1024 * 1024));
+        webb.get(path).executeString();
+        webb.getDiskCache().close();
+
+        // Leftovers of a crash: incomplete entry, entry which did not make it into the journal, incomplete journal line
+        final File temp = new File(directory, "123.tmp");
+        final File orphan = new File(directory, "abc.entry");
+        write(temp, "incomplete");
+        write(orphan, "orphan");
+        final FileOutputStream journal = new FileOutputStream(new File(directory, "journal"), true);
+        journal.write("PUT abc".getBytes("UTF-8"));
+        journal.close();
+        //noinspection ResultOfMethodCallIgnored
+        new File(directory, "index").delete();
+
+        final DiskCache diskCache = new DiskCache(directory, 1024 * 1024);
+        webb.setDiskCache(diskCache);
+
+        assertFalse(temp.exists());
+        assertFalse(orphan.exists());
+        assertEquals(1, diskCache.getEntryCount());
+        assertEquals(id + ":1", webb.get(path).executeString().getBody());
+    }
+
+    public void testDiskCacheInvalidation() throws Exception {
+        final String id = id("diskinvalidate");
+        final String path = "/cache/" + id + "?cache-control=max-age=60";
+        webb.setCache(null);
+        webb.setDiskCache(new DiskCache(directory, 1024 * 1024));
+
+        webb.get(path).executeString();
+        webb.post(path).executeString();
+
+        assertEquals(0, webb.getDiskCache().getEntryCount());
+        assertEquals(id + ":2", webb.get(path).executeString().getBody());
+    }
+
+    public void testRevalidationWithETag() throws Exception {
+        cache = new ResponseCache(1024 * 1024, true);
+        webb.setCache(cache);
+        final String id = id("etag");
+        final String path = "/cache/" + id + "?etag";
+
+        final Response<String> first = webb.get(path).executeString();
+        final Response<String> second = webb.get(path).executeString();
+
+        assertEquals(id + ":1", first.getBody());
+        assertSame(first.getBody(), second.getBody());
+        assertEquals(200, second.getStatusCode());
+        assertEquals("\"" + id + "\"", second.getHeaderField("ETag"));
+        assertEquals(1, cache.getRevalidationCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    public void testRevalidationWithLastModified() throws Exception {
+        cache = new ResponseCache(1024 * 1024, true);
+        webb.setCache(cache);
+        final String id = id("lastmodified");
+        final String path = "/cache/" + id + "?last-modified&cache-control=no-cache";
+
+        webb.get(path).executeString();
+        final Response<String> response = webb.get(path).executeString();
+
+        assertEquals(id + ":1", response.getBody());
+        assertEquals(1, cache.getRevalidationCount());
+    }
+
+    public void testNoRevalidationByDefault() throws Exception {
+        final String id = id("norevalidate");
+
+        webb.get("/cache/" + id + "?etag").executeString();
+        final Response<String> response = webb.get("/cache/" + id + "?etag").executeString();
+
+        assertEquals(id + ":2", response.getBody());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void testRevalidationNonBlocking() throws Exception {
+        cache = new ResponseCache(1024 * 1024, true);
+        webb.setCache(cache);
+        webb.setExecutionStrategy(ExecutionStrategy.NON_BLOCKING_EXECUTION_STRATEGY);
+        final String id = id("etagnonblocking");
+        final String path = "/cache/" + id + "?etag";
+
+        webb.get(path).executeAsyncString().get();
+        final Response<String> response = webb.get(path).executeAsyncString().get();
+
+        assertEquals(id + ":1", response.getBody());
+        assertEquals(200, response.getStatusCode());
+        assertEquals(1, cache.getRevalidationCount());
+    }
+
+    public void testDiskCacheRevalidation() throws Exception {
+        final String id = id("diskrevalidate");
+        final String path = "/cache/" + id + "?etag";
+        webb.setCache(null);
+        webb.setDiskCache(new DiskCache(directory, 1024 * 1024, true));
+        webb.get(path).executeString();
+        webb.getDiskCache().close();
+
+        final DiskCache diskCache = new DiskCache(directory, 1024 * 1024, true);
+        webb.setDiskCache(diskCache);
+        final Response<String> string = webb.get(path).executeString();
+        final Response<byte[]> bytes = webb.get(path).executeBytes();
+
+        assertEquals(id + ":1", string.getBody());
+        assertEquals(id + ":1", new String(bytes.getBody(), "UTF-8"));
+        assertEquals(200, bytes.getStatusCode());
+        assertEquals(2, diskCache.getRevalidationCount());
+        assertEquals(1, diskCache.getEntryCount());
+    }
+
+    public void testFreshnessLifetime() throws Exception {
+        final long now = 1400000000000L;
+        final String date = WebbUtils.headerValue(new Date(now));
+
+        assertEquals(60000, ResponseCache.freshnessLifetime(response("Cache-Control", "public, max-age=60", "Date", date), now));
+        assertEquals(0, ResponseCache.freshnessLifetime(response("Cache-Control", "no-cache, max-age=60"), now));
+        assertEquals(120000, ResponseCache.freshnessLifetime(response("Date", date, "Expires", WebbUtils.headerValue(new Date(now + 120000))), now));
+        assertEquals(0, ResponseCache.freshnessLifetime(response("Date", date, "Expires", "0"), now));
+        assertEquals(100000, ResponseCache.freshnessLifetime(response("Date", date, "Last-Modified", WebbUtils.headerValue(new Date(now - 1000000))), now));
+        assertEquals(0, ResponseCache.freshnessLifetime(response("Date", date), now));
+    }
+
+    public void testDirective() throws Exception {
+        assertEquals("60", ResponseCache.directive("public, Max-Age=60", "max-age"));
+        assertEquals("", ResponseCache.directive("no-cache", "no-cache"));
+        assertEquals("x", ResponseCache.directive("private=\"x\"", "private"));
+        assertNull(ResponseCache.directive("public", "max-age"));
+        assertNull(ResponseCache.directive(null, "max-age"));
+    }
+
+    private static void write(File file, String content) throws Exception {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private Response<String> response(String... headers) {
+        final Map<String, List<String>> map = new LinkedHashMap<String, List<String>>();
+        for (int i = 0; i < headers.length; i += 2) {
+            map.put(headers[i], Collections.singletonList(headers[i + 1]));
+        }
+        return new Response<String>(webb.get("/"), 200, "OK", "HTTP/1.1 200 OK", map);
+    }
+}
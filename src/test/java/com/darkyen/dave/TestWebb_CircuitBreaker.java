@@ -0,0 +1,157 @@
+package com.darkyen.dave;
+
+import java.util.concurrent.ExecutionException;
+
+public class TestWebb_CircuitBreaker extends AbstractTestWebb {
+
+    private static int sequence = 0;
+
+    /** @return path which answers 503 to the first requests */
+    private static String failing(int failures) {
+        return "/error/503/" + System.currentTimeMillis() + "" + sequence++ + "/" + failures;
+    }
+
+    public void testOpens() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(4, 2, 0.5, 60000, 1);
+        webb.setCircuitBreaker(circuitBreaker);
+        final String path = failing(100);
+
+        assertEquals(503, webb.get(path).executeString().getStatusCode());
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(uri()));
+        assertEquals(503, webb.get(path).executeString().getStatusCode());
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(uri()));
+
+        final long start = System.currentTimeMillis();
+        try {
+            webb.get("/ping").retry(3, true).executeString();
+            fail("expected CircuitOpenException");
+        } catch (CircuitOpenException expected) {
+            assertEquals(uri(), expected.getHost());
+            assertTrue(expected.getRemainingMillis() > 0);
+        }
+        assertTrue("Open circuit should fail fast", System.currentTimeMillis() - start < 500);
+
+        // Credentials are not part of the host
+        try {
+            webb.get(uri().replace("://", "://user:secret@") + "/ping").executeString();
+            fail("expected CircuitOpenException");
+        } catch (CircuitOpenException expected) {
+            assertEquals(uri(), expected.getHost());
+            assertFalse(expected.getMessage().contains("secret"));
+        }
+
+        // Same server, but different host
+        assertEquals("pong", webb.get(uri().replace("localhost", "127.0.0.1") + "/ping").executeString().getBody());
+    }
+
+    public void testStaysClosedUnderThreshold() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(4, 4, 0.5, 60000, 1);
+        webb.setCircuitBreaker(circuitBreaker);
+
+        webb.get(failing(1)).executeString();
+        webb.get("/ping").executeString();
+        webb.get("/ping").executeString();
+        webb.get("/ping").executeString();
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(uri()));
+        assertEquals(0.25, circuitBreaker.getFailureRate(uri()), 0.001);
+    }
+
+    public void testCountsSuccessesBeforeFailures() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(4, 1, 0.5, 60000, 1);
+        webb.setCircuitBreaker(circuitBreaker);
+
+        webb.get("/ping").executeString();
+        webb.get("/ping").executeString();
+        webb.get("/ping").executeString();
+        webb.get(failing(1)).executeString();
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(uri()));
+        assertEquals(0.25, circuitBreaker.getFailureRate(uri()), 0.001);
+    }
+
+    public void testOnlyProbesCount() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(1, 1, 1, 0, 1);
+        final String host = "http://example.com";
+
+        final int regular = circuitBreaker.acquire(host);
+        assertEquals(0, regular);
+        circuitBreaker.record(host, circuitBreaker.acquire(host), true);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(host));
+
+        // Sent before the circuit opened
+        circuitBreaker.record(host, regular, false);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(host));
+
+        // Cancelled probe frees its slot, but does not close the circuit
+        circuitBreaker.cancel(host, circuitBreaker.acquire(host));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(host));
+
+        final int probe = circuitBreaker.acquire(host);
+        try {
+            circuitBreaker.acquire(host);
+            fail("expected CircuitOpenException");
+        } catch (CircuitOpenException expected) {
+            assertEquals(0, expected.getRemainingMillis());
+        }
+        circuitBreaker.record(host, probe, false);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(host));
+    }
+
+    public void testConnectionFailures() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(2, 1, 1, 60000, 1);
+        webb.setCircuitBreaker(circuitBreaker);
+
+        try {
+            webb.get("http://localhost:1/ping").executeString();
+            fail("expected WebbException");
+        } catch (WebbException expected) {
+            assertFalse(expected instanceof CircuitOpenException);
+        }
+        try {
+            webb.get("http://localhost:1/ping").executeString();
+            fail("expected CircuitOpenException");
+        } catch (CircuitOpenException expected) {
+            // good!
+        }
+    }
+
+    public void testHalfOpenProbeCloses() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(1, 1, 1, 200, 1);
+        webb.setCircuitBreaker(circuitBreaker);
+        webb.get(failing(1)).executeString();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(uri()));
+
+        Thread.sleep(250);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(uri()));
+        assertEquals("pong", webb.get("/ping").executeString().getBody());
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(uri()));
+    }
+
+    public void testHalfOpenProbeFails() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(1, 1, 1, 200, 1);
+        webb.setCircuitBreaker(circuitBreaker);
+        final String path = failing(2);
+        webb.get(path).executeString();
+
+        Thread.sleep(250);
+        assertEquals(503, webb.get(path).executeString().getStatusCode());
+
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(uri()));
+    }
+
+    public void testNonBlocking() throws Exception {
+        webb.setExecutionStrategy(ExecutionStrategy.NON_BLOCKING_EXECUTION_STRATEGY);
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(1, 1, 1, 60000, 1);
+        webb.setCircuitBreaker(circuitBreaker);
+
+        assertEquals(503, webb.get(failing(1)).executeAsyncString().get().getStatusCode());
+        try {
+            webb.get("/ping").executeAsyncString().get();
+            fail("expected CircuitOpenException");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof CircuitOpenException);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.darkyen.dave;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+public class TestWebb_Download extends AbstractTestWebb {
+
+    /** Length of the content of /download */
+    private static final int LENGTH = 3 * 1024 * 1024 + 17;
+
+    private File target;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        target = File.createTempFile("webb-download", ".bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        //noinspection ResultOfMethodCallIgnored
+        target.delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(target.getPath() + ".part").delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(target.getPath() + ".part.checkpoint").delete();
+        super.tearDown();
+    }
+
+    public void testSegmented() throws Exception {
+        final ExecutionStrategy.Async strategy = new ExecutionStrategy.Async(4);
+        webb.setExecutionStrategy(strategy);
+        try {
+            final Response<File> response = new SegmentedDownload(webb.get("/download"), target)
+                    .segments(4)
+                    .minSegmentSize(256 * 1024)
+                    .execute();
+
+            assertEquals(206, response.getStatusCode());
+            assertEquals(target, response.getBody());
+            assertDownloaded(target);
+        } finally {
+            strategy.shutdown(false);
+        }
+    }
+
+    public void testSegmentedSynchronously() throws Exception {
+        final Response<File> response = webb.get("/download").executeSegmented(target, 3);
+
+        assertEquals(206, response.getStatusCode());
+        assertDownloaded(target);
+    }
+
+    public void testSegmentedWithoutRangeSupport() throws Exception {
+        final Response<File> response = webb.get("/download?norange").executeSegmented(target, 4);
+
+        assertEquals(200, response.getStatusCode());
+        assertDownloaded(target);
+    }
+
+    public void testSegmentedWithoutValidator() throws Exception {
+        // Change of the resource between segments could not be detected, so it is downloaded whole
+        final Response<File> response = webb.get("/download?novalidator").executeSegmented(target, 4);
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(target, response.getBody());
+        assertDownloaded(target);
+    }
+
+    public void testSegmentedFailure() throws Exception {
+        final Response<File> response = webb.get("/error/404").executeSegmented(target, 4);
+
+        assertEquals(404, response.getStatusCode());
+        assertNull(response.getBody());
+        assertEquals(0, target.length());
+    }
+
+    public void testSegmentedEnsureSuccess() throws Exception {
+        final Response<File> response = webb.get("/download?empty").ensureSuccess().executeSegmented(target, 4);
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(0, target.length());
+
+        try {
+            webb.get("/error/404").ensureSuccess().executeSegmented(target, 4);
+            fail("expected WebbException");
+        } catch (WebbException expected) {
+            assertEquals(404, expected.getResponse().getStatusCode());
+        }
+    }
+
+    public void testResumable() throws Exception {
+        final ResumableDownload download = new ResumableDownload(webb.get("/download"), target).checkpointInterval(1024 * 1024);
+        final Response<File> response = download.execute();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(target, response.getBody());
+        assertDownloaded(target);
+        assertFalse(download.getPartFile().exists());
+        assertFalse(download.getCheckpointFile().exists());
+    }
+
+    public void testResumableContinues() throws Exception {
+        final ResumableDownload download = new ResumableDownload(webb.get("/download"), target);
+        final byte[] part = new byte[100000];
+        for (int i = 0; i < part.length; i++) {
+            part[i] = (byte) ((i * 7) % 251);
+        }
+        writePart(download, part);
+        download.writeCheckpoint("\"download-1\"", LENGTH, part.length);
+
+        final Response<File> response = download.execute();
+
+        assertEquals(206, response.getStatusCode());
+        assertDownloaded(target);
+        assertFalse(download.getCheckpointFile().exists());
+    }
+
+    public void testResumableRestartsWhenChanged() throws Exception {
+        final ResumableDownload download = new ResumableDownload(webb.get("/download"), target);
+        writePart(download, new byte[100000]);
+        download.writeCheckpoint("\"download-0\"", LENGTH, 100000);
+
+        final Response<File> response = download.execute();
+
+        assertEquals(200, response.getStatusCode());
+        assertDownloaded(target);
+    }
+
+    public void testResumableFailure() throws Exception {
+        final Response<File> response = webb.get("/error/404").executeResumable(target);
+
+        assertEquals(404, response.getStatusCode());
+        assertNull(response.getBody());
+        assertEquals(0, target.length());
+    }
+
+    public void testResumableOwnRetries() throws Exception {
+        final Request request = webb.get("/error/503/" + System.currentTimeMillis() + "/1").retry(1, false);
+        final Response<File> response = new ResumableDownload(request, target).retries(0).execute();
+
+        assertEquals("Only retries() of the download should retry", 503, response.getStatusCode());
+    }
+
+    public void testResumableRetryBudget() throws Exception {
+        final RetryBudget budget = new RetryBudget(1, 0, 10);
+        webb.setRetryManager(new RetryManager(RetryManager.Jitter.NONE, budget));
+        final Request request = webb.get("/error/503/" + System.currentTimeMillis() + "/1");
+        final Response<File> response = new ResumableDownload(request, target).retries(1).execute();
+
+        assertEquals("Retry should be denied by the budget", 503, response.getStatusCode());
+        assertEquals(1, budget.getDeniedCount());
+    }
+
+    public void testResumableCompleteEnsureSuccess() throws Exception {
+        final ResumableDownload download = new ResumableDownload(webb.get("/download").ensureSuccess(), target);
+        final byte[] content = new byte[LENGTH];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ((i * 7) % 251);
+        }
+        writePart(download, content);
+        download.writeCheckpoint("\"download-1\"", LENGTH, LENGTH);
+
+        final Response<File> response = download.execute();
+
+        assertEquals(206, response.getStatusCode());
+        assertTrue(response.isSuccess());
+        assertEquals(target, response.getBody());
+        assertDownloaded(target);
+    }
+
+    public void testParseContentRange() throws Exception {
+        final long[] range = SegmentedDownload.parseContentRange("bytes 10-19/100");
+        assertEquals(10, range[0]);
+        assertEquals(19, range[1]);
+        assertEquals(100, range[2]);
+        assertEquals(-1, SegmentedDownload.parseContentRange("bytes 10-19/*")[2]);
+        assertNull(SegmentedDownload.parseContentRange("bytes */100"));
+        assertNull(SegmentedDownload.parseContentRange("bytes 10-200/100"));
+        assertNull(SegmentedDownload.parseContentRange("items 1-2/3"));
+    }
+
+    private static void writePart(ResumableDownload download, byte[] part) throws Exception {
+        final FileOutputStream out = new FileOutputStream(download.getPartFile());
+        try {
+            out.write(part);
+        } finally {
+            out.close();
+        }
+    }
+
+    static void assertDownloaded(File file) throws Exception {
+        assertEquals(LENGTH, file.length());
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final byte[] content = WebbUtils.readBytes(in);
+            for (int i = 0; i < LENGTH; i++) {
+                if (content[i] != (byte) ((i * 7) % 251)) {
+                    fail("Content differs at " + i);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.darkyen.dave;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestWebb_Nio extends AbstractTestWebb {
+
+    private NioTransport transport;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        transport = new NioTransport();
+        webb.setTransport(transport);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        transport.shutdown();
+        super.tearDown();
+    }
+
+    public void testSimpleGet() throws Exception {
+        final Response<String> response = webb.get("/ping").executeString();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals("pong", response.getBody());
+        assertEquals("HTTP/1.1 200 OK", response.getStatusLine());
+        assertEquals(HTTP_MESSAGE_OK, response.getStatusMessage());
+        assertTrue(response.getContentType().startsWith(WebbConst.MIME_TEXT_PLAIN));
+    }
+
+    public void testPostBody() throws Exception {
+        final Response<String> response = webb.post("/echoText").body(COMPLEX_UTF8).executeString();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(COMPLEX_UTF8, response.getBody());
+    }
+
+    public void testStreamedBody() throws Exception {
+        final byte[] payload = new byte[300 * 1024 + 7];
+        new Random().nextBytes(payload);
+
+        final Response<byte[]> response = webb.post("/echoBin")
+                .body(streamOf(payload), WebbConst.MIME_BINARY)
+                .executeBytes();
+
+        assertEquals(200, response.getStatusCode());
+        assertArrayEquals(payload, response.getBody());
+    }
+
+    /** @return provider of the payload, of unknown size, so that it is sent chunked */
+    private static BodyStreamProvider<ByteArrayInputStream> streamOf(final byte[] payload) {
+        return new BodyStreamProvider<ByteArrayInputStream>() {
+            public ByteArrayInputStream createStream() throws Exception {
+                return new ByteArrayInputStream(payload);
+            }
+
+            public long payloadSize(ByteArrayInputStream forStream) {
+                // Unknown, sent chunked
+                return -1;
+            }
+
+            public void destroyStream(ByteArrayInputStream usedStream) {
+            }
+        };
+    }
+
+    public void testFileBody() throws Exception {
+        final byte[] payload = new byte[3 * 1024 * 1024 + 7];
+        new Random().nextBytes(payload);
+        final File file = File.createTempFile("webb-nio", ".bin");
+        try {
+            final FileOutputStream out = new FileOutputStream(file);
+            out.write(payload);
+            out.close();
+
+            for (int i = 0; i < 2; i++) {
+                final Response<byte[]> response = webb.post("/echoBin").body(file).executeBytes();
+                assertEquals(200, response.getStatusCode());
+                assertArrayEquals(payload, response.getBody());
+            }
+
+            // Compressed body is not sent straight from the file
+            final Response<byte[]> response = webb.post("/echoBin").body(file).compress().executeBytes();
+            assertArrayEquals(payload, response.getBody());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    public void testChunkedCompressedResponse() throws Exception {
+        final Response<String> response = webb.get("/compressed.json")
+                .header(WebbConst.HDR_ACCEPT_ENCODING, "gzip")
+                .executeString();
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue(response.getBody().startsWith("[\"" + SIMPLE_ASCII + "\""));
+    }
+
+    public void testRedirect() throws Exception {
+        assertEquals("redirected to target", webb.get("/redirect/301").executeString().getBody());
+
+        final Response<String> response = webb.get("/redirect/301").followRedirects(false).executeString();
+        assertEquals(301, response.getStatusCode());
+        assertTrue(response.getHeaderField("Location").endsWith("/redirect/target"));
+    }
+
+    public void testReadTimeout() throws Exception {
+        try {
+            webb.get("/read-timeout").readTimeout(100).executeString();
+            fail("Expected timeout");
+        } catch (WebbException e) {
+            assertEquals(SocketTimeoutException.class, e.getCause().getClass());
+        }
+    }
+
+    public void testNonBlocking() throws Exception {
+        webb.setExecutionStrategy(ExecutionStrategy.NON_BLOCKING_EXECUTION_STRATEGY);
+
+        final long start = System.currentTimeMillis();
+        @SuppressWarnings("unchecked")
+        final ResponseFuture<String>[] futures = new ResponseFuture[50];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = webb.get("/read-timeout").executeAsyncString();
+        }
+        for (ResponseFuture<String> future : futures) {
+            assertEquals("long-running operations result", future.get().getBody());
+        }
+        // Server delivers after 500 millis, but all requests run in parallel on a single thread
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        final ResponseFuture<String> failing = webb.get("/error/500/with-content").ensureSuccess().executeAsyncString();
+        try {
+            failing.get();
+            fail("Expected failure");
+        } catch (ExecutionException e) {
+            assertEquals(500, ((WebbException) e.getCause()).getResponse().getStatusCode());
+        }
+    }
+
+    public void testNonBlockingFromLoop() throws Exception {
+        webb.setExecutionStrategy(ExecutionStrategy.NON_BLOCKING_EXECUTION_STRATEGY);
+        final byte[] payload = new byte[300 * 1024 + 7];
+        new Random().nextBytes(payload);
+
+        // Callback runs on the loop, which must not resolve the name or write the streamed body itself
+        final AtomicReference<ResponseFuture<byte[]>> nested = new AtomicReference<ResponseFuture<byte[]>>();
+        final CountDownLatch started = new CountDownLatch(1);
+        webb.get("/ping").executeAsyncString().addCallback(new ResponseCallback<String>() {
+            public void success(Response<String> response) {
+                nested.set(webb.post("/echoBin").body(streamOf(payload), WebbConst.MIME_BINARY).executeAsyncBytes());
+                started.countDown();
+            }
+
+            public void failure(WebbException exception) {
+                started.countDown();
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertNotNull(nested.get());
+        assertArrayEquals(payload, nested.get().get(10, TimeUnit.SECONDS).getBody());
+
+        // Redirect is followed by the loop
+        assertEquals("redirected to target", webb.get("/redirect/301").executeAsyncString().get(10, TimeUnit.SECONDS).getBody());
+    }
+
+    public void testConnectionReuse() throws Exception {
+        final ConnectionPool pool = new ConnectionPool();
+        webb.setConnectionPool(pool);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("pong", webb.get("/ping").executeString().getBody());
+        }
+        assertEquals(1, pool.getMisses());
+        assertEquals(4, pool.getHits());
+        assertEquals(1, pool.getIdleCount());
+
+        // Body of the redirect is not read, so its connection is not reused
+        assertEquals("redirected to target", webb.get("/redirect/301").executeString().getBody());
+        assertEquals(1, pool.getTotalCount());
+
+        pool.shutdown();
+        assertEquals(0, pool.getTotalCount());
+    }
+
+    public void testStreamReleasesConnection() throws Exception {
+        final ConnectionPool pool = new ConnectionPool();
+        webb.setConnectionPool(pool);
+
+        for (int i = 0; i < 3; i++) {
+            final Response<InputStream> response = webb.get("/ping").executeStream();
+            assertEquals("pong", new String(WebbUtils.readBytes(response.getBody()), WebbConst.UTF8));
+            response.close();
+            assertEquals(1, pool.getIdleCount());
+        }
+        assertEquals(2, pool.getHits());
+
+        // Body not read completely
+        final Response<InputStream> response = webb.post("/echoBin").body(new byte[4 * 1024 * 1024], null).executeStream();
+        assertEquals(0, response.getBody().read());
+        response.close();
+        // Connection is reused if its body arrived whole, closed otherwise, on the loop thread
+        for (int i = 0; i < 100 && pool.getTotalCount() != pool.getIdleCount(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(pool.getIdleCount(), pool.getTotalCount());
+        pool.shutdown();
+    }
+
+    public void testIdleEviction() throws Exception {
+        final ConnectionPool pool = new ConnectionPool(4, 4, 200);
+        webb.setConnectionPool(pool);
+
+        assertEquals("pong", webb.get("/ping").executeString().getBody());
+        assertEquals(1, pool.getIdleCount());
+        Thread.sleep(600);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(1, pool.getEvictions());
+
+        assertEquals("pong", webb.get("/ping").executeString().getBody());
+        assertEquals(2, pool.getMisses());
+    }
+
+    public void testConnectionLimit() throws Exception {
+        final ConnectionPool pool = new ConnectionPool(2, 2, 60000);
+        webb.setConnectionPool(pool);
+        webb.setExecutionStrategy(ExecutionStrategy.NON_BLOCKING_EXECUTION_STRATEGY);
+
+        @SuppressWarnings("unchecked")
+        final ResponseFuture<String>[] futures = new ResponseFuture[6];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = webb.get("/ping").executeAsyncString();
+        }
+        for (ResponseFuture<String> future : futures) {
+            assertEquals("pong", future.get().getBody());
+        }
+        assertEquals(2, pool.getMisses());
+        assertEquals(4, pool.getHits());
+        pool.shutdown();
+    }
+
+    public void testLeaseTimeout() throws Exception {
+        final ConnectionPool pool = new ConnectionPool(1, 1, 60000);
+        webb.setConnectionPool(pool);
+
+        // Big body is not received whole, so its connection is not released until it is closed
+        final Response<InputStream> held = webb.post("/echoBin").body(new byte[4 * 1024 * 1024], null).executeStream();
+        final long start = System.currentTimeMillis();
+        try {
+            webb.get("/ping").connectTimeout(300).executeString();
+            fail("expected WebbException");
+        } catch (WebbException expected) {
+            assertTrue(expected.getCause() instanceof SocketTimeoutException);
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        held.close();
+        assertEquals("pong", webb.get("/ping").connectTimeout(300).executeString().getBody());
+        pool.shutdown();
+    }
+
+    public void testHeaderInjection() throws Exception {
+        try {
+            webb.get("/ping").header("X-Test", "a\r\nX-Injected: b").executeString();
+            fail("expected WebbException");
+        } catch (WebbException expected) {
+            assertTrue(expected.getCause() instanceof IllegalArgumentException);
+        }
+        try {
+            webb.get("/ping").header("X-Test: a\r\nX-Injected", "b").executeString();
+            fail("expected WebbException");
+        } catch (WebbException expected) {
+            assertTrue(expected.getCause() instanceof IllegalArgumentException);
+        }
+        assertEquals("pong", webb.get("/ping").header("X-Test", "a, b; c=\"d\"").executeString().getBody());
+    }
+
+    public void testParser() throws Exception {
+        final String response = "HTTP/1.1 200 OK\r\n" +
+                "Transfer-Encoding: chunked\r\n" +
+                "X-Test: a\r\n" +
+                "X-Test: b\r\n" +
+                "\r\n" +
+                "5;ext=1\r\nHello\r\n" +
+                "7\r\n, world\r\n" +
+                "0\r\n" +
+                "Trailer: ignored\r\n" +
+                "\r\n";
+        final byte[] bytes = response.getBytes(WebbConst.UTF8);
+
+        // Feed it byte by byte, to exercise all states
+        final HttpResponseParser parser = new HttpResponseParser(false);
+        final StringBuilder body = new StringBuilder();
+        final HttpResponseParser.BodySink sink = new HttpResponseParser.BodySink() {
+            public void body(ByteBuffer data) {
+                while (data.hasRemaining()) {
+                    body.append((char) data.get());
+                }
+            }
+        };
+        boolean done = false;
+        for (int i = 0; i < bytes.length; i++) {
+            assertFalse(done);
+            done = parser.parse(ByteBuffer.wrap(bytes, i, 1), sink);
+        }
+
+        assertTrue(done);
+        assertEquals(200, parser.getStatusCode());
+        assertEquals("OK", parser.getStatusMessage());
+        assertEquals(2, parser.getHeaders().get("X-Test").size());
+        assertEquals("Hello, world", body.toString());
+        assertTrue(parser.isKeepAlive());
+    }
+}
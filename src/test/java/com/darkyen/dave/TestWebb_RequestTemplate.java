@@ -0,0 +1,75 @@
+package com.darkyen.dave;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+public class TestWebb_RequestTemplate extends AbstractTestWebb {
+
+    public void testUriEncoding() throws Exception {
+        final RequestTemplate template = webb.template(HttpMethod.GET, "/users/{user}/posts?q={query}")
+                .query("page", 2);
+
+        assertEquals(2, template.getVariables().size());
+        assertEquals("user", template.getVariables().get(0));
+
+        final Request request = template.bind("a b/c", "x & y");
+        assertEquals(uri() + "/users/a%20b%2Fc/posts?q=x+%26+y&page=2", request.getUri());
+        assertEquals(HttpMethod.GET, request.method);
+
+        final Map<String, Object> values = new HashMap<String, Object>();
+        values.put("query", "€");
+        values.put("user", 4711);
+        assertEquals(uri() + "/users/4711/posts?q=%E2%82%AC&page=2", template.bind(values).getUri());
+
+        try {
+            template.bind("only one");
+            fail("Expected failure");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    public void testTemplateIsImmutable() throws Exception {
+        final RequestTemplate template = webb.template(HttpMethod.GET, "/simple.txt");
+        final RequestTemplate withQuery = template.query("p1", SIMPLE_ASCII);
+
+        assertEquals(uri() + "/simple.txt", template.bind().getUri());
+        assertEquals(uri() + "/simple.txt?p1=" + WebbUtils.urlEncode(SIMPLE_ASCII), withQuery.bind().getUri());
+    }
+
+    public void testQueryBeforeFragment() throws Exception {
+        assertEquals(uri() + "/simple.txt?p1=a#top", webb.template(HttpMethod.GET, "/simple.txt#top").query("p1", "a").bind().getUri());
+
+        final RequestTemplate template = webb.template(HttpMethod.GET, "/{file}?p1={p1}#{section}").query("p2", "b");
+        assertEquals(uri() + "/simple.txt?p1=a&p2=b#top", template.bind("simple.txt", "a", "top").getUri());
+    }
+
+    public void testSimpleGet() throws Exception {
+        final RequestTemplate template = webb.template(HttpMethod.GET, "/{file}?p1={p1}")
+                .query("p2", COMPLEX_UTF8);
+
+        for (int i = 0; i < 3; i++) {
+            final Response<String> response = template.bind("simple.txt", SIMPLE_ASCII).executeString();
+            assertEquals(200, response.getStatusCode());
+            assertEquals(SIMPLE_ASCII + ", " + COMPLEX_UTF8, response.getBody());
+        }
+    }
+
+    public void testHeaders() throws Exception {
+        final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        cal.clear();
+        cal.set(2013, Calendar.NOVEMBER, 24, 23, 59, 33);
+
+        webb.setDefaultHeader("x-test-string", SIMPLE_ASCII);
+        final RequestTemplate template = webb.template(HttpMethod.GET, "/headers/in")
+                .header("x-test-int", 4711)
+                .header("x-test-calendar", cal);
+        // Not part of the template
+        webb.setDefaultHeader("x-test-string", "changed");
+
+        assertEquals(SIMPLE_ASCII, template.getHeaders().get("x-test-string"));
+        assertEquals(200, template.bind().header("x-test-date", cal.getTime()).execute().getStatusCode());
+        assertEquals(403, template.bind().execute().getStatusCode());
+    }
+}
@@ -1,7 +1,21 @@
 package com.darkyen.dave;
 
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 public class TestWebb_Retry extends AbstractTestWebb {
 
+    private static int sequence = 0;
+
+    /** @return unique name of a counter of /error/503, the server forgets those which look older than an hour */
+    private static String counter() {
+        return System.currentTimeMillis() + "" + sequence++;
+    }
+
     public void testRetryCount() throws Exception {
         long start = System.currentTimeMillis();
         String successAnswer = webb
@@ -34,4 +48,134 @@ public class TestWebb_Retry extends AbstractTestWebb {
         }
     }
 
+    public void testJitter() throws Exception {
+        final RetryManager full = new RetryManager(RetryManager.Jitter.FULL, null);
+        final RetryManager spread = new RetryManager(RetryManager.Jitter.SPREAD, null);
+        for (int retry = 0; retry < 20; retry++) {
+            final long delay = full.getDelayMillis(retry);
+            assertTrue(delay >= 0 && delay <= new RetryManager().getDelayMillis(retry));
+            final long spreadDelay = spread.getDelayMillis(retry);
+            assertTrue(spreadDelay >= 1000 && spreadDelay <= Math.min(120000, 3 * new RetryManager().getDelayMillis(Math.max(0, retry - 1))));
+        }
+    }
+
+    public void testRetryBudget() throws Exception {
+        final RetryBudget budget = new RetryBudget(0.5, 0, 10);
+
+        assertFalse(budget.tryRetry());
+        budget.recordSuccess();
+        budget.recordSuccess();
+        assertTrue(budget.tryRetry());
+        assertFalse(budget.tryRetry());
+        assertEquals(1, budget.getAllowedCount());
+        assertEquals(2, budget.getDeniedCount());
+    }
+
+    public void testRetryDeniedByBudget() throws Exception {
+        final RetryBudget budget = new RetryBudget(1, 0, 10);
+        webb.setRetryManager(new RetryManager(RetryManager.Jitter.FULL, budget));
+
+        final Response<String> denied = webb.get("/error/503/" + counter() + "/1").retry(1, false).executeString();
+        assertEquals(503, denied.getStatusCode());
+        assertEquals(1, budget.getDeniedCount());
+
+        assertEquals("pong", webb.get("/ping").executeString().getBody());
+        final Response<String> retried = webb.get("/error/503/" + counter() + "/1").retry(1, false).executeString();
+        assertEquals("Now it works", retried.getBody());
+        assertEquals(1, budget.getAllowedCount());
+    }
+
+    public void testRetryAfterSeconds() throws Exception {
+        final long start = System.currentTimeMillis();
+        final Response<String> response = webb.get("/error/503/" + counter() + "/1?retry-after=1")
+                .retry(1, false)
+                .executeString();
+
+        assertEquals("Now it works", response.getBody());
+        assertTrue("Retry should wait for Retry-After", System.currentTimeMillis() - start >= 1000);
+    }
+
+    public void testRetryAfterDate() throws Exception {
+        final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        headers.put("Date", Collections.singletonList("Tue, 24 Dec 2013 23:59:30 GMT"));
+        headers.put("Retry-After", Collections.singletonList("Tue, 24 Dec 2013 23:59:45 GMT"));
+        final Response<String> response = new Response<String>(webb.get("/"), 503, "Service Unavailable", "HTTP/1.1 503 Service Unavailable", headers);
+
+        assertEquals(15000, new RetryManager().getRetryAfterMillis(response));
+        assertEquals(15000, new RetryManager().getDelayMillis(3, response));
+    }
+
+    public void testRetryAfterTooLong() throws Exception {
+        final long start = System.currentTimeMillis();
+        final Response<String> response = webb.get("/error/503/" + counter() + "/1?retry-after=3600")
+                .retry(1, true)
+                .executeString();
+
+        assertEquals(503, response.getStatusCode());
+        assertTrue("Request should not be retried", System.currentTimeMillis() - start < 1000);
+    }
+
+    public void testTooManyRequests() throws Exception {
+        final String query = "/1?status=429&retry-after=0";
+        assertEquals(429, webb.get("/error/503/" + counter() + query).retry(1, false).executeString().getStatusCode());
+
+        webb.setRetryManager(new RetryManager(RetryManager.Jitter.NONE, null, true));
+        assertEquals("Now it works", webb.get("/error/503/" + counter() + query).retry(1, false).executeString().getBody());
+    }
+
+    public void testOverriddenWait() throws Exception {
+        final int[] waits = new int[1];
+        webb.setRetryManager(new RetryManager() {
+            @Override
+            public void wait(int retry) {
+                waits[0]++;
+            }
+        });
+
+        final long start = System.currentTimeMillis();
+        assertEquals("Now it works", webb.get("/error/503/" + counter() + "/1").retry(1, true).executeString().getBody());
+        assertEquals(1, waits[0]);
+        assertTrue("Overridden wait should not sleep", System.currentTimeMillis() - start < 1000);
+    }
+
+    public void testRetryAfterNonBlocking() throws Exception {
+        webb.setExecutionStrategy(ExecutionStrategy.NON_BLOCKING_EXECUTION_STRATEGY);
+        final long start = System.currentTimeMillis();
+        final Response<String> response = webb.get("/error/503/" + counter() + "/1?retry-after=1")
+                .retry(1, false)
+                .executeAsyncString()
+                .get();
+
+        assertEquals("Now it works", response.getBody());
+        assertTrue("Retry should wait for Retry-After", System.currentTimeMillis() - start >= 1000);
+    }
+
+    public void testStreamedBodyRetryNonBlocking() throws Exception {
+        final NioTransport transport = new NioTransport();
+        webb.setTransport(transport);
+        webb.setExecutionStrategy(ExecutionStrategy.NON_BLOCKING_EXECUTION_STRATEGY);
+        try {
+            // Retry without delay must not be executed on the loop, which would wait for itself to send the body
+            final Response<String> response = webb.post("/error/503/" + counter() + "/1")
+                    .body(new BodyStreamProvider<ByteArrayInputStream>() {
+                        public ByteArrayInputStream createStream() throws Exception {
+                            return new ByteArrayInputStream(SIMPLE_ASCII.getBytes("UTF-8"));
+                        }
+
+                        public long payloadSize(ByteArrayInputStream forStream) {
+                            return -1;
+                        }
+
+                        public void destroyStream(ByteArrayInputStream usedStream) {
+                        }
+                    }, WebbConst.MIME_TEXT_PLAIN)
+                    .retry(1, false)
+                    .executeAsyncString()
+                    .get(10, TimeUnit.SECONDS);
+
+            assertEquals("Now it works", response.getBody());
+        } finally {
+            transport.shutdown();
+        }
+    }
 }
@@ -0,0 +1,98 @@
+package com.darkyen.dave;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestWebb_Transport extends TestCase {
+
+    /** Transport which answers everything from memory and remembers the last request */
+    private static final class EchoTransport implements Transport {
+        TransportRequest lastRequest;
+        byte[] lastBody;
+
+        public Exchange open(final TransportRequest request) throws Exception {
+            lastRequest = request;
+            return new Exchange() {
+                public void execute() throws Exception {
+                    if (request.getBody() != null) {
+                        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        request.getBody().writeTo(out);
+                        lastBody = out.toByteArray();
+                    }
+                }
+
+                public int getStatusCode() {
+                    return 200;
+                }
+
+                public String getStatusMessage() {
+                    return "OK";
+                }
+
+                public String getStatusLine() {
+                    return "HTTP/1.1 200 OK";
+                }
+
+                public Map<String, List<String>> getHeaders() {
+                    final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+                    headers.put("content-type", Arrays.asList("text/plain; charset=utf-8"));
+                    return headers;
+                }
+
+                public InputStream getBody() throws Exception {
+                    return new ByteArrayInputStream(request.getUri().getBytes("UTF-8"));
+                }
+
+                public void close() {
+                }
+
+                public void abort() {
+                }
+            };
+        }
+    }
+
+    public void testCustomTransport() throws Exception {
+        final EchoTransport transport = new EchoTransport();
+        final Webb webb = new Webb("http://example.com");
+        webb.setTransport(transport);
+        webb.setDefaultHeader("X-Default", "default");
+        webb.setReadTimeout(1234);
+
+        final Response<String> response = webb.get("/path")
+                .param("q", "a b")
+                .header("X-Request", 5)
+                .executeString();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals("http://example.com/path?q=a+b", response.getBody());
+        // Header names are case-insensitive
+        assertEquals("text/plain; charset=utf-8", response.getContentType());
+
+        final TransportRequest request = transport.lastRequest;
+        assertEquals(HttpMethod.GET, request.getMethod());
+        assertEquals("default", request.getHeaders().get("X-Default"));
+        assertEquals("5", request.getHeaders().get("X-Request"));
+        assertEquals(1234, request.getReadTimeout());
+        assertNull(request.getBody());
+    }
+
+    public void testCustomTransportBody() throws Exception {
+        final EchoTransport transport = new EchoTransport();
+        final Webb webb = new Webb("http://example.com");
+        webb.setTransport(transport);
+
+        webb.post("/form").param("p1", "v1").param("p2", "v2").execute();
+
+        assertEquals(WebbConst.MIME_URLENCODED, transport.lastRequest.getHeaders().get(WebbConst.HDR_CONTENT_TYPE));
+        assertTrue(transport.lastRequest.getBody().isInMemory());
+        assertEquals("p1=v1&p2=v2", new String(transport.lastBody, "UTF-8"));
+    }
+}
@@ -3,6 +3,7 @@ package com.darkyen.dave;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Random;
 
@@ -162,6 +163,8 @@ public class TestWebb_UpDownload extends AbstractTestWebb {
 
         assertEquals(200, response.getStatusCode());
         assertEquals(500, response.getBody().size);
+        // Declared length is of the compressed body
+        assertEquals(-1, response.getContentLength());
     }
 
     public void testDownloadDeflate() throws Exception {
@@ -198,6 +201,7 @@ public class TestWebb_UpDownload extends AbstractTestWebb {
                 .executeBytes();
 
         assertArrayEquals(msg, response.getBody());
+        assertEquals(msg.length, response.getContentLength());
     }
 
     public void testEchoAsStream() throws Exception {
@@ -216,4 +220,90 @@ public class TestWebb_UpDownload extends AbstractTestWebb {
                 });
         assertArrayEquals(msg, response.body);
     }
+
+    public void testExecuteStream() throws Exception {
+        final byte[] msg = new byte[200 * 1024];
+        for (int i = 0; i < msg.length; ++i) {
+            msg[i] = (byte) (i * 7);
+        }
+        final Response<InputStream> response = webb
+                .post("/echoBin")
+                .body(msg, null)
+                .executeStream();
+        try {
+            assertEquals(200, response.getStatusCode());
+            assertArrayEquals(msg, WebbUtils.readBytes(response.getBody()));
+        } finally {
+            response.close();
+        }
+        // Second close does nothing
+        response.close();
+    }
+
+    public void testExecuteStreamCompressed() throws Exception {
+        final byte[] payload = new byte[5000];
+        new Random().nextBytes(payload);
+
+        final Response<InputStream> response = webb
+                .post("/echoBin")
+                .header(WebbConst.HDR_ACCEPT_ENCODING, "gzip")
+                .body(payload, null)
+                .executeStream();
+        try {
+            assertArrayEquals(payload, WebbUtils.readBytes(response.getBody()));
+        } finally {
+            // Closing the body closes the response
+            response.getBody().close();
+        }
+    }
+
+    public void testDownloadToFile() throws Exception {
+        final byte[] payload = new byte[3 * 1024 * 1024 + 7];
+        new Random().nextBytes(payload);
+        final File target = File.createTempFile("webb-download", ".bin");
+        try {
+            final Response<File> response = webb.post("/echoBin").body(payload, null).executeFile(target);
+            assertEquals(target, response.getBody());
+            assertEquals(payload.length, target.length());
+            final FileInputStream in = new FileInputStream(target);
+            assertArrayEquals(payload, WebbUtils.readBytes(in));
+            in.close();
+
+            // Failed download does not touch the target
+            final Response<File> failed = webb.get("/error/400/with-content").executeFile(target);
+            assertEquals(400, failed.getStatusCode());
+            assertNull(failed.getBody());
+            assertEquals(payload.length, target.length());
+
+            // No temporary files are left behind
+            final String[] left = target.getAbsoluteFile().getParentFile().list();
+            for (String name : left) {
+                assertFalse(name, name.startsWith(target.getName() + ".webb"));
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            target.delete();
+        }
+    }
+
+    public void testDownloadToFileShortBody() throws Exception {
+        final File target = File.createTempFile("webb-download", ".bin");
+        try {
+            try {
+                webb.get("/error/short-body").executeFile(target);
+                fail();
+            } catch (WebbException expected) {
+                assertTrue(expected.getCause() instanceof IOException);
+            }
+            // Target is not touched and no temporary files are left behind
+            assertEquals(0, target.length());
+            final String[] left = target.getAbsoluteFile().getParentFile().list();
+            for (String name : left) {
+                assertFalse(name, name.startsWith(target.getName() + ".webb"));
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            target.delete();
+        }
+    }
 }